@@ -0,0 +1,85 @@
+package rt4.paxos;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the client work a leader has in flight, in commands and in request
+ * bytes, so that a burst is turned away at the door instead of queueing in
+ * memory until latency collapses.
+ *
+ * Rejected clients get a retry-after hint: the recent average time from
+ * admission to answer of the requests that were committed, which is roughly
+ * how long it takes the window to turn over. Requests that failed (lost
+ * leadership, missed quorum) leave the average alone.
+ */
+public class AdmissionControl {
+    public static final String MAX_COMMANDS_PROPERTY = "paxos.admission.maxCommands";
+    public static final String MAX_BYTES_PROPERTY = "paxos.admission.maxBytes";
+
+    private static final long MIN_RETRY_AFTER_MS = 1;
+    private static final long MAX_RETRY_AFTER_MS = 1000;
+
+    private final long maxCommands;
+    private final long maxBytes;
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+
+    // Exponentially weighted time in flight of committed requests (racy updates only drop samples)
+    private volatile long averageMicros = 1000;
+
+    public AdmissionControl(long maxCommands, long maxBytes) {
+        this.maxCommands = maxCommands;
+        this.maxBytes = maxBytes;
+    }
+
+    public static AdmissionControl fromSystemProperties() {
+        return new AdmissionControl(
+                Long.getLong(MAX_COMMANDS_PROPERTY, 10_000L),
+                Long.getLong(MAX_BYTES_PROPERTY, 64L << 20));
+    }
+
+    /**
+     * Reserves room for a request. A request larger than the byte budget is
+     * still admitted when nothing else is in flight, so it can not starve.
+     */
+    public boolean tryAcquire(int commandCount, long size) {
+        if (!reserve(commands, commandCount, maxCommands)) {
+            rejected.increment();
+            return false;
+        }
+        if (!reserve(bytes, size, maxBytes)) {
+            commands.addAndGet(-commandCount);
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+     // inFlightMicros is the request's own time from admission to answer, -1 when it failed
+
+    public void release(int commandCount, long size, long inFlightMicros) {
+        commands.addAndGet(-commandCount);
+        bytes.addAndGet(-size);
+        if (inFlightMicros >= 0) {
+            averageMicros += (inFlightMicros - averageMicros) / 16;
+        }
+    }
+
+    public int retryAfterMillis() {
+        return (int) Math.max(MIN_RETRY_AFTER_MS, Math.min(MAX_RETRY_AFTER_MS, averageMicros / 1000));
+    }
+
+    public long getInFlightCommands() { return commands.get(); }
+    public long getInFlightBytes() { return bytes.get(); }
+    public long getRejected() { return rejected.sum(); }
+
+    private static boolean reserve(AtomicLong counter, long amount, long limit) {
+        while (true) {
+            long current = counter.get();
+            if (current + amount > limit && current > 0) return false;
+            if (counter.compareAndSet(current, current + amount)) return true;
+        }
+    }
+}
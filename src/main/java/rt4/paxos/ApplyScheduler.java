@@ -0,0 +1,198 @@
+package rt4.paxos;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Applies the commands of a run of committed slots, in parallel where they
+ * commute. Each command depends on the previous command that touches one of
+ * its keys (StateMachine.footprint), and a command without a footprint
+ * depends on, and is depended on by, everything; commands whose
+ * dependencies are done run on a shared fork-join pool. The result is the
+ * same as applying in slot order, since commands on the same key keep their
+ * order and the others do not observe each other.
+ *
+ * Runs shorter than -Dpaxos.apply.minParallel (32) commands are applied in
+ * order on the calling thread, without computing footprints. The pool has
+ * -Dpaxos.apply.threads threads (one per core); with 1 everything is
+ * applied in order. Not thread-safe: PaxosGroup serializes access.
+ */
+public class ApplyScheduler {
+    private static final int THREADS = Integer.getInteger("paxos.apply.threads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int MIN_PARALLEL = Integer.getInteger("paxos.apply.minParallel", 32);
+    private static final ForkJoinPool POOL = THREADS > 1 ? new ForkJoinPool(THREADS, pool -> {
+        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        t.setName("paxos-apply-" + t.getPoolIndex());
+        t.setDaemon(true);
+        return t;
+    }, null, false) : null;
+
+    private final StateMachine stateMachine;
+    private final ForkJoinPool pool;
+    private final List<Task> tasks = new ArrayList<>();
+
+    public ApplyScheduler(StateMachine stateMachine) {
+        this(stateMachine, POOL);
+    }
+
+     // Applies on the given pool, or in order when it is null (tests use their own)
+
+    ApplyScheduler(StateMachine stateMachine, ForkJoinPool pool) {
+        this.stateMachine = stateMachine;
+        this.pool = pool;
+    }
+
+    /**
+     * Queues a command for the next run and returns its index. The command
+     * buffer must stay valid until run() returns.
+     */
+    public int add(long slot, ByteBuffer command) {
+        tasks.add(new Task(slot, command));
+        return tasks.size() - 1;
+    }
+
+    public ByteString result(int index) {
+        return tasks.get(index).result;
+    }
+
+    public boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+
+     // Apply every queued command; results stay readable until clear()
+
+    public void run() {
+        if (pool == null || tasks.size() < MIN_PARALLEL) {
+            for (Task task : tasks) {
+                task.result = stateMachine.apply(task.slot, task.command);
+            }
+            return;
+        }
+        List<Task> roots = link();
+        if (roots.size() == tasks.size()) {
+            // Nothing conflicts: one flat fork per command
+            runAll(tasks);
+            return;
+        }
+
+        // Roots are taken before any runs: a running root brings its successors' counts to 0
+        CountDownLatch done = new CountDownLatch(tasks.size());
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        for (Task root : roots) {
+            pool.execute(() -> execute(root, done, failure));
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while applying slots " + tasks.get(0).slot + "..", e);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    public void clear() {
+        tasks.clear();
+    }
+
+    private void runAll(List<Task> independent) {
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(independent.stream().map(task -> new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        task.result = stateMachine.apply(task.slot, task.command);
+                    }
+                }).toArray(RecursiveAction[]::new));
+            }
+        });
+    }
+
+    private void execute(Task task, CountDownLatch done, AtomicReference<RuntimeException> failure) {
+        try {
+            if (failure.get() == null) {
+                task.result = stateMachine.apply(task.slot, task.command);
+            }
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+        // Successors still run (as no-ops after a failure) so the latch drains
+        for (Task next : task.successors) {
+            if (next.pending.decrementAndGet() == 0) {
+                pool.execute(() -> execute(next, done, failure));
+            }
+        }
+        done.countDown();
+    }
+
+     // Build the dependency edges in slot order; returns the commands that depend on nothing
+
+    private List<Task> link() {
+        Map<ByteString, Task> lastByKey = new HashMap<>();
+        List<Task> sinceBarrier = new ArrayList<>();
+        List<Task> roots = new ArrayList<>();
+        Task barrier = null;
+        for (Task task : tasks) {
+            List<ByteString> keys = stateMachine.footprint(task.command.duplicate());
+            if (keys == null) {
+                // Touches everything: waits for all before it, all after it wait for it
+                for (Task previous : sinceBarrier) {
+                    previous.precede(task);
+                }
+                if (barrier != null && sinceBarrier.isEmpty()) {
+                    barrier.precede(task);
+                }
+                barrier = task;
+                sinceBarrier.clear();
+                lastByKey.clear();
+            } else {
+                for (ByteString key : keys) {
+                    Task previous = lastByKey.put(key, task);
+                    if (previous != null) {
+                        previous.precede(task);
+                    }
+                }
+                if (barrier != null) {
+                    barrier.precede(task);
+                }
+                sinceBarrier.add(task);
+            }
+            if (task.pending.get() == 0) roots.add(task);
+        }
+        return roots;
+    }
+
+    private static final class Task {
+        final long slot;
+        final ByteBuffer command;
+        final AtomicInteger pending = new AtomicInteger();
+        final List<Task> successors = new ArrayList<>(1);
+        volatile ByteString result;
+
+        Task(long slot, ByteBuffer command) {
+            this.slot = slot;
+            this.command = command;
+        }
+
+        void precede(Task next) {
+            // A command touching one key twice depends on its predecessor once
+            if (!successors.isEmpty() && successors.get(successors.size() - 1) == next) return;
+            successors.add(next);
+            next.pending.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package rt4.paxos;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Brings a voter's groups back in step after it missed commits: a follower
+ * that was down, partitioned, or past the leader's commit retries holds
+ * slots it cannot apply, because one before them was never committed here.
+ *
+ * Every -Dpaxos.catchUp.checkMs (1000) each group this node does not lead is
+ * checked; one with slots beyond its applied index and no progress since the
+ * last check follows its known leader through SubscribeCommitted, the way a
+ * Learner does, until it has applied what the leader had applied when it
+ * answered. A candidate refused in phase 1 by an acceptor that is ahead of
+ * it catches up from that acceptor the same way (see {@link #from}).
+ *
+ * One stream per group at a time, closed after STREAM_MS at the latest.
+ * Slots the source no longer holds, in memory or in its durable log, cannot
+ * be caught up: the stream fails with OUT_OF_RANGE and the node needs its
+ * state from elsewhere.
+ */
+public class CatchUp {
+    private static final Logger logger = Logger.getLogger(CatchUp.class.getName());
+
+    private static final long CHECK_MS = Long.getLong("paxos.catchUp.checkMs", 1000);
+    // A source with nothing newer to send never ends the stream by itself
+    private static final long STREAM_MS = 30_000;
+
+    private final String selfId;
+    private final PaxosGroup[] groups;
+    private final ServerMetrics metrics;
+    // Applied index of each group at the last check
+    private final long[] lastApplied;
+    private final AtomicBoolean[] running;
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "paxos-catchup");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean stopped = false;
+
+    public CatchUp(String selfId, PaxosGroup[] groups, ServerMetrics metrics) {
+        this.selfId = selfId;
+        this.groups = groups;
+        this.metrics = metrics;
+        this.lastApplied = new long[groups.length];
+        this.running = new AtomicBoolean[groups.length];
+        for (int i = 0; i < groups.length; i++) {
+            running[i] = new AtomicBoolean();
+        }
+    }
+
+    public void start() {
+        checker.scheduleWithFixedDelay(this::check, CHECK_MS, CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        for (PaxosGroup group : groups) {
+            int groupId = group.getGroupId();
+            long applied = group.getAppliedIndex();
+            boolean stalled = applied == lastApplied[groupId] && group.backlog() > 0;
+            lastApplied[groupId] = applied;
+            if (!stalled || group.getLeaderBallot() != 0) continue;
+
+            String leader = group.getKnownLeader();
+            ClusterTopology.Node node = leader == null ? null : ClusterTopology.get().node(leader);
+            if (node != null && !leader.equals(selfId)) {
+                from(group, node.address());
+            }
+        }
+    }
+
+    /**
+     * Applies the group's committed slots from its first unapplied one on,
+     * read from the node at the given address, unless a catch-up of the group
+     * is already running.
+     */
+    public void from(PaxosGroup group, String address) {
+        int groupId = group.getGroupId();
+        if (stopped || !running[groupId].compareAndSet(false, true)) return;
+        long fromSlot = group.getAppliedIndex() + 1;
+        logger.info("Group " + groupId + ": catching up from " + address + " at slot " + fromSlot);
+
+        CommitSubscription subscription = CommitSubscription.newBuilder()
+                .setGroupId(groupId)
+                .setFromSlot(fromSlot)
+                .setSubscriber(selfId)
+                .build();
+        // The stream outlives the call (an election's Submit) that may have started it
+        Context streamContext = Context.current().fork();
+        Context previous = streamContext.attach();
+        try {
+            PeerChannels.shared().asyncStub(address)
+                    .withDeadlineAfter(STREAM_MS, TimeUnit.MILLISECONDS)
+                    .subscribeCommitted(subscription, new ClientResponseObserver<CommitSubscription, CommittedBatch>() {
+                        private ClientCallStreamObserver<CommitSubscription> call;
+                        private boolean caughtUp = false;
+
+                        @Override
+                        public void beforeStart(ClientCallStreamObserver<CommitSubscription> call) {
+                            this.call = call;
+                        }
+
+                        @Override
+                        public void onNext(CommittedBatch batch) {
+                            for (CommittedSlot committed : batch.getSlotsList()) {
+                                group.commitSlot(committed.getSlot(), committed.getBallot(), committed.getPayload());
+                                metrics.recordCommit(-1);
+                            }
+                            if (group.getAppliedIndex() >= batch.getAppliedIndex()) {
+                                // Level with the source; later slots come with the leader's commits
+                                caughtUp = true;
+                                call.cancel("Caught up", null);
+                            }
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            running[groupId].set(false);
+                            Status status = Status.fromThrowable(t);
+                            if (caughtUp) {
+                                logger.info("Group " + groupId + ": caught up to slot " + group.getAppliedIndex());
+                            } else if (status.getCode() == Status.Code.DEADLINE_EXCEEDED) {
+                                logger.fine("Group " + groupId + ": " + address + " had nothing past slot " +
+                                        group.getAppliedIndex());
+                            } else {
+                                logger.warning("Group " + groupId + ": could not catch up from " + address +
+                                        " at slot " + (group.getAppliedIndex() + 1) + ": " + status);
+                            }
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                            running[groupId].set(false);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            running[groupId].set(false);
+            logger.warning("Group " + groupId + ": could not catch up from " + address + ": " + e.getMessage());
+        } finally {
+            streamContext.detach(previous);
+        }
+    }
+
+    public void shutdown() {
+        stopped = true;
+        checker.shutdownNow();
+    }
+}
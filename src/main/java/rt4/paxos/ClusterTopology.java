@@ -0,0 +1,309 @@
+package rt4.paxos;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The nodes of the cluster: an id, a host:port and a role for each. Read
+ * from -Dpaxos.topology, either a file with one node per line
+ *
+ *   # id     address            role (voter when left out)
+ *   S1       10.0.0.1:50051
+ *   S2       10.0.0.2:50051
+ *   L1       10.0.0.9:50051     learner
+ *
+ * or the same inline: -Dpaxos.topology=S1=10.0.0.1:50051,L1=10.0.0.9:50051/learner.
+ * Ballots carry the number in a node id (TraceRecorder.nodeNumber), so the
+ * numbers must differ between nodes. Without the property the cluster is
+ * DEFAULT_NODES nodes on localhost, S50051 upwards; a node started with only
+ * -Dpaxos.peers gets initFromPeers instead.
+ */
+public class ClusterTopology {
+    public static final String PROPERTY = "paxos.topology";
+    private static final int DEFAULT_NODES = 5;
+    private static final int DEFAULT_FIRST_PORT = 50051;
+
+    private static volatile ClusterTopology current;
+
+    private final List<Node> nodes;
+    private final Map<String, Node> byId = new HashMap<>();
+    private final Map<String, Node> byAddress = new HashMap<>();
+
+    public ClusterTopology(List<Node> nodes) {
+        Map<Integer, Node> byNumber = new HashMap<>();
+        for (Node node : nodes) {
+            if (byId.put(node.id, node) != null) {
+                throw new IllegalArgumentException("Node " + node.id + " is listed twice");
+            }
+            if (byAddress.put(node.address(), node) != null) {
+                throw new IllegalArgumentException("Two nodes at " + node.address());
+            }
+            Node clash = byNumber.put(TraceRecorder.nodeNumber(node.id), node);
+            if (clash != null) {
+                throw new IllegalArgumentException("Nodes " + clash.id + " and " + node.id +
+                        " have the same number; ballots could not tell them apart");
+            }
+        }
+        if (voters(nodes).isEmpty()) {
+            throw new IllegalArgumentException("The topology has no voters");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+    }
+
+     // The topology of this process: -Dpaxos.topology, initFromPeers, or the local default
+
+    public static ClusterTopology get() {
+        ClusterTopology topology = current;
+        if (topology == null) {
+            synchronized (ClusterTopology.class) {
+                if (current == null) {
+                    current = fromSystemProperties();
+                }
+                topology = current;
+            }
+        }
+        return topology;
+    }
+
+    public static boolean isConfigured() {
+        return !System.getProperty(PROPERTY, "").isBlank();
+    }
+
+    public static ClusterTopology fromSystemProperties() {
+        String value = System.getProperty(PROPERTY, "").trim();
+        if (value.isEmpty()) {
+            List<Node> nodes = new ArrayList<>();
+            for (int i = 0; i < DEFAULT_NODES; i++) {
+                int port = DEFAULT_FIRST_PORT + i;
+                nodes.add(new Node("S" + port, "localhost", port, false));
+            }
+            return new ClusterTopology(nodes);
+        }
+        try {
+            return value.contains("=") ? parseInline(value) : parse(Files.readAllLines(Paths.get(value)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read topology file " + value + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A node started without a topology: itself on localhost, with the role
+     * from -Dpaxos.role, and the voters it was given in -Dpaxos.peers, named
+     * after their ports as before.
+     */
+    public static ClusterTopology initFromPeers(int selfPort) {
+        List<Node> nodes = new ArrayList<>();
+        nodes.add(new Node("S" + selfPort, "localhost", selfPort, Learner.isLearnerRole()));
+        for (String address : System.getProperty(Replicator.PEERS_PROPERTY, "").split(",")) {
+            if (!address.isBlank()) {
+                Node peer = Node.parse("", address.trim(), false);
+                nodes.add(new Node("S" + peer.port, peer.host, peer.port, false));
+            }
+        }
+        return use(new ClusterTopology(nodes));
+    }
+
+     // Make the topology the one of this process (also how tests set up a local cluster)
+
+    static ClusterTopology use(ClusterTopology topology) {
+        synchronized (ClusterTopology.class) {
+            current = topology;
+            return topology;
+        }
+    }
+
+    public static ClusterTopology parse(List<String> lines) {
+        List<Node> nodes = new ArrayList<>();
+        for (String line : lines) {
+            int comment = line.indexOf('#');
+            String[] fields = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+            if (fields[0].isEmpty()) continue;
+            if (fields.length < 2 || fields.length > 3) {
+                throw new IllegalArgumentException("Expected \"<id> <host:port> [voter|learner]\", got: " + line.trim());
+            }
+            nodes.add(Node.parse(fields[0], fields[1], fields.length == 3 && isLearner(fields[2])));
+        }
+        return new ClusterTopology(nodes);
+    }
+
+    private static ClusterTopology parseInline(String value) {
+        List<Node> nodes = new ArrayList<>();
+        for (String entry : value.split(",")) {
+            if (entry.isBlank()) continue;
+            int equals = entry.indexOf('=');
+            int slash = entry.indexOf('/', equals);
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Expected <id>=<host:port>[/role], got: " + entry.trim());
+            }
+            String address = slash < 0 ? entry.substring(equals + 1) : entry.substring(equals + 1, slash);
+            nodes.add(Node.parse(entry.substring(0, equals).trim(), address.trim(),
+                    slash >= 0 && isLearner(entry.substring(slash + 1).trim())));
+        }
+        return new ClusterTopology(nodes);
+    }
+
+    private static boolean isLearner(String role) {
+        if (role.equalsIgnoreCase("learner")) return true;
+        if (role.equalsIgnoreCase("voter")) return false;
+        throw new IllegalArgumentException("Unknown role " + role + " (voter or learner)");
+    }
+
+    public List<Node> nodes() {
+        return nodes;
+    }
+
+    public List<Node> voters() {
+        return voters(nodes);
+    }
+
+    private static List<Node> voters(List<Node> nodes) {
+        List<Node> voters = new ArrayList<>();
+        for (Node node : nodes) {
+            if (!node.learner) voters.add(node);
+        }
+        return voters;
+    }
+
+    public Node node(String id) {
+        return byId.get(id);
+    }
+
+     // The node listening on a host:port, null if none
+
+    public Node nodeAt(String address) {
+        return byAddress.get(address);
+    }
+
+     // Every node but one, voters first in file order
+
+    public List<Node> others(String selfId) {
+        List<Node> others = new ArrayList<>();
+        for (Node node : voters()) {
+            if (!node.id.equals(selfId)) others.add(node);
+        }
+        for (Node node : nodes) {
+            if (node.learner && !node.id.equals(selfId)) others.add(node);
+        }
+        return others;
+    }
+
+    public List<Node> otherVoters(String selfId) {
+        List<Node> others = new ArrayList<>();
+        for (Node node : voters()) {
+            if (!node.id.equals(selfId)) others.add(node);
+        }
+        return others;
+    }
+
+    /**
+     * The node a process was started as: a node id, or a port when exactly
+     * one node on this machine listens on it.
+     */
+    public Node resolve(String idOrPort) {
+        Node node = byId.get(idOrPort);
+        if (node != null) return node;
+        if (idOrPort.chars().allMatch(Character::isDigit) && !idOrPort.isEmpty()) {
+            int port = Integer.parseInt(idOrPort);
+            Node match = null;
+            for (Node candidate : nodes) {
+                if (candidate.port == port && candidate.isLocal()) {
+                    if (match != null) {
+                        throw new IllegalArgumentException("Several local nodes listen on " + port + "; start by node id");
+                    }
+                    match = candidate;
+                }
+            }
+            if (match != null) return match;
+        }
+        throw new IllegalArgumentException("No node " + idOrPort + " in the topology " + byId.keySet());
+    }
+
+    public static List<String> addresses(List<Node> nodes) {
+        List<String> addresses = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            addresses.add(node.address());
+        }
+        return addresses;
+    }
+
+    public static List<String> ids(List<Node> nodes) {
+        List<String> ids = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            ids.add(node.id);
+        }
+        return ids;
+    }
+
+    public static final class Node {
+        private final String id;
+        private final String host;
+        private final int port;
+        private final boolean learner;
+
+        public Node(String id, String host, int port, boolean learner) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+            this.learner = learner;
+        }
+
+        static Node parse(String id, String address, boolean learner) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Expected host:port, got: " + address);
+            }
+            try {
+                return new Node(id, address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), learner);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad port in " + address);
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public boolean isLearner() {
+            return learner;
+        }
+
+        public String address() {
+            return host + ":" + port;
+        }
+
+         // Whether the node runs on this machine (so the launcher starts it)
+
+        public boolean isLocal() {
+            try {
+                InetAddress address = InetAddress.getByName(host);
+                return address.isLoopbackAddress() || address.isAnyLocalAddress()
+                        || NetworkInterface.getByInetAddress(address) != null;
+            } catch (UnknownHostException | SocketException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return id + "@" + address() + (learner ? "/learner" : "");
+        }
+    }
+}
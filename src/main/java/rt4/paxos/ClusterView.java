@@ -0,0 +1,227 @@
+package rt4.paxos;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Cached status of every node, served by GetClusterStatus. While someone is
+ * asking, the node polls its peers' GetServerStatus once per interval, so the
+ * calls between nodes do not grow with the number of dashboards, and a
+ * dashboard makes one call per refresh whatever the cluster size.
+ *
+ * Every change to a node's status takes the next version number. A caller
+ * sends back the epoch and version of its previous response and gets only
+ * the nodes that changed since, each with only the log entries it has not
+ * seen; a caller from another epoch (another node, or a restart) gets the
+ * full view. Load figures are rounded so their noise does not make every
+ * poll a change.
+ */
+public class ClusterView {
+    private static final long POLL_INTERVAL_MS = Long.getLong("paxos.status.intervalMs", 500);
+    // Stop polling a group nobody asked about for this long
+    private static final long IDLE_AFTER_MS = 10_000;
+
+    private final String selfId;
+    private final IntFunction<ServerStatus> localStatus;
+    private final List<String> peers;
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final AtomicLong version = new AtomicLong();
+    private final Map<Integer, GroupView> views = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "paxos-status");
+        t.setDaemon(true);
+        return t;
+    });
+    private ScheduledFuture<?> pollTask;
+
+    public ClusterView(String selfId, IntFunction<ServerStatus> localStatus, List<String> peers) {
+        this.selfId = selfId;
+        this.localStatus = localStatus;
+        this.peers = peers;
+    }
+
+    public CompletableFuture<ClusterStatus> status(ClusterStatusRequest request) {
+        GroupView view = views.computeIfAbsent(request.getGroupId(), GroupView::new);
+        startPolling();
+        return view.fresh().thenApply(ignored -> view.since(request.getEpoch(), request.getSinceVersion()));
+    }
+
+    private synchronized void startPolling() {
+        if (pollTask != null) return;
+        pollTask = poller.scheduleWithFixedDelay(() -> {
+            long now = System.currentTimeMillis();
+            for (GroupView view : views.values()) {
+                if (now - view.lastAsked < IDLE_AFTER_MS) {
+                    view.poll();
+                }
+            }
+        }, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        poller.shutdownNow();
+    }
+
+     // Status as stored: load rounded to 5% CPU, 10 queued commands and 1 ms
+
+    private static ServerStatus rounded(ServerStatus status) {
+        return status.toBuilder()
+                .setCpuLoad(Math.round(status.getCpuLoad() * 20) / 20.0)
+                .setQueueDepth(status.getQueueDepth() / 10 * 10)
+                .setMeanPeerRttUs(status.getMeanPeerRttUs() / 1000 * 1000)
+                .build();
+    }
+
+    /**
+     * Last known status of every node for one group. Nodes are keyed by
+     * address until their first answer names them.
+     */
+    private final class GroupView {
+        private final int groupId;
+        private final Map<String, NodeEntry> nodes = new LinkedHashMap<>();
+        private volatile long lastAsked;
+        private long lastPolled;
+        private CompletableFuture<Void> polling;
+
+        GroupView(int groupId) {
+            this.groupId = groupId;
+        }
+
+         // Completes once the view is at most two intervals old
+
+        synchronized CompletableFuture<Void> fresh() {
+            lastAsked = System.currentTimeMillis();
+            if (polling != null) return polling;
+            if (lastAsked - lastPolled <= 2 * POLL_INTERVAL_MS) return CompletableFuture.completedFuture(null);
+            return poll();
+        }
+
+        synchronized CompletableFuture<Void> poll() {
+            if (polling != null) return polling;
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            polling = done;
+            update(selfId, localStatus.apply(groupId));
+
+            int[] pending = {peers.size()};
+            if (pending[0] == 0) {
+                finishPoll();
+            }
+            StatusRequest request = StatusRequest.newBuilder().setRequester(selfId).setGroupId(groupId).build();
+            for (String address : peers) {
+                Futures.addCallback(PeerChannels.shared().futureStub(address)
+                        .withDeadlineAfter(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)
+                        .getServerStatus(request), new FutureCallback<ServerStatus>() {
+                    @Override
+                    public void onSuccess(ServerStatus status) {
+                        answered(address, status);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        answered(address, null);
+                    }
+
+                    private void answered(String address, ServerStatus status) {
+                        synchronized (GroupView.this) {
+                            update(address, status);
+                            if (--pending[0] == 0) {
+                                finishPoll();
+                            }
+                        }
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+            return done;
+        }
+
+        private void finishPoll() {
+            lastPolled = System.currentTimeMillis();
+            CompletableFuture<Void> done = polling;
+            polling = null;
+            done.complete(null);
+        }
+
+         // Record one poll answer, null when the node did not answer
+
+        private void update(String address, ServerStatus status) {
+            NodeEntry entry = nodes.computeIfAbsent(address, NodeEntry::new);
+            if (status == null) {
+                if (entry.reachable) {
+                    entry.reachable = false;
+                    entry.version = version.incrementAndGet();
+                }
+                return;
+            }
+            ServerStatus stored = rounded(status);
+            if (entry.reachable && stored.equals(entry.status)) return;
+
+            long next = version.incrementAndGet();
+            // Entries come newest first; the ones before the previous newest are new
+            List<LogEntry> previous = entry.status == null ? List.of() : entry.status.getLogEntriesList();
+            int fresh = previous.isEmpty() ? -1 : stored.getLogEntriesList().indexOf(previous.get(0));
+            if (fresh < 0) fresh = stored.getLogEntriesCount();
+            long[] logVersions = new long[stored.getLogEntriesCount()];
+            for (int i = 0; i < logVersions.length; i++) {
+                logVersions[i] = i < fresh ? next : entry.logVersions[i - fresh];
+            }
+            entry.status = stored;
+            entry.logVersions = logVersions;
+            entry.reachable = true;
+            entry.version = next;
+        }
+
+        synchronized ClusterStatus since(long callerEpoch, long sinceVersion) {
+            boolean full = callerEpoch != epoch || sinceVersion <= 0 || sinceVersion > version.get();
+            long from = full ? 0 : sinceVersion;
+            ClusterStatus.Builder response = ClusterStatus.newBuilder()
+                    .setEpoch(epoch)
+                    .setVersion(version.get())
+                    .setFull(full)
+                    .setServedBy(selfId);
+            for (NodeEntry entry : nodes.values()) {
+                if (entry.version <= from) continue;
+                NodeStatusUpdate.Builder update = NodeStatusUpdate.newBuilder()
+                        .setServerId(entry.status != null ? entry.status.getServerId() : entry.address)
+                        .setVersion(entry.version)
+                        .setReachable(entry.reachable);
+                if (entry.status != null) {
+                    ServerStatus.Builder status = entry.status.toBuilder().clearLogEntries();
+                    for (int i = 0; i < entry.logVersions.length; i++) {
+                        if (entry.logVersions[i] > from) {
+                            status.addLogEntries(entry.status.getLogEntries(i));
+                        }
+                    }
+                    update.setStatus(status);
+                }
+                response.addNodes(update);
+            }
+            return response.build();
+        }
+    }
+
+    private static final class NodeEntry {
+        final String address;
+        long version;
+        boolean reachable;
+        ServerStatus status;
+        long[] logVersions = new long[0];
+
+        NodeEntry(String address) {
+            this.address = address;
+        }
+    }
+}
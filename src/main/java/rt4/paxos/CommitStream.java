@@ -0,0 +1,146 @@
+package rt4.paxos;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * One SubscribeCommitted call: sends a group's applied slots from the
+ * subscriber's cursor on, in CommittedBatch messages of up to
+ * -Dpaxos.subscribe.batchSlots (256) slots or -Dpaxos.subscribe.batchBytes
+ * (1 MB), and then the new ones as they are applied.
+ *
+ * The stream pulls instead of being pushed to: the group only says that its
+ * applied index moved, and a pump on the paxos-subscribe pool reads the next
+ * batch while the call is ready for more, so a slow subscriber costs a
+ * little memory and never a wait on the group lock. Slots the group no
+ * longer holds in memory are read back from its durable log; without one
+ * (-Dpaxos.log.dir) the stream fails with OUT_OF_RANGE and the subscriber
+ * has to start over from a state it got elsewhere.
+ */
+public class CommitStream implements PaxosGroup.CommitListener {
+    private static final Logger logger = Logger.getLogger(CommitStream.class.getName());
+
+    private static final int BATCH_SLOTS = Integer.getInteger("paxos.subscribe.batchSlots", 256);
+    private static final long BATCH_BYTES = Long.getLong("paxos.subscribe.batchBytes", 1L << 20);
+
+    private static final ExecutorService PUMPS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "paxos-subscribe");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final PaxosGroup group;
+    private final ServerCallStreamObserver<CommittedBatch> call;
+    private final int batchSlots;
+    // Pump requests not yet served; the pump runs while it is above 0
+    private final AtomicInteger wakeups = new AtomicInteger();
+    // Next slot to send, only touched by the pump
+    private long cursor;
+    private volatile boolean closed = false;
+
+    public CommitStream(PaxosGroup group, ServerCallStreamObserver<CommittedBatch> call, long fromSlot, int maxSlots) {
+        this.group = group;
+        this.call = call;
+        this.cursor = Math.max(1, fromSlot);
+        this.batchSlots = maxSlots > 0 ? Math.min(maxSlots, BATCH_SLOTS) : BATCH_SLOTS;
+    }
+
+    public void start() {
+        call.setOnCancelHandler(this::close);
+        call.setOnReadyHandler(this::wake);
+        group.subscribe(this);
+        wake();
+    }
+
+    @Override
+    public void applied(long appliedIndex) {
+        if (appliedIndex >= cursor) {
+            wake();
+        }
+    }
+
+    private void wake() {
+        if (!closed && wakeups.getAndIncrement() == 0) {
+            PUMPS.execute(this::pump);
+        }
+    }
+
+    private void pump() {
+        int missed = 1;
+        do {
+            try {
+                while (!closed && call.isReady()) {
+                    CommittedBatch batch = nextBatch();
+                    if (batch == null) break;
+                    call.onNext(batch);
+                    cursor += batch.getSlotsCount();
+                }
+            } catch (RuntimeException e) {
+                fail(Status.INTERNAL.withDescription("Commit stream failed: " + e.getMessage()));
+            }
+            missed = wakeups.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+     // Next slots from the cursor on, null when the subscriber is caught up or the stream failed
+
+    private CommittedBatch nextBatch() {
+        long applied = group.getAppliedIndex();
+        if (cursor > applied) return null;
+        int groupId = group.getGroupId();
+        CommittedBatch.Builder batch = CommittedBatch.newBuilder().setGroupId(groupId);
+        if (!group.readApplied(cursor, batchSlots, BATCH_BYTES, batch)) {
+            readFromDisk(batch, applied);
+        }
+        if (closed || batch.getSlotsCount() == 0) {
+            if (!closed) {
+                fail(Status.OUT_OF_RANGE.withDescription("Slot " + cursor + " is no longer in the log of group " +
+                        groupId + (group.getDurableLog().isEnabled() ? "" : " (kept on disk with -Dpaxos.log.dir)")));
+            }
+            return null;
+        }
+        String leader = group.getKnownLeader();
+        if (leader != null) {
+            batch.setLeaderId(leader);
+        }
+        return batch.setAppliedIndex(group.getAppliedIndex()).build();
+    }
+
+    private void readFromDisk(CommittedBatch.Builder batch, long applied) {
+        DurableLog durable = group.getDurableLog();
+        if (!durable.isEnabled()) return;
+        try {
+            int slots = (int) Math.min(batchSlots, applied - cursor + 1);
+            List<DurableLog.Entry> entries = durable.readCommitted(cursor, slots, BATCH_BYTES);
+            for (DurableLog.Entry entry : entries) {
+                batch.addSlots(CommittedSlot.newBuilder()
+                        .setGroupId(group.getGroupId())
+                        .setSlot(entry.getSlot())
+                        .setBallot(entry.getBallot())
+                        .setPayload(ByteString.copyFrom(entry.getPayload())));
+            }
+        } catch (IOException e) {
+            logger.warning("Group " + group.getGroupId() + ": could not read slot " + cursor + " back from the log: " + e);
+            fail(Status.UNAVAILABLE.withDescription("Could not read slot " + cursor + " from the log: " + e.getMessage()));
+        }
+    }
+
+    private void fail(Status status) {
+        if (closed) return;
+        close();
+        call.onError(status.asRuntimeException());
+    }
+
+    private void close() {
+        closed = true;
+        group.unsubscribe(this);
+    }
+}
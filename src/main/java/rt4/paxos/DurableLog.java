@@ -0,0 +1,601 @@
+package rt4.paxos;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead log of one group's acceptor state (promises, accepted slots
+ * and commits), so a restarted node keeps its promises and rejoins with its
+ * log instead of from scratch.
+ *
+ * Enabled with -Dpaxos.log.dir=&lt;dir&gt;; each group writes to
+ * &lt;dir&gt;/S&lt;port&gt;/group-&lt;n&gt;. The log is split into segment
+ * files of -Dpaxos.log.fileBytes (64 MB). Every record carries a CRC32C:
+ *
+ *   int body length | int crc32c(body) | byte type | long slot | int ballot | payload
+ *
+ * A full segment is sealed with an index file holding its record count,
+ * valid length and slot range, plus the offset of every INDEX_INTERVAL-th
+ * accept for readers that seek a slot.
+ *
+ * Recovery maps every segment and verifies the checksums in parallel, which
+ * is where the time goes with a large log; records are then replayed in
+ * order from the mapped, already verified bytes. A bad record in the last
+ * segment is a write torn by the crash and the segment is truncated there;
+ * anywhere else it is corruption and the node refuses to start.
+ *
+ * Promises and accepts are forced to disk before the call returns (unless
+ * -Dpaxos.log.sync=false); commits are not, as a node that lost one reads
+ * the slot back from the leader (CatchUp). Not thread-safe: PaxosGroup
+ * serializes access, except for readCommitted, which commit streams call
+ * from their own threads to serve slots the group no longer holds in memory.
+ */
+public class DurableLog implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(DurableLog.class.getName());
+
+    public static final String DIR_PROPERTY = "paxos.log.dir";
+    // Offsets within a segment are ints
+    private static final long SEGMENT_BYTES = Math.min(Long.getLong("paxos.log.fileBytes", 64L << 20), 1L << 30);
+    private static final boolean SYNC = Boolean.parseBoolean(System.getProperty("paxos.log.sync", "true"));
+
+    public static final byte PROMISE = 1;
+    public static final byte ACCEPT = 2;
+    public static final byte COMMIT = 3;
+
+    private static final int SEGMENT_MAGIC = 0x5058574C;  // "PXWL"
+    private static final int INDEX_MAGIC = 0x50585749;    // "PXWI"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final int BODY_HEADER = 13;
+    private static final int INDEX_INTERVAL = 1024;
+
+    private static final DurableLog DISABLED = new DurableLog(null);
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final CRC32C crc = new CRC32C();
+    private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER + BODY_HEADER);
+
+    // Segment being appended to
+    private FileChannel channel;
+    private long segmentNumber;
+    private long position;
+    private volatile SegmentStats stats;
+    // Segments before it, oldest first, for readCommitted
+    private final List<SegmentStats> sealed = new CopyOnWriteArrayList<>();
+
+    private DurableLog(Path dir) {
+        this(dir, SEGMENT_BYTES);
+    }
+
+     // A log in dir whose segments are sealed at about segmentBytes (tests use small ones)
+
+    DurableLog(Path dir, long segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+     // Log of a group under -Dpaxos.log.dir, or a no-op log when unset
+
+    public static DurableLog fromSystemProperties(String nodeId, int groupId) {
+        String base = System.getProperty(DIR_PROPERTY);
+        if (base == null || base.isEmpty()) return DISABLED;
+        return new DurableLog(Paths.get(base, nodeId, "group-" + groupId));
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * Replays the log into the visitor and opens it for appending. Must be
+     * called once before the first append.
+     */
+    public void recover(Visitor visitor) throws IOException {
+        if (dir == null) return;
+        Files.createDirectories(dir);
+        long startNanos = System.nanoTime();
+
+        List<Long> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(".log"))
+                    .forEach(name -> numbers.add(Long.parseLong(name.substring(0, name.length() - 4))));
+        }
+        numbers.sort(null);
+
+        // Verify every segment in parallel, each task maps and checksums one file
+        List<Segment> segments = new ArrayList<>();
+        int threads = Math.max(1, Math.min(numbers.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService scanners = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "paxos-log-recovery");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Segment>> scans = new ArrayList<>();
+            for (long number : numbers) {
+                scans.add(scanners.submit(() -> verify(number)));
+            }
+            for (Future<Segment> scan : scans) {
+                segments.add(scan.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Log recovery interrupted", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            scanners.shutdown();
+        }
+
+        long records = 0;
+        long bytes = 0;
+        long torn = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            if (segment.validBytes < segment.size && !last) {
+                throw new IOException("Segment " + segment.path + " is corrupt at offset " + segment.validBytes);
+            }
+            SegmentStats replayed = replay(segment, visitor);
+            replayed.number = segment.number;
+            replayed.validBytes = segment.validBytes;
+            if (segment.index != null && (segment.index.records != replayed.records ||
+                    segment.index.validBytes != segment.validBytes)) {
+                throw new IOException("Segment " + segment.path + " holds " + replayed.records +
+                        " records, its index " + segment.index.records);
+            }
+            if (!last && segment.index == null) {
+                // Sealed but the index was lost in a crash, write it again
+                writeIndex(segment.number, replayed, segment.validBytes);
+            }
+            records += replayed.records;
+            bytes += segment.validBytes;
+            torn += segment.size - segment.validBytes;
+            if (last && segment.index == null) {
+                stats = replayed;
+            } else {
+                sealed.add(replayed);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            openSegment(1);
+        } else if (segments.get(segments.size() - 1).index != null) {
+            // Crashed right after sealing: the sealed segment stays as it is
+            openSegment(segments.get(segments.size() - 1).number + 1);
+        } else {
+            Segment tail = segments.get(segments.size() - 1);
+            channel = FileChannel.open(tail.path, StandardOpenOption.WRITE);
+            if (tail.validBytes < tail.size) {
+                channel.truncate(tail.validBytes);
+                channel.force(true);
+            }
+            segmentNumber = tail.number;
+            position = tail.validBytes;
+            if (position < SEGMENT_HEADER) {
+                // Torn inside the header itself
+                channel.truncate(0);
+                writeSegmentHeader();
+            }
+            channel.position(position);
+            stats.validBytes = position;
+        }
+
+        logger.info(String.format("%s: recovered %d records from %d segments (%.1f MB) in %d ms%s",
+                dir, records, segments.size(), bytes / 1e6, (System.nanoTime() - startNanos) / 1_000_000,
+                torn > 0 ? ", truncated a torn tail of " + torn + " bytes" : ""));
+    }
+
+     // Map a segment and find how far its records check out; runs on the recovery pool
+
+    private Segment verify(long number) throws IOException {
+        Path path = segmentPath(number);
+        Segment segment = new Segment(number, path);
+        segment.index = readIndex(number);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment.size = file.size();
+            if (segment.size < SEGMENT_HEADER) return segment;
+            segment.buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        if (buffer.getInt(0) != SEGMENT_MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException(path + " is not a version " + VERSION + " log segment");
+        }
+
+        CRC32C check = new CRC32C();
+        long limit = segment.size;
+        int offset = SEGMENT_HEADER;
+        while (offset + RECORD_HEADER <= limit) {
+            int length = buffer.getInt(offset);
+            if (length < BODY_HEADER || offset + RECORD_HEADER + (long) length > limit) break;
+            check.reset();
+            check.update(buffer.slice(offset + RECORD_HEADER, length));
+            if ((int) check.getValue() != buffer.getInt(offset + 4)) break;
+            offset += RECORD_HEADER + length;
+        }
+        segment.validBytes = offset;
+        return segment;
+    }
+
+    private SegmentStats replay(Segment segment, Visitor visitor) {
+        SegmentStats replayed = new SegmentStats();
+        if (segment.buffer == null) return replayed;
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = SEGMENT_HEADER;
+        while (offset < segment.validBytes) {
+            int length = buffer.getInt(offset);
+            int body = offset + RECORD_HEADER;
+            byte type = buffer.get(body);
+            long slot = buffer.getLong(body + 1);
+            int ballot = buffer.getInt(body + 9);
+            switch (type) {
+                case PROMISE:
+                    visitor.promise(ballot);
+                    break;
+                case ACCEPT:
+                    visitor.accept(slot, ballot, buffer.slice(body + BODY_HEADER, length - BODY_HEADER));
+                    break;
+                case COMMIT:
+                    visitor.commit(slot, ballot);
+                    break;
+                default:
+                    logger.warning(segment.path + ": unknown record type " + type + " at offset " + offset);
+            }
+            replayed.add(type, slot, ballot, offset);
+            offset = body + length;
+        }
+        return replayed;
+    }
+
+    public void promise(int ballot) {
+        append(PROMISE, 0, ballot, null, SYNC);
+    }
+
+    public void accept(long slot, int ballot, ByteBuffer payload) {
+        append(ACCEPT, slot, ballot, payload, SYNC);
+    }
+
+    public void commit(long slot, int ballot) {
+        append(COMMIT, slot, ballot, null, false);
+    }
+
+    private void append(byte type, long slot, int ballot, ByteBuffer payload, boolean force) {
+        if (dir == null) return;
+        if (channel == null) {
+            throw new IllegalStateException("Log " + dir + " appended to before recovery");
+        }
+        ByteBuffer data = payload == null ? ByteBuffer.allocate(0) : payload.duplicate();
+        int length = BODY_HEADER + data.remaining();
+        try {
+            if (position + RECORD_HEADER + length > segmentBytes && position > SEGMENT_HEADER) {
+                seal();
+            }
+            header.clear();
+            header.putInt(length).putInt(0).put(type).putLong(slot).putInt(ballot).flip();
+            crc.reset();
+            crc.update(header.array(), RECORD_HEADER, BODY_HEADER);
+            crc.update(data.duplicate());
+            header.putInt(4, (int) crc.getValue());
+
+            long recordOffset = position;
+            ByteBuffer[] record = {header, data};
+            while (header.hasRemaining() || data.hasRemaining()) {
+                channel.write(record);
+            }
+            position += RECORD_HEADER + length;
+            stats.add(type, slot, ballot, recordOffset);
+            // Publishes the record to readCommitted
+            stats.validBytes = position;
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            // An acceptor that can not persist must not answer as if it had
+            throw new UncheckedIOException("Could not append to " + dir, e);
+        }
+    }
+
+     // Close the full segment with its index and start the next one
+
+    private void seal() throws IOException {
+        channel.force(false);
+        channel.close();
+        writeIndex(segmentNumber, stats, position);
+        sealed.add(stats);
+        openSegment(segmentNumber + 1);
+    }
+
+    private void openSegment(long number) throws IOException {
+        channel = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        segmentNumber = number;
+        writeSegmentHeader();
+        SegmentStats opened = new SegmentStats();
+        opened.number = number;
+        opened.validBytes = position;
+        stats = opened;
+    }
+
+    private void writeSegmentHeader() throws IOException {
+        ByteBuffer segmentHeader = ByteBuffer.allocate(SEGMENT_HEADER);
+        segmentHeader.putInt(SEGMENT_MAGIC).putInt(VERSION).putLong(segmentNumber).flip();
+        channel.write(segmentHeader, 0);
+        channel.force(true);
+        position = SEGMENT_HEADER;
+        channel.position(position);
+    }
+
+     // Index file: counts, valid length, slot and ballot range, sparse slot offsets, crc32c
+
+    private void writeIndex(long number, SegmentStats segmentStats, long validBytes) throws IOException {
+        int entries = segmentStats.indexedSlots.size();
+        ByteBuffer index = ByteBuffer.allocate(48 + entries * 12 + 4);
+        index.putInt(INDEX_MAGIC).putInt(VERSION)
+                .putLong(segmentStats.records)
+                .putLong(validBytes)
+                .putLong(segmentStats.minSlot)
+                .putLong(segmentStats.maxSlot)
+                .putInt(segmentStats.maxBallot)
+                .putInt(entries);
+        for (int i = 0; i < entries; i++) {
+            index.putLong(segmentStats.indexedSlots.get(i)).putInt(segmentStats.indexedOffsets.get(i));
+        }
+        CRC32C check = new CRC32C();
+        check.update(index.array(), 0, index.position());
+        index.putInt((int) check.getValue()).flip();
+
+        Path temporary = dir.resolve(String.format("%020d.idx.tmp", number));
+        try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (index.hasRemaining()) {
+                file.write(index);
+            }
+            file.force(true);
+        }
+        Files.move(temporary, indexPath(number), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+     // Index of a sealed segment, null when missing or damaged (it is then rebuilt)
+
+    private SegmentIndex readIndex(long number) throws IOException {
+        Path path = indexPath(number);
+        if (!Files.exists(path)) return null;
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (index.remaining() < 52 || index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) return null;
+        CRC32C check = new CRC32C();
+        check.update(index.array(), 0, index.limit() - 4);
+        if ((int) check.getValue() != index.getInt(index.limit() - 4)) {
+            logger.warning(path + " is damaged, rebuilding it");
+            return null;
+        }
+        SegmentIndex segmentIndex = new SegmentIndex();
+        segmentIndex.records = index.getLong(8);
+        segmentIndex.validBytes = index.getLong(16);
+        return segmentIndex;
+    }
+
+    private Path segmentPath(long number) {
+        return dir.resolve(String.format("%020d.log", number));
+    }
+
+    private Path indexPath(long number) {
+        return dir.resolve(String.format("%020d.idx", number));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Committed slots from fromSlot on, read back from the segments: at most
+     * maxSlots consecutive slots and about maxBytes of payload, ending before
+     * the first slot the log holds no commit for. A slot's value is the one
+     * accepted with the ballot of its commit. Safe to call from any thread
+     * while the group appends; a slot committed during the call may be left
+     * for the next one.
+     */
+    public List<Entry> readCommitted(long fromSlot, int maxSlots, long maxBytes) throws IOException {
+        CommittedReader reader = new CommittedReader(fromSlot, maxSlots, maxBytes);
+        if (dir == null) return reader.result;
+        SegmentStats tail = stats;
+        boolean first = true;
+        for (SegmentStats segment : sealed) {
+            // Records of fromSlot or later can only be in a segment that reached it
+            if (segment.number >= tail.number || Math.max(segment.maxSlot, segment.maxCommitted) < fromSlot) {
+                continue;
+            }
+            if (reader.scan(segment, first)) return reader.result;
+            first = false;
+        }
+        reader.scan(tail, first);
+        return reader.result;
+    }
+
+     // Scans segments in order for the commits of a range of slots and the accepts they refer to
+
+    private final class CommittedReader {
+        final long end;
+        final long maxBytes;
+        final List<Entry> result = new ArrayList<>();
+        final Map<Long, Entry> accepted = new HashMap<>();
+        final Map<Long, Entry> committed = new HashMap<>();
+        long next;
+        long bytes = 0;
+
+        CommittedReader(long fromSlot, int maxSlots, long maxBytes) {
+            this.next = fromSlot;
+            this.end = fromSlot + maxSlots;
+            this.maxBytes = maxBytes;
+        }
+
+         // Returns true once the range is complete
+
+        boolean scan(SegmentStats segment, boolean seek) throws IOException {
+            long limit = segment.validBytes;
+            if (limit <= SEGMENT_HEADER) return false;
+            MappedByteBuffer buffer;
+            try (FileChannel file = FileChannel.open(segmentPath(segment.number), StandardOpenOption.READ)) {
+                buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, limit);
+            }
+            int offset = seek ? segment.seek(next) : SEGMENT_HEADER;
+            while (offset + RECORD_HEADER + BODY_HEADER <= limit) {
+                int length = buffer.getInt(offset);
+                int body = offset + RECORD_HEADER;
+                if (length < BODY_HEADER || body + (long) length > limit) break;
+                byte type = buffer.get(body);
+                long slot = buffer.getLong(body + 1);
+                int ballot = buffer.getInt(body + 9);
+                offset = body + length;
+                if (slot < next || slot >= end) continue;
+
+                if (type == ACCEPT) {
+                    accepted.put(slot, new Entry(slot, ballot, buffer.slice(body + BODY_HEADER, length - BODY_HEADER)));
+                } else if (type == COMMIT) {
+                    Entry entry = accepted.get(slot);
+                    if (entry == null && seek) {
+                        // Its accept came before the sparse entry we started from
+                        return scan(segment, false);
+                    }
+                    if (entry != null && entry.ballot == ballot) {
+                        committed.put(slot, entry);
+                        if (advance()) return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean advance() {
+            Entry entry;
+            while ((entry = committed.remove(next)) != null) {
+                result.add(entry);
+                accepted.remove(next);
+                bytes += entry.payload.remaining();
+                next++;
+                if (next == end || bytes >= maxBytes) return true;
+            }
+            return false;
+        }
+    }
+
+     // A committed slot read back from the log; the payload is a read-only view of the mapped segment
+
+    public static final class Entry {
+        final long slot;
+        final int ballot;
+        final ByteBuffer payload;
+
+        Entry(long slot, int ballot, ByteBuffer payload) {
+            this.slot = slot;
+            this.ballot = ballot;
+            this.payload = payload;
+        }
+
+        public long getSlot() { return slot; }
+        public int getBallot() { return ballot; }
+        public ByteBuffer getPayload() { return payload.duplicate(); }
+    }
+
+    /**
+     * Receives the recovered records in log order. Accept payloads are
+     * read-only views of the mapped segment, valid during the call only.
+     */
+    public interface Visitor {
+        void promise(int ballot);
+
+        void accept(long slot, int ballot, ByteBuffer payload);
+
+        void commit(long slot, int ballot);
+    }
+
+    private static final class Segment {
+        final long number;
+        final Path path;
+        long size;
+        long validBytes = 0;
+        MappedByteBuffer buffer;
+        SegmentIndex index;
+
+        Segment(long number, Path path) {
+            this.number = number;
+            this.path = path;
+        }
+    }
+
+    private static final class SegmentIndex {
+        long records;
+        long validBytes;
+    }
+
+     // What a segment holds, gathered while appending or replaying, for its index
+
+    private static final class SegmentStats {
+        long number;
+        // Bytes holding whole records; readers map no further
+        volatile long validBytes;
+        long records = 0;
+        long minSlot = Long.MAX_VALUE;
+        volatile long maxSlot = 0;
+        // Highest committed slot; a segment may hold commits of slots above all its accepts
+        volatile long maxCommitted = 0;
+        int maxBallot = 0;
+        long accepts = 0;
+        // Read while appended to: slot goes in before offset, readers go by the offset count
+        final List<Long> indexedSlots = new CopyOnWriteArrayList<>();
+        final List<Integer> indexedOffsets = new CopyOnWriteArrayList<>();
+
+        void add(byte type, long slot, int ballot, long offset) {
+            records++;
+            maxBallot = Math.max(maxBallot, ballot);
+            if (type == COMMIT) {
+                maxCommitted = Math.max(maxCommitted, slot);
+            }
+            if (type != ACCEPT) return;
+            minSlot = Math.min(minSlot, slot);
+            maxSlot = Math.max(maxSlot, slot);
+            if (accepts++ % INDEX_INTERVAL == 0) {
+                indexedSlots.add(slot);
+                indexedOffsets.add((int) offset);
+            }
+        }
+
+         // Where to start looking for the accept of a slot: a sparse entry before it, with one to spare
+
+        int seek(long slot) {
+            int entries = indexedOffsets.size();
+            int found = -1;
+            for (int i = 0; i < entries && indexedSlots.get(i) <= slot; i++) {
+                found = i;
+            }
+            return found > 0 ? indexedOffsets.get(found - 1) : SEGMENT_HEADER;
+        }
+    }
+}
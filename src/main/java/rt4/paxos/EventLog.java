@@ -0,0 +1,387 @@
+package rt4.paxos;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous, structured log of the protocol events a node handles.
+ *
+ * A handler hands over the raw fields of an event (type, group, ballot,
+ * value, a constant message template and its arguments) and nothing else:
+ * events below -Dpaxos.log.level (INFO), or below the java.util.logging level
+ * of this class's logger (so Logger.getLogger("rt4.paxos").setLevel(WARNING)
+ * silences them too), are discarded before anything is allocated, and the
+ * message text is only built by the background writer.
+ * Events go through a bounded queue; when it is full they are dropped and
+ * counted, so a slow console never holds up a handler.
+ *
+ * The writer prints one line per event to stdout (-Dpaxos.log.console,
+ * default true), keeps the latest events for GetServerStatus, and with
+ * -Dpaxos.log.file=&lt;path&gt; also appends them to a file rotated at
+ * -Dpaxos.log.maxBytes (16 MB), keeping -Dpaxos.log.files (4) old files as
+ * path.1, path.2, ... The file holds JSON lines, or with
+ * -Dpaxos.log.format=binary the records described in {@link #writeBinary}.
+ *
+ * Templates use "{}" placeholders, filled in order with the arguments.
+ */
+public class EventLog implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(EventLog.class.getName());
+
+    public static final String LEVEL_PROPERTY = "paxos.log.level";
+    public static final String FILE_PROPERTY = "paxos.log.file";
+    public static final String FORMAT_PROPERTY = "paxos.log.format";
+
+    public static final int BINARY_MAGIC = 0x50584C47;  // "PXLG"
+    public static final int BINARY_VERSION = 1;
+
+    private static final int QUEUE_CAPACITY = Integer.getInteger("paxos.log.queue", 16384);
+    private static final long MAX_FILE_BYTES = Long.getLong("paxos.log.maxBytes", 16L << 20);
+    private static final int MAX_FILES = Integer.getInteger("paxos.log.files", 4);
+    private static final int RECENT_EVENTS = 100;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final String nodeId;
+    private final int threshold;
+    private final boolean multiGroup;
+    private final boolean console;
+    private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // Owned by the writer thread, except the recent ring (guarded by itself)
+    private final Event[] recent = new Event[RECENT_EVENTS];
+    private long recentCount = 0;
+    private final PrintStream stdout = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+    private final Path file;
+    private final boolean binary;
+    private OutputStream fileOut;
+    private long fileBytes;
+
+    public EventLog(String nodeId, Level level, boolean multiGroup, boolean console, Path file, boolean binary) {
+        this.nodeId = nodeId;
+        this.threshold = level.intValue();
+        this.multiGroup = multiGroup;
+        this.console = console;
+        this.file = file;
+        this.binary = binary;
+        if (file != null) {
+            try {
+                openFile();
+            } catch (IOException e) {
+                logger.warning("Could not open event log " + file + ": " + e.getMessage());
+            }
+        }
+        this.writer = new Thread(this::drain, "paxos-events");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static EventLog fromSystemProperties(String nodeId, int groupCount) {
+        Level level = Level.parse(System.getProperty(LEVEL_PROPERTY, "INFO"));
+        boolean console = Boolean.parseBoolean(System.getProperty("paxos.log.console", "true"));
+        String path = System.getProperty(FILE_PROPERTY);
+        boolean binary = "binary".equalsIgnoreCase(System.getProperty(FORMAT_PROPERTY, "json"));
+        return new EventLog(nodeId, level, groupCount > 1, console,
+                path == null || path.isEmpty() ? null : Paths.get(path), binary);
+    }
+
+    public boolean isLoggable(Level level) {
+        return level.intValue() >= threshold && logger.isLoggable(level) && !closed;
+    }
+
+    public void log(Level level, String type, int groupId, int ballot, int value, String template) {
+        if (isLoggable(level)) enqueue(new Event(level, type, groupId, ballot, value, template, null, null, null));
+    }
+
+    public void log(Level level, String type, int groupId, int ballot, int value, String template, Object arg) {
+        if (isLoggable(level)) enqueue(new Event(level, type, groupId, ballot, value, template, arg, null, null));
+    }
+
+    public void log(Level level, String type, int groupId, int ballot, int value, String template,
+                    Object arg0, Object arg1) {
+        if (isLoggable(level)) enqueue(new Event(level, type, groupId, ballot, value, template, arg0, arg1, null));
+    }
+
+    public void log(Level level, String type, int groupId, int ballot, int value, String template,
+                    Object arg0, Object arg1, Object arg2) {
+        if (isLoggable(level)) enqueue(new Event(level, type, groupId, ballot, value, template, arg0, arg1, arg2));
+    }
+
+    private void enqueue(Event event) {
+        if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+     // The latest events, newest first
+
+    public List<Event> recent(int max) {
+        List<Event> events = new ArrayList<>(Math.min(max, RECENT_EVENTS));
+        synchronized (recent) {
+            for (long i = recentCount - 1; i >= 0 && i >= recentCount - RECENT_EVENTS && events.size() < max; i--) {
+                events.add(recent[(int) (i % RECENT_EVENTS)]);
+            }
+        }
+        return events;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        List<Event> batch = new ArrayList<>(256);
+        long reportedDrops = 0;
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Event first = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, 255);
+                    for (Event event : batch) {
+                        write(event);
+                    }
+                    batch.clear();
+                }
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    write(new Event(Level.WARNING, "LOG", 0, 0, 0,
+                            "Dropped {} events, the log writer could not keep up", drops - reportedDrops, null, null));
+                    reportedDrops = drops;
+                }
+                flush();
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+        }
+        flush();
+    }
+
+    private void write(Event event) {
+        synchronized (recent) {
+            recent[(int) (recentCount++ % RECENT_EVENTS)] = event;
+        }
+        if (console) {
+            stdout.append(nodeId).append(' ').append(event.getTimestamp()).append(' ')
+                    .append(event.level.getName()).append(" [").append(event.type).append("] ");
+            if (multiGroup) {
+                stdout.append("[G").append(String.valueOf(event.groupId)).append("] ");
+            }
+            stdout.append(event.getMessage()).append('\n');
+        }
+        if (fileOut != null) {
+            try {
+                if (binary) {
+                    writeBinary(event);
+                } else {
+                    writeJson(event);
+                }
+                if (fileBytes >= MAX_FILE_BYTES) {
+                    rotate();
+                }
+            } catch (IOException e) {
+                logger.warning("Event log file disabled: " + e.getMessage());
+                closeFile();
+            }
+        }
+    }
+
+    private void writeJson(Event event) throws IOException {
+        StringBuilder json = new StringBuilder(160);
+        json.append("{\"ts\":").append(event.timeMillis)
+                .append(",\"level\":\"").append(event.level.getName())
+                .append("\",\"node\":\"").append(nodeId)
+                .append("\",\"type\":\"").append(event.type)
+                .append("\",\"group\":").append(event.groupId)
+                .append(",\"ballot\":").append(event.ballot)
+                .append(",\"value\":").append(event.value)
+                .append(",\"msg\":\"");
+        String message = event.getMessage();
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(' ');
+            } else {
+                json.append(c);
+            }
+        }
+        json.append("\"}\n");
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        fileOut.write(bytes);
+        fileBytes += bytes.length;
+    }
+
+    /**
+     * Binary record (big endian): length of the rest (2), epoch millis (8),
+     * level (2), group (4), ballot (4), value (4), type and message as
+     * modified UTF-8 (DataOutput.writeUTF). A file starts with the magic
+     * "PXLG" and a version (4 + 4).
+     */
+    private void writeBinary(Event event) throws IOException {
+        String message = event.getMessage();
+        if (message.length() > 8192) {
+            message = message.substring(0, 8192);
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64 + message.length());
+        DataOutputStream data = new DataOutputStream(record);
+        data.writeLong(event.timeMillis);
+        data.writeShort(event.level.intValue());
+        data.writeInt(event.groupId);
+        data.writeInt(event.ballot);
+        data.writeInt(event.value);
+        data.writeUTF(event.type);
+        data.writeUTF(message);
+
+        DataOutputStream out = new DataOutputStream(fileOut);
+        out.writeShort(record.size());
+        record.writeTo(out);
+        fileBytes += 2 + record.size();
+    }
+
+    private void openFile() throws IOException {
+        fileOut = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+        fileBytes = 0;
+        if (binary) {
+            DataOutputStream header = new DataOutputStream(fileOut);
+            header.writeInt(BINARY_MAGIC);
+            header.writeInt(BINARY_VERSION);
+            fileBytes = 8;
+        }
+    }
+
+     // path -> path.1 -> path.2 ..., the oldest beyond MAX_FILES is deleted
+
+    private void rotate() throws IOException {
+        fileOut.close();
+        Files.deleteIfExists(Paths.get(file + "." + MAX_FILES));
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            Path older = Paths.get(file + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        openFile();
+    }
+
+    private void flush() {
+        stdout.flush();
+        if (fileOut != null) {
+            try {
+                fileOut.flush();
+            } catch (IOException e) {
+                logger.warning("Event log file disabled: " + e.getMessage());
+                closeFile();
+            }
+        }
+    }
+
+    private void closeFile() {
+        try {
+            fileOut.close();
+        } catch (IOException e) {
+            // Already failing, nothing more to report
+        }
+        fileOut = null;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (fileOut != null) {
+            closeFile();
+        }
+    }
+
+    /**
+     * One event as handed over by a handler. The message is formatted on
+     * first use, normally by the writer thread.
+     */
+    public static final class Event {
+        private final long timeMillis = System.currentTimeMillis();
+        private final Level level;
+        private final String type;
+        private final int groupId;
+        private final int ballot;
+        private final int value;
+        private final String template;
+        private final Object arg0;
+        private final Object arg1;
+        private final Object arg2;
+        private volatile String message;
+
+        Event(Level level, String type, int groupId, int ballot, int value, String template,
+              Object arg0, Object arg1, Object arg2) {
+            this.level = level;
+            this.type = type;
+            this.groupId = groupId;
+            this.ballot = ballot;
+            this.value = value;
+            this.template = template;
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+        }
+
+        public String getType() { return type; }
+        public int getGroupId() { return groupId; }
+        public int getBallot() { return ballot; }
+        public int getValue() { return value; }
+
+        public String getTimestamp() {
+            return TIME_FORMAT.format(Instant.ofEpochMilli(timeMillis));
+        }
+
+        public String getMessage() {
+            String formatted = message;
+            if (formatted == null) {
+                formatted = format();
+                message = formatted;
+            }
+            return formatted;
+        }
+
+        private String format() {
+            StringBuilder text = new StringBuilder(template.length() + 32);
+            Object[] args = {arg0, arg1, arg2};
+            int next = 0;
+            int from = 0;
+            int at;
+            while (next < args.length && (at = template.indexOf("{}", from)) >= 0) {
+                text.append(template, from, at).append(args[next++]);
+                from = at + 2;
+            }
+            return text.append(template, from, template.length()).toString();
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package rt4.paxos;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Injects network faults into PaxosService calls (delay, drop, duplicate,
+ * reorder) per peer and per method, so throughput and failover can be
+ * measured under slow links, loss and asymmetric partitions on one machine.
+ *
+ * Enabled with -Dpaxos.faults=true: PaxosProposer installs the server
+ * interceptor, the peer channels of the Replicator and Learner the client
+ * interceptor, and the ConfigureFaults admin RPC replaces the rules at
+ * runtime. The first rule matching a call's direction, peer and method
+ * applies; without rules a call passes through after one volatile read.
+ *
+ * Outbound calls carry the caller's node id in a paxos-from header so that
+ * inbound rules can tell peers apart. A dropped call is never sent (or never
+ * handled) and fails at its deadline, like a lost message. A duplicated call
+ * sends a unary request a second time and ignores the second response.
+ * Reordering holds a call back by a random time within the rule's window so
+ * that later calls overtake it. Duplication only applies to outbound calls.
+ */
+public class FaultInjector {
+    private static final Logger logger = Logger.getLogger(FaultInjector.class.getName());
+
+    public static final String PROPERTY = "paxos.faults";
+    public static final Metadata.Key<String> FROM = Metadata.Key.of("paxos-from", Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final FaultInjector DISABLED = new FaultInjector(null, false);
+    private static volatile FaultInjector instance = DISABLED;
+
+    private final String selfId;
+    private final boolean enabled;
+    private final ScheduledExecutorService scheduler;
+    private volatile List<FaultRule> rules = List.of();
+
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder duplicated = new LongAdder();
+    private final LongAdder reordered = new LongAdder();
+
+    public FaultInjector(String selfId, boolean enabled) {
+        this.selfId = selfId;
+        this.enabled = enabled;
+        this.scheduler = enabled ? Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "paxos-faults");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+     // Install the process-wide injector if -Dpaxos.faults=true
+
+    public static void initFromSystemProperties(String selfId) {
+        if (Boolean.getBoolean(PROPERTY)) {
+            instance = new FaultInjector(selfId, true);
+            logger.warning("Fault injection enabled, ConfigureFaults can degrade this node's calls");
+        }
+    }
+
+    public static FaultInjector get() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Replaces the rules and returns them with the counters. Rejects rates
+     * outside [0, 1] and negative times with IllegalArgumentException.
+     */
+    public FaultConfig configure(FaultConfig config) {
+        for (FaultRule rule : config.getRulesList()) {
+            if (!isRate(rule.getDropRate()) || !isRate(rule.getDuplicateRate()) || !isRate(rule.getReorderRate())) {
+                throw new IllegalArgumentException("Rates must be within [0, 1]: " + rule);
+            }
+            if (rule.getDelayMs() < 0 || rule.getJitterMs() < 0 || rule.getReorderWindowMs() < 0) {
+                throw new IllegalArgumentException("Times must not be negative: " + rule);
+            }
+        }
+        rules = List.copyOf(config.getRulesList());
+        logger.warning("Injected faults now: " + (rules.isEmpty() ? "none" : rules.size() + " rule(s)"));
+        return status();
+    }
+
+    public FaultConfig status() {
+        return FaultConfig.newBuilder()
+                .addAllRules(rules)
+                .setDelayed(delayed.sum())
+                .setDropped(dropped.sum())
+                .setDuplicated(duplicated.sum())
+                .setReordered(reordered.sum())
+                .build();
+    }
+
+    private static boolean isRate(double rate) {
+        return rate >= 0 && rate <= 1;
+    }
+
+    private FaultRule match(String peer, String method, FaultRule.Direction direction) {
+        List<FaultRule> current = rules;
+        if (current.isEmpty() || method.equals("ConfigureFaults")) return null;
+        for (FaultRule rule : current) {
+            if (rule.getDirection() != FaultRule.Direction.BOTH && rule.getDirection() != direction) continue;
+            if (!matches(rule.getPeer(), peer) || !matches(rule.getMethod(), method)) continue;
+            return rule;
+        }
+        return null;
+    }
+
+    private static boolean matches(String pattern, String value) {
+        return pattern.isEmpty() || pattern.equals("*") || pattern.equals(value);
+    }
+
+     // Delay in milliseconds for a call under the rule, or -1 to drop it
+
+    private long decide(FaultRule rule) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (rule.getDropRate() > 0 && random.nextDouble() < rule.getDropRate()) {
+            dropped.increment();
+            return -1;
+        }
+        long delay = rule.getDelayMs();
+        if (rule.getJitterMs() > 0) {
+            delay += random.nextInt(rule.getJitterMs());
+        }
+        if (rule.getReorderRate() > 0 && random.nextDouble() < rule.getReorderRate()) {
+            reordered.increment();
+            delay += 1 + random.nextInt(Math.max(1, rule.getReorderWindowMs()));
+        }
+        if (delay > 0) {
+            delayed.increment();
+        }
+        return delay;
+    }
+
+    private boolean duplicate(FaultRule rule) {
+        if (rule.getDuplicateRate() > 0 && ThreadLocalRandom.current().nextDouble() < rule.getDuplicateRate()) {
+            duplicated.increment();
+            return true;
+        }
+        return false;
+    }
+
+    public ClientInterceptor clientInterceptor() {
+        return new ClientInterceptor() {
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+                    MethodDescriptor<ReqT, RespT> method, CallOptions options, Channel next) {
+                if (!enabled) return next.newCall(method, options);
+
+                FaultRule rule = match(next.authority(), method.getBareMethodName(), FaultRule.Direction.OUTBOUND);
+                long delay = rule == null ? 0 : decide(rule);
+                if (delay < 0) {
+                    return new DroppedCall<>(options.getDeadline());
+                }
+                ClientCall<ReqT, RespT> call = new TaggedCall<>(next.newCall(method, options));
+                if (rule != null && method.getType() == MethodDescriptor.MethodType.UNARY && duplicate(rule)) {
+                    call = new DuplicatingCall<>(call, method, options, next);
+                }
+                return delay > 0 ? new DelayedCall<>(call, delay) : call;
+            }
+        };
+    }
+
+    public ServerInterceptor serverInterceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+                    ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+                if (!enabled || rules.isEmpty()) return next.startCall(call, headers);
+
+                String from = headers.get(FROM);
+                FaultRule rule = match(from == null ? "" : from, call.getMethodDescriptor().getBareMethodName(),
+                        FaultRule.Direction.INBOUND);
+                long delay = rule == null ? 0 : decide(rule);
+                if (delay == 0) return next.startCall(call, headers);
+                if (delay < 0) {
+                    // Lost on the way in: the caller's deadline cancels the call
+                    if (Context.current().getDeadline() == null) {
+                        call.close(Status.UNAVAILABLE.withDescription("Dropped by fault injection"), new Metadata());
+                    }
+                    return new ServerCall.Listener<ReqT>() {};
+                }
+                return new DelayedListener<>(call, headers, next, delay);
+            }
+        };
+    }
+
+     // Outbound call that adds this node's id to the headers
+
+    private class TaggedCall<ReqT, RespT> extends ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT> {
+        TaggedCall(ClientCall<ReqT, RespT> delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void start(Listener<RespT> listener, Metadata headers) {
+            headers.put(FROM, selfId);
+            super.start(listener, headers);
+        }
+    }
+
+     // A call that is never sent and fails at its deadline
+
+    private class DroppedCall<ReqT, RespT> extends ClientCall<ReqT, RespT> {
+        private final Deadline deadline;
+        private Listener<RespT> listener;
+        private boolean closed;
+
+        DroppedCall(Deadline deadline) {
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void start(Listener<RespT> listener, Metadata headers) {
+            this.listener = listener;
+            if (deadline == null) {
+                close(Status.UNAVAILABLE.withDescription("Dropped by fault injection"));
+            } else {
+                scheduler.schedule(() -> close(Status.DEADLINE_EXCEEDED.withDescription("Dropped by fault injection")),
+                        Math.max(0, deadline.timeRemaining(TimeUnit.NANOSECONDS)), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void close(Status status) {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            listener.onClose(status, new Metadata());
+        }
+
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void cancel(String message, Throwable cause) {
+            if (listener != null) {
+                close(Status.CANCELLED.withDescription(message).withCause(cause));
+            }
+        }
+
+        @Override
+        public void halfClose() {
+        }
+
+        @Override
+        public void sendMessage(ReqT message) {
+        }
+    }
+
+     // Sends a unary request a second time once the first is complete, ignoring the copy's response
+
+    private class DuplicatingCall<ReqT, RespT> extends ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT> {
+        private final MethodDescriptor<ReqT, RespT> method;
+        private final CallOptions options;
+        private final Channel channel;
+        private final Metadata headers = new Metadata();
+        private ReqT message;
+
+        DuplicatingCall(ClientCall<ReqT, RespT> delegate, MethodDescriptor<ReqT, RespT> method,
+                        CallOptions options, Channel channel) {
+            super(delegate);
+            this.method = method;
+            this.options = options;
+            this.channel = channel;
+        }
+
+        @Override
+        public void start(Listener<RespT> listener, Metadata headers) {
+            super.start(listener, headers);
+            this.headers.merge(headers);
+        }
+
+        @Override
+        public void sendMessage(ReqT message) {
+            this.message = message;
+            super.sendMessage(message);
+        }
+
+        @Override
+        public void halfClose() {
+            super.halfClose();
+            if (message == null) return;
+            ClientCall<ReqT, RespT> copy = channel.newCall(method, options);
+            copy.start(new Listener<RespT>() {}, headers);
+            copy.request(1);
+            copy.sendMessage(message);
+            copy.halfClose();
+        }
+    }
+
+    /**
+     * Holds every operation on the call until the delay is over, then replays
+     * them in order; operations made after that go straight through.
+     */
+    private class DelayedCall<ReqT, RespT> extends ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT> {
+        private List<Runnable> pending = new ArrayList<>();
+
+        DelayedCall(ClientCall<ReqT, RespT> delegate, long delayMillis) {
+            super(delegate);
+            scheduler.schedule(this::release, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void release() {
+            while (true) {
+                List<Runnable> operations;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        pending = null;
+                        return;
+                    }
+                    operations = pending;
+                    pending = new ArrayList<>();
+                }
+                for (Runnable operation : operations) {
+                    operation.run();
+                }
+            }
+        }
+
+        private void run(Runnable operation) {
+            synchronized (this) {
+                if (pending != null) {
+                    pending.add(operation);
+                    return;
+                }
+            }
+            operation.run();
+        }
+
+        @Override
+        public void start(Listener<RespT> listener, Metadata headers) {
+            run(() -> super.start(listener, headers));
+        }
+
+        @Override
+        public void request(int numMessages) {
+            run(() -> super.request(numMessages));
+        }
+
+        @Override
+        public void cancel(String message, Throwable cause) {
+            run(() -> super.cancel(message, cause));
+        }
+
+        @Override
+        public void halfClose() {
+            run(super::halfClose);
+        }
+
+        @Override
+        public void sendMessage(ReqT message) {
+            run(() -> super.sendMessage(message));
+        }
+
+        @Override
+        public synchronized boolean isReady() {
+            return pending == null && super.isReady();
+        }
+    }
+
+    /**
+     * Starts the handler only after the delay. Until then the request is not
+     * read (nothing asks for it), and the transport's callbacks are kept and
+     * replayed to the handler in order.
+     */
+    private class DelayedListener<ReqT, RespT> extends ServerCall.Listener<ReqT> {
+        private final Context context = Context.current();
+        private List<Consumer<ServerCall.Listener<ReqT>>> pending = new ArrayList<>();
+        private ServerCall.Listener<ReqT> delegate;
+
+        DelayedListener(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next,
+                        long delayMillis) {
+            scheduler.schedule(() -> context.run(() -> release(next.startCall(call, headers))),
+                    delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void release(ServerCall.Listener<ReqT> listener) {
+            while (true) {
+                List<Consumer<ServerCall.Listener<ReqT>>> callbacks;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        pending = null;
+                        delegate = listener;
+                        return;
+                    }
+                    callbacks = pending;
+                    pending = new ArrayList<>();
+                }
+                for (Consumer<ServerCall.Listener<ReqT>> callback : callbacks) {
+                    callback.accept(listener);
+                }
+            }
+        }
+
+        private void run(Consumer<ServerCall.Listener<ReqT>> callback) {
+            ServerCall.Listener<ReqT> listener;
+            synchronized (this) {
+                if (pending != null) {
+                    pending.add(callback);
+                    return;
+                }
+                listener = delegate;
+            }
+            callback.accept(listener);
+        }
+
+        @Override
+        public void onMessage(ReqT message) {
+            run(listener -> listener.onMessage(message));
+        }
+
+        @Override
+        public void onHalfClose() {
+            run(ServerCall.Listener::onHalfClose);
+        }
+
+        @Override
+        public void onCancel() {
+            run(ServerCall.Listener::onCancel);
+        }
+
+        @Override
+        public void onComplete() {
+            run(ServerCall.Listener::onComplete);
+        }
+
+        @Override
+        public void onReady() {
+            run(ServerCall.Listener::onReady);
+        }
+    }
+
+    /**
+     * Command line front end of ConfigureFaults. Each rule is a comma
+     * separated list of key=value pairs (peer, method, dir=in|out|both,
+     * delay, jitter, drop, dup, reorder, window); no rules clears them:
+     * <pre>
+     * FaultInjector localhost:50051 peer=localhost:50052,method=ProposeValue,delay=50,drop=0.1
+     * </pre>
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: FaultInjector <host:port> [rule ...]");
+            System.exit(1);
+        }
+        FaultConfig.Builder config = FaultConfig.newBuilder();
+        for (int i = 1; i < args.length; i++) {
+            config.addRules(parseRule(args[i]));
+        }
+
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(args[0]).usePlaintext().build();
+        try {
+            FaultConfig active = PaxosServiceGrpc.newBlockingStub(channel)
+                    .withDeadlineAfter(5, TimeUnit.SECONDS)
+                    .configureFaults(config.build());
+            System.out.println(active);
+        } finally {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    static FaultRule parseRule(String spec) {
+        FaultRule.Builder rule = FaultRule.newBuilder();
+        for (String pair : spec.split(",")) {
+            String[] kv = pair.split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + pair);
+            }
+            String value = kv[1].trim();
+            switch (kv[0].trim()) {
+                case "peer": rule.setPeer(value); break;
+                case "method": rule.setMethod(value); break;
+                case "dir":
+                    rule.setDirection(value.equals("in") ? FaultRule.Direction.INBOUND
+                            : value.equals("out") ? FaultRule.Direction.OUTBOUND : FaultRule.Direction.BOTH);
+                    break;
+                case "delay": rule.setDelayMs(Integer.parseInt(value)); break;
+                case "jitter": rule.setJitterMs(Integer.parseInt(value)); break;
+                case "drop": rule.setDropRate(Double.parseDouble(value)); break;
+                case "dup": rule.setDuplicateRate(Double.parseDouble(value)); break;
+                case "reorder": rule.setReorderRate(Double.parseDouble(value)); break;
+                case "window": rule.setReorderWindowMs(Integer.parseInt(value)); break;
+                default: throw new IllegalArgumentException("Unknown rule key " + kv[0]);
+            }
+        }
+        return rule.build();
+    }
+}
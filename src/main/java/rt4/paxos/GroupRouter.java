@@ -0,0 +1,88 @@
+package rt4.paxos;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps keys to Paxos groups and groups to their preferred leader.
+ *
+ * The 32-bit key hash space is cut into groupCount contiguous ranges, so each
+ * group owns one range and a range can later be split or moved as a unit.
+ * Preferred leaders are assigned round-robin so every node leads about the
+ * same number of groups; nodes and clients agree on them as long as they all
+ * pass the voters through {@link #leaderOrder}.
+ */
+public class GroupRouter {
+    public static final String GROUPS_PROPERTY = "paxos.groups";
+
+    private final int groupCount;
+
+    public GroupRouter(int groupCount) {
+        if (groupCount < 1) {
+            throw new IllegalArgumentException("groupCount must be at least 1, got " + groupCount);
+        }
+        this.groupCount = groupCount;
+    }
+
+    public static GroupRouter fromSystemProperties() {
+        return new GroupRouter(Integer.getInteger(GROUPS_PROPERTY, 1));
+    }
+
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    public int groupForKey(String key) {
+        return groupForKey(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int groupForKey(byte[] key) {
+        return groupForHash(hash(key));
+    }
+
+     // Range lookup: scale the unsigned hash into [0, groupCount)
+
+    public int groupForHash(int hash) {
+        return (int) (((hash & 0xFFFFFFFFL) * groupCount) >>> 32);
+    }
+
+     // First hash (inclusive, unsigned) owned by the group
+
+    public long rangeStart(int groupId) {
+        return ((long) groupId << 32) / groupCount + (((long) groupId << 32) % groupCount == 0 ? 0 : 1);
+    }
+
+     // The voter ids in the order preferred leaders are assigned, the same whatever order they were listed in
+
+    public static List<String> leaderOrder(List<String> nodeIds) {
+        List<String> sorted = new ArrayList<>(nodeIds);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    public String preferredLeader(int groupId, List<String> nodeIds) {
+        return nodeIds.get(groupId % nodeIds.size());
+    }
+
+    public boolean isPreferredLeader(int groupId, String nodeId, List<String> nodeIds) {
+        return nodeId.equals(preferredLeader(groupId, nodeIds));
+    }
+
+     // FNV-1a followed by a murmur finalizer to spread nearby keys across ranges
+
+    static int hash(byte[] key) {
+        int h = 0x811C9DC5;
+        for (byte b : key) {
+            h ^= b;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,75 @@
+package rt4.paxos;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Key-value store driven by KvCommand messages.
+ *
+ * Commands are parsed with aliasing enabled, so the key and value are views of
+ * the log buffer; only what is stored is copied, once. Every command touches
+ * its one key, so commands on different keys are applied in parallel.
+ */
+public class KeyValueStateMachine implements StateMachine {
+    private final Map<ByteString, ByteString> store = new ConcurrentHashMap<>();
+
+    @Override
+    public ByteString apply(long slot, ByteBuffer command) {
+        KvCommand kv;
+        try {
+            CodedInputStream input = CodedInputStream.newInstance(command);
+            input.enableAliasing(true);
+            kv = KvCommand.parseFrom(input);
+        } catch (IOException e) {
+            // Every replica sees the same bytes, so a malformed command is a no-op everywhere
+            return ByteString.EMPTY;
+        }
+
+        switch (kv.getOp()) {
+            case PUT:
+                store.put(copy(kv.getKey()), copy(kv.getValue()));
+                return ByteString.EMPTY;
+            case DELETE:
+                return orEmpty(store.remove(kv.getKey()));
+            case GET:
+                return orEmpty(store.get(kv.getKey()));
+            default:
+                return ByteString.EMPTY;
+        }
+    }
+
+    @Override
+    public List<ByteString> footprint(ByteBuffer command) {
+        try {
+            CodedInputStream input = CodedInputStream.newInstance(command);
+            input.enableAliasing(true);
+            return List.of(KvCommand.parseFrom(input).getKey());
+        } catch (IOException e) {
+            // Applied as a no-op
+            return List.of();
+        }
+    }
+
+    @Override
+    public ByteString read(ByteString key) {
+        return store.get(key);
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    private static ByteString copy(ByteString aliased) {
+        return ByteString.copyFrom(aliased.asReadOnlyByteBuffer());
+    }
+
+    private static ByteString orEmpty(ByteString value) {
+        return value == null ? ByteString.EMPTY : value;
+    }
+}
@@ -0,0 +1,160 @@
+package rt4.paxos;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Moves group leadership away from a loaded node. Every interval the node
+ * compares its own load with the load its peers report in ServerStatus and,
+ * when a peer would be clearly better off leading one more group, hands one
+ * of its groups to it with Replicator.transferLeadership.
+ *
+ * A node's score is its CPU load, plus its queued commands and mean peer
+ * round trip scaled to the same range, plus a fixed weight per group it
+ * leads. A group only moves when the receiver, counted with the extra
+ * group, still scores MARGIN below the sender, and at most one group moves
+ * per round and per COOLDOWN, so leadership does not flap between nodes
+ * whose loads are close. Off unless -Dpaxos.placement=true.
+ */
+public class LeaderPlacement {
+    private static final Logger logger = Logger.getLogger(LeaderPlacement.class.getName());
+
+    public static final String ENABLED_PROPERTY = "paxos.placement";
+    private static final long INTERVAL_MS = Long.getLong("paxos.placement.intervalMs", 5000);
+    private static final double MARGIN = Double.parseDouble(System.getProperty("paxos.placement.margin", "0.2"));
+    private static final long COOLDOWN_MS = 6 * INTERVAL_MS;
+
+    // Load that counts as much as a fully busy CPU; each term is capped there
+    private static final double QUEUE_SCALE = 1000;
+    private static final double RTT_SCALE_MS = 50;
+    private static final double LEADER_WEIGHT = 0.25;
+    private static final long STATUS_DEADLINE_MS = 500;
+
+    private final PaxosServiceImpl service;
+    private final Replicator replicator;
+    private final Map<Integer, Long> lastMoved = new HashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "paxos-placement");
+        t.setDaemon(true);
+        return t;
+    });
+    private long lastMoveMillis = 0;
+
+    public LeaderPlacement(PaxosServiceImpl service, Replicator replicator) {
+        this.service = service;
+        this.replicator = replicator;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                rebalance();
+            } catch (RuntimeException e) {
+                logger.warning("Leader placement round failed: " + e);
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+     // CPU load of this JVM between 0 and 1, 0 when the platform does not report it
+
+    public static double processCpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+            return load < 0 ? 0 : load;
+        }
+        return 0;
+    }
+
+    private static double score(ServerStatus status, int ledGroups, boolean withRtt) {
+        double rtt = withRtt ? Math.min(1, status.getMeanPeerRttUs() / 1000.0 / RTT_SCALE_MS) : 0;
+        return status.getCpuLoad()
+                + Math.min(1, status.getQueueDepth() / QUEUE_SCALE)
+                + rtt
+                + LEADER_WEIGHT * ledGroups;
+    }
+
+    private void rebalance() {
+        long now = System.currentTimeMillis();
+        if (now - lastMoveMillis < COOLDOWN_MS) return;
+
+        PaxosGroup candidate = null;
+        int led = 0;
+        for (PaxosGroup group : service.getGroups()) {
+            if (group.getLeaderBallot() == 0) continue;
+            led++;
+            Long moved = lastMoved.get(group.getGroupId());
+            if (moved != null && now - moved < COOLDOWN_MS) continue;
+            // The group with the least to drain changes hands the fastest
+            if (candidate == null || group.backlog() < candidate.backlog()) {
+                candidate = group;
+            }
+        }
+        if (candidate == null) return;
+
+        ServerStatus self = ServerStatus.newBuilder()
+                .setCpuLoad(processCpuLoad())
+                .setQueueDepth(queueDepth())
+                .setMeanPeerRttUs(replicator.meanPeerRttMicros())
+                .build();
+
+        int target = -1;
+        double selfScore = 0;
+        double targetScore = 0;
+        for (int peer = 0; peer < replicator.getPeerAddresses().size(); peer++) {
+            ServerStatus status;
+            try {
+                status = replicator.peerStatus(peer, STATUS_DEADLINE_MS).get(STATUS_DEADLINE_MS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // Unreachable peers are not placement targets
+                continue;
+            }
+            if ("learner".equals(status.getRole())) continue;
+            // Followers that never called a peer report no round trip; compare it only when both know it
+            boolean withRtt = self.getMeanPeerRttUs() > 0 && status.getMeanPeerRttUs() > 0;
+            double ownScore = score(self, led, withRtt);
+            double peerScore = score(status, status.getLedGroupsCount() + 1, withRtt);
+            if (target < 0 || ownScore - peerScore > selfScore - targetScore) {
+                target = peer;
+                selfScore = ownScore;
+                targetScore = peerScore;
+            }
+        }
+        if (target < 0 || selfScore - targetScore < MARGIN) return;
+
+        int groupId = candidate.getGroupId();
+        String targetId = replicator.nodeId(target);
+        logger.info(String.format("Group %d: moving leadership to %s (score %.2f here, %.2f there)",
+                groupId, targetId, selfScore, targetScore));
+        lastMoveMillis = now;
+        lastMoved.put(groupId, now);
+        replicator.transferLeadership(candidate, targetId).whenComplete((response, error) -> {
+            if (error != null || !response.getAccepted()) {
+                logger.info("Group " + groupId + ": leadership stays here (" +
+                        (error != null ? error.getMessage() : response.getError()) + ")");
+            }
+        });
+    }
+
+    private long queueDepth() {
+        long depth = replicator.getAdmission().getInFlightCommands();
+        for (PaxosGroup group : service.getGroups()) {
+            depth += group.backlog();
+        }
+        return depth;
+    }
+}
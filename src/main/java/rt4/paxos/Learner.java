@@ -0,0 +1,103 @@
+package rt4.paxos;
+
+import io.grpc.stub.StreamObserver;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Non-voting replica: follows the committed log of the voting nodes through
+ * SubscribeCommitted and applies it to its own state machines, without ever
+ * promising or accepting. Learners serve reads, so read capacity grows with
+ * them while write quorums stay the size of the voter set.
+ *
+ * Each group follows one source at a time. When the stream breaks the learner
+ * moves to the next source and resumes from its first unapplied slot.
+ */
+public class Learner {
+    private static final Logger logger = Logger.getLogger(Learner.class.getName());
+
+    public static final String ROLE_PROPERTY = "paxos.role";
+    private static final long RESUBSCRIBE_DELAY_MS = 500;
+
+    private final String selfId;
+    private final PaxosGroup[] groups;
+    private final ServerMetrics metrics;
+    private final List<String> sources;
+    private final ScheduledExecutorService resubscriber = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "paxos-learner");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean stopped = false;
+
+    public Learner(String selfId, PaxosGroup[] groups, ServerMetrics metrics, List<String> sources) {
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("A learner needs at least one node to follow (-D" +
+                    Replicator.PEERS_PROPERTY + ")");
+        }
+        this.selfId = selfId;
+        this.groups = groups;
+        this.metrics = metrics;
+        this.sources = sources;
+    }
+
+    public static boolean isLearnerRole() {
+        return "learner".equalsIgnoreCase(System.getProperty(ROLE_PROPERTY, "voter"));
+    }
+
+    public void start() {
+        for (PaxosGroup group : groups) {
+            subscribe(group, group.getGroupId() % sources.size());
+        }
+    }
+
+    private void subscribe(PaxosGroup group, int source) {
+        if (stopped) return;
+        CommitSubscription subscription = CommitSubscription.newBuilder()
+                .setGroupId(group.getGroupId())
+                .setFromSlot(group.getAppliedIndex() + 1)
+                .setSubscriber(selfId)
+                .build();
+
+        PeerChannels.shared().asyncStub(sources.get(source)).subscribeCommitted(subscription,
+                new StreamObserver<CommittedBatch>() {
+                    @Override
+                    public void onNext(CommittedBatch batch) {
+                        if (!batch.getLeaderId().isEmpty()) {
+                            group.setKnownLeader(batch.getLeaderId());
+                        }
+                        for (CommittedSlot committed : batch.getSlotsList()) {
+                            group.commitSlot(committed.getSlot(), committed.getBallot(), committed.getPayload());
+                            metrics.recordCommit(-1);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        resubscribe(group, source, t.getMessage());
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        resubscribe(group, source, "stream completed");
+                    }
+                });
+    }
+
+    private void resubscribe(PaxosGroup group, int source, String reason) {
+        if (stopped) return;
+        int next = (source + 1) % sources.size();
+        logger.info("Group " + group.getGroupId() + ": lost commit stream from " + sources.get(source) +
+                " (" + reason + "), following " + sources.get(next) + " from slot " + (group.getAppliedIndex() + 1));
+        resubscriber.schedule(() -> subscribe(group, next), RESUBSCRIBE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        stopped = true;
+        resubscriber.shutdownNow();
+    }
+}
@@ -0,0 +1,388 @@
+package rt4.paxos;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Client for Submit that keeps track of the leader of each group, so a
+ * command normally reaches the leader in one call without asking the nodes
+ * who leads first.
+ *
+ * The first guess for a group is its preferred leader (GroupRouter), which is
+ * also the node that wins the election when a cold cluster gets its first
+ * request. After that the client follows leader_hint from every rejection,
+ * moves on to the next voter when a node cannot be reached, and waits
+ * -Dpaxos.client.backoffMs (10), doubling up to -Dpaxos.client.maxBackoffMs
+ * (1000), or the retry_after_ms the leader asked for, before trying again. A
+ * command that is not committed within -Dpaxos.client.timeoutMs (10000) fails.
+ *
+ * Commands keep their order within a group: each group has one request in
+ * flight, and commands that arrive in the meantime go out together in the next
+ * one (at most -Dpaxos.client.batchCommands (256) commands or
+ * -Dpaxos.client.batchBytes (1 MB)). Every command carries the client id and a
+ * sequence number, so a retry of a request that was committed after all is
+ * not applied twice; the command then reports duplicate, with its result while
+ * the group still caches it.
+ *
+ * A group forgets a client that stayed idle for long (SessionTable). When it
+ * turns down a request for that reason, the client starts a new session with
+ * a new id and sends the request again, unless an earlier attempt of it may
+ * have been applied: those commands fail, since sending them again could
+ * apply them twice.
+ */
+public class PaxosClient implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(PaxosClient.class.getName());
+
+    private static final long TIMEOUT_MS = Long.getLong("paxos.client.timeoutMs", 10_000);
+    private static final long RPC_TIMEOUT_MS = Long.getLong("paxos.client.rpcTimeoutMs", 2_000);
+    private static final long BACKOFF_MS = Long.getLong("paxos.client.backoffMs", 10);
+    private static final long MAX_BACKOFF_MS = Long.getLong("paxos.client.maxBackoffMs", 1_000);
+    private static final int BATCH_COMMANDS = Integer.getInteger("paxos.client.batchCommands", 256);
+    private static final long BATCH_BYTES = Long.getLong("paxos.client.batchBytes", 1L << 20);
+
+    private static final ScheduledExecutorService RETRIES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "paxos-client");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ClusterTopology topology;
+    private final GroupRouter router;
+    private final List<String> voters;
+    private final long clientId;
+    private final GroupQueue[] groups;
+    private final PeerChannels channels = PeerChannels.shared();
+    private volatile boolean closed = false;
+
+    // Calls made and how many of them reached a node that was not the leader
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong redirects = new AtomicLong();
+
+    public PaxosClient(ClusterTopology topology, GroupRouter router, long clientId) {
+        if (clientId == SessionTable.NO_CLIENT) {
+            throw new IllegalArgumentException("Client id " + SessionTable.NO_CLIENT + " disables deduplication");
+        }
+        this.topology = topology;
+        this.router = router;
+        this.voters = GroupRouter.leaderOrder(ClusterTopology.ids(topology.voters()));
+        this.clientId = clientId;
+        this.groups = new GroupQueue[router.getGroupCount()];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = new GroupQueue(i, router.preferredLeader(i, voters));
+        }
+    }
+
+     // A client with a random id, for the topology and group count of this process
+
+    public static PaxosClient fromSystemProperties() {
+        return new PaxosClient(ClusterTopology.get(), GroupRouter.fromSystemProperties(), randomClientId());
+    }
+
+    private static long randomClientId() {
+        long clientId;
+        do {
+            clientId = ThreadLocalRandom.current().nextLong();
+        } while (clientId == SessionTable.NO_CLIENT);
+        return clientId;
+    }
+
+    public long getClientId() {
+        return clientId;
+    }
+
+     // The node this client sends the group's commands to
+
+    public String leaderOf(int groupId) {
+        return groups[groupId].leader;
+    }
+
+    public String leaderForKey(String key) {
+        return leaderOf(router.groupForKey(key));
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getRedirects() {
+        return redirects.get();
+    }
+
+    public CompletableFuture<CommandResult> submit(int groupId, ByteString command) {
+        if (groupId < 0 || groupId >= groups.length) {
+            throw new IllegalArgumentException("Unknown group " + groupId + " (" + groups.length + " groups)");
+        }
+        return groups[groupId].add(command);
+    }
+
+    public CompletableFuture<CommandResult> submit(ByteString key, ByteString command) {
+        return submit(router.groupForKey(key.toByteArray()), command);
+    }
+
+     // Key-value commands for the default state machine (KeyValueStateMachine)
+
+    public CompletableFuture<CommandResult> put(String key, ByteString value) {
+        ByteString k = ByteString.copyFromUtf8(key);
+        return submit(k, KvCommand.newBuilder().setOp(KvCommand.Op.PUT).setKey(k).setValue(value).build().toByteString());
+    }
+
+    public CompletableFuture<CommandResult> get(String key) {
+        ByteString k = ByteString.copyFromUtf8(key);
+        return submit(k, KvCommand.newBuilder().setOp(KvCommand.Op.GET).setKey(k).build().toByteString());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (GroupQueue group : groups) {
+            group.failQueued(new IllegalStateException("Client closed"));
+        }
+    }
+
+    private long backoff(int attempt) {
+        long max = Math.min(MAX_BACKOFF_MS, BACKOFF_MS << Math.min(attempt, 20));
+        // Half fixed, half random, so clients that failed together do not retry together
+        return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+    }
+
+    /**
+     * Commands of one group waiting to be sent, and the request in flight.
+     * Sequences are taken when a request is built, in queue order, so the
+     * group commits them in order.
+     */
+    private final class GroupQueue {
+        final int groupId;
+        volatile String leader;
+        private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        // The client id until the group expires the session, then a new one
+        private long sessionId = clientId;
+        private long nextSequence = SessionTable.FIRST_SEQUENCE;
+        private boolean inFlight = false;
+
+        GroupQueue(int groupId, String leader) {
+            this.groupId = groupId;
+            this.leader = leader;
+        }
+
+        CompletableFuture<CommandResult> add(ByteString command) {
+            Pending pending;
+            Batch batch = null;
+            synchronized (this) {
+                if (closed) {
+                    return CompletableFuture.failedFuture(new IllegalStateException("Client closed"));
+                }
+                pending = new Pending(command);
+                queue.add(pending);
+                if (!inFlight) {
+                    inFlight = true;
+                    batch = nextBatch();
+                }
+            }
+            if (batch != null) {
+                send(batch);
+            }
+            return pending.result;
+        }
+
+         // Called with the lock held and a request about to be sent
+
+        private Batch nextBatch() {
+            List<Pending> commands = new ArrayList<>();
+            long bytes = 0;
+            while (!queue.isEmpty() && commands.size() < BATCH_COMMANDS
+                    && (commands.isEmpty() || bytes + queue.peek().data.size() <= BATCH_BYTES)) {
+                Pending next = queue.poll();
+                next.command = Command.newBuilder()
+                        .setClientId(sessionId)
+                        .setSequence(nextSequence++)
+                        .setData(next.data)
+                        .build();
+                bytes += next.command.getSerializedSize();
+                commands.add(next);
+            }
+            return new Batch(commands);
+        }
+
+        /**
+         * Completes the commands of a committed request. Those turned down
+         * because the session expired go back to the head of the queue under
+         * a new session if this was the only attempt, and fail otherwise.
+         */
+        private void complete(Batch batch, List<CommandResult> results) {
+            List<Pending> expired = new ArrayList<>(0);
+            for (int i = 0; i < batch.commands.size(); i++) {
+                Pending pending = batch.commands.get(i);
+                CommandResult result = i < results.size() ? results.get(i) : CommandResult.getDefaultInstance();
+                if (result.getSessionExpired()) {
+                    expired.add(pending);
+                } else {
+                    pending.result.complete(result);
+                }
+            }
+            if (expired.isEmpty()) return;
+            if (batch.sends > 1) {
+                for (Pending pending : expired) {
+                    pending.result.completeExceptionally(new IllegalStateException("Session of client " +
+                            Long.toHexString(pending.command.getClientId()) + " expired in group " + groupId +
+                            " while the command was retried; it may have been applied"));
+                }
+            }
+            long renewed;
+            synchronized (this) {
+                sessionId = renewed = randomClientId();
+                nextSequence = SessionTable.FIRST_SEQUENCE;
+                if (batch.sends == 1) {
+                    for (int i = expired.size() - 1; i >= 0; i--) {
+                        queue.addFirst(expired.get(i));
+                    }
+                }
+            }
+            logger.fine("Group " + groupId + ": session expired, continuing as client " + Long.toHexString(renewed));
+        }
+
+        private void finished() {
+            Batch batch;
+            synchronized (this) {
+                if (queue.isEmpty() || closed) {
+                    inFlight = false;
+                    return;
+                }
+                batch = nextBatch();
+            }
+            send(batch);
+        }
+
+        void failQueued(Throwable error) {
+            List<Pending> dropped;
+            synchronized (this) {
+                dropped = new ArrayList<>(queue);
+                queue.clear();
+            }
+            for (Pending pending : dropped) {
+                pending.result.completeExceptionally(error);
+            }
+        }
+
+        private void send(Batch batch) {
+            if (closed) {
+                batch.fail(new IllegalStateException("Client closed"));
+                finished();
+                return;
+            }
+            String target = leader;
+            ClusterTopology.Node node = topology.node(target);
+            calls.incrementAndGet();
+            batch.sends++;
+            Futures.addCallback(channels.futureStub(node.address())
+                            .withDeadlineAfter(RPC_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                            .submit(batch.request(groupId)),
+                    new FutureCallback<SubmitResponse>() {
+                        @Override
+                        public void onSuccess(SubmitResponse response) {
+                            if (response.getAccepted()) {
+                                complete(batch, response.getResultsList());
+                                finished();
+                                return;
+                            }
+                            String hint = response.getLeaderHint();
+                            if (!hint.isEmpty() && !hint.equals(target) && topology.node(hint) != null) {
+                                // Straight to the leader; back off only if the hints go round in circles
+                                redirects.incrementAndGet();
+                                leader = hint;
+                                retry(batch, response.getError(), batch.redirects++ < voters.size() ? 0 : backoff(batch.attempts++));
+                            } else if (response.getRetryAfterMs() > 0) {
+                                retry(batch, response.getError(), response.getRetryAfterMs());
+                            } else {
+                                // Typically an election that lost a race; the node or its successor runs the next one
+                                retry(batch, response.getError(), backoff(batch.attempts++));
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            Status status = Status.fromThrowable(t);
+                            if (leader.equals(target)) {
+                                leader = nextVoter(target);
+                            }
+                            retry(batch, target + ": " + status.getCode() + " " + status.getDescription(),
+                                    backoff(batch.attempts++));
+                        }
+                    }, MoreExecutors.directExecutor());
+        }
+
+        private void retry(Batch batch, String error, long delayMs) {
+            if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs) - batch.startNanos
+                    > TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS)) {
+                logger.fine("Group " + groupId + ": giving up on " + batch.commands.size() + " commands: " + error);
+                batch.fail(new IllegalStateException("Not committed within " + TIMEOUT_MS + " ms (" + error + ")"));
+                finished();
+                return;
+            }
+            if (delayMs == 0) {
+                send(batch);
+            } else {
+                RETRIES.schedule(() -> send(batch), delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private String nextVoter(String current) {
+            int index = voters.indexOf(current);
+            return voters.get((index + 1) % voters.size());
+        }
+    }
+
+    private static final class Batch {
+        final List<Pending> commands;
+        final long startNanos = System.nanoTime();
+        int sends = 0;
+        int attempts = 0;
+        int redirects = 0;
+        private SubmitRequest request;
+
+        Batch(List<Pending> commands) {
+            this.commands = commands;
+        }
+
+        SubmitRequest request(int groupId) {
+            if (request == null) {
+                SubmitRequest.Builder builder = SubmitRequest.newBuilder().setGroupId(groupId);
+                for (Pending pending : commands) {
+                    builder.addCommands(pending.command);
+                }
+                request = builder.build();
+            }
+            return request;
+        }
+
+        void fail(Throwable error) {
+            for (Pending pending : commands) {
+                pending.result.completeExceptionally(error);
+            }
+        }
+    }
+
+    private static final class Pending {
+        final ByteString data;
+        // Set when the command goes into a request
+        Command command;
+        final CompletableFuture<CommandResult> result = new CompletableFuture<>();
+
+        Pending(ByteString data) {
+            this.data = data;
+        }
+    }
+}
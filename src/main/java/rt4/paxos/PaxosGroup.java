@@ -0,0 +1,566 @@
+package rt4.paxos;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Acceptor state of one Paxos group hosted by this node.
+ *
+ * Each group is an independent consensus instance with its own ballots,
+ * value and leader, so groups never contend on each other's lock.
+ *
+ * Two paths live side by side. Client commands are replicated by the
+ * Replicator into explicit slots (promise/acceptSlot/commitSlot) and applied
+ * to the state machine strictly in slot order. The single-value round driven
+ * by the GUI (promiseRound/acceptRound/commitRound) has ballots, a value, a
+ * count of committed rounds and client sessions of its own; it never touches
+ * the slot log, the applied index or the ballots of the slot path, so it can
+ * run while the group serves clients.
+ *
+ * With -Dpaxos.log.dir the slot path is also written to a DurableLog,
+ * replayed when the group is created; the GUI round is not.
+ */
+public class PaxosGroup {
+    private static final Logger logger = Logger.getLogger(PaxosGroup.class.getName());
+
+    private final int groupId;
+
+    private int highestSeenProposal = 0;
+    private int acceptedProposalNumber = 0;
+
+    // GUI round: its own promised and accepted ballots, value, leader flag and committed rounds
+    private int roundPromised = 0;
+    private int roundBallot = 0;
+    private int currentValue = -1;
+    private boolean roundLeader = false;
+    private long roundsCommitted = 0;
+    private long roundAcceptedAtNanos = 0;
+    private final SessionTable roundSessions = SessionTable.fromSystemProperties();
+
+    // Replicated state machine: applied log position and client sessions
+    private long appliedIndex = 0;
+
+    // Accepted and committed values per slot, kept off-heap
+    private static final long RETAINED_SLOTS = Long.getLong("paxos.log.retainSlots", 100_000L);
+    private final SlotLogStore log = new SlotLogStore();
+    private final DurableLog durable;
+
+    private final SessionTable sessions;
+    private final StateMachine stateMachine;
+    private final ApplyScheduler applier;
+
+    // Multi-Paxos leadership: ballot this node leads with (0 when it does not) and next free slot
+    private int leaderBallot = 0;
+    private long nextSlot = 1;
+    private boolean proposalsPaused = false;
+    // Phase 2 votes of the slots proposed with leaderBallot; a new term gets a new tracker
+    private QuorumTracker votes = null;
+    private String knownLeader = null;
+    private final Map<Long, CompletableFuture<List<CommandResult>>> applyWaiters = new HashMap<>();
+
+    // Commit stream subscribers, told when the applied index moves (outside the group lock)
+    private final List<CommitListener> commitListeners = new CopyOnWriteArrayList<>();
+
+    public PaxosGroup(int groupId, String nodeId) {
+        this(groupId, SessionTable.fromSystemProperties(), new KeyValueStateMachine(),
+                DurableLog.fromSystemProperties(nodeId, groupId));
+    }
+
+    public PaxosGroup(int groupId, SessionTable sessions, StateMachine stateMachine, DurableLog durable) {
+        this.groupId = groupId;
+        this.sessions = sessions;
+        this.stateMachine = stateMachine;
+        this.applier = new ApplyScheduler(stateMachine);
+        this.durable = durable;
+        synchronized (this) {
+            try {
+                durable.recover(new Recovery());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Group " + groupId + ": could not recover the log", e);
+            }
+        }
+    }
+
+    public int getGroupId() {
+        return groupId;
+    }
+
+     // Phase 1 of the slot path: promise if the proposal is newer than anything seen so far
+
+    public synchronized boolean promise(int proposalNumber) {
+        if (proposalNumber > highestSeenProposal) {
+            durable.promise(proposalNumber);
+            highestSeenProposal = proposalNumber;
+            leaderBallot = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Phase 1 for a candidate that has applied every slot before fromSlot.
+     * Returns the slots accepted or chosen here from fromSlot on, which the
+     * candidate has to propose again, or null without promising when the
+     * ballot is not newer or when this node already evicted applied slots
+     * from fromSlot on: it could not report them, and a candidate that never
+     * learned them would fill them with no-ops.
+     */
+    public synchronized List<AcceptedSlot> promiseFrom(int proposalNumber, long fromSlot) {
+        if (fromSlot < log.firstSlot() && fromSlot <= appliedIndex) {
+            return null;
+        }
+        return promise(proposalNumber) ? acceptedSince(fromSlot) : null;
+    }
+
+     // GUI round, phase 1: promise if the ballot is newer than any the round has seen
+
+    public synchronized boolean promiseRound(int ballot) {
+        if (ballot > roundPromised) {
+            roundPromised = ballot;
+            return true;
+        }
+        return false;
+    }
+
+     // GUI round, phase 2: accept the value unless a higher ballot was promised
+
+    public synchronized boolean acceptRound(int ballot, int value) {
+        if (ballot >= roundPromised) {
+            roundPromised = ballot;
+            roundBallot = ballot;
+            currentValue = value;
+            if (roundAcceptedAtNanos == 0) {
+                roundAcceptedAtNanos = System.nanoTime();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * GUI round, phase 3: the value is chosen. Applied unless its client
+     * session shows it was already; returns the SessionTable outcome.
+     */
+    public synchronized int commitRound(long clientId, long sequence, int value) {
+        roundsCommitted++;
+        roundAcceptedAtNanos = 0;
+        int outcome = roundSessions.check(clientId, sequence, roundsCommitted);
+        if (outcome == SessionTable.NEW) {
+            currentValue = value;
+            roundSessions.recordResult(clientId, sequence, roundsCommitted, ByteString.copyFrom(ByteBuffer.allocate(Integer.BYTES).putInt(0, value)));
+        }
+        return outcome;
+    }
+
+     // Value a retried command of the GUI round committed, or -1 when no longer cached
+
+    public synchronized int committedValue(long clientId, long sequence) {
+        ByteString result = roundSessions.cachedResult(clientId, sequence);
+        return result == null || result.size() < Integer.BYTES ? -1 : result.asReadOnlyByteBuffer().getInt(0);
+    }
+
+    /**
+     * Phase 2 for an explicit log slot: accept the payload unless a higher
+     * ballot was promised. The payload goes into the log store straight from
+     * the ByteString's buffer view, without an intermediate byte[].
+     */
+    public synchronized boolean acceptSlot(int ballot, long slot, ByteString payload, String leaderId) {
+        if (ballot < highestSeenProposal) {
+            return false;
+        }
+        boolean raised = ballot > highestSeenProposal;
+        if (raised) {
+            highestSeenProposal = ballot;
+            leaderBallot = 0;
+        }
+        acceptedProposalNumber = ballot;
+        knownLeader = leaderId;
+
+        // Applied slots are settled; a chosen value is never replaced
+        if (slot > appliedIndex && slot >= log.firstSlot() && log.getState(slot) != SlotLogStore.COMMITTED) {
+            ByteBuffer value = payload.asReadOnlyByteBuffer();
+            durable.accept(slot, ballot, value);
+            log.accept(slot, ballot, value);
+        } else if (raised) {
+            durable.promise(ballot);
+        }
+        return true;
+    }
+
+    /**
+     * Marks a slot chosen and applies every chosen slot that is now next in
+     * order. The payload is only needed when this node did not accept the
+     * slot with the commit's ballot (what it holds from an older ballot may
+     * be a value that was never chosen), so it may be null otherwise. Returns
+     * false when the payload was needed but missing. Clients waiting on
+     * applied slots are notified after the lock is released.
+     */
+    public boolean commitSlot(long slot, int ballot, ByteString payload) {
+        List<Runnable> notifications;
+        synchronized (this) {
+            if (slot <= appliedIndex || slot < log.firstSlot()) return true;
+            byte state = log.getState(slot);
+            if (state == SlotLogStore.EMPTY || (state == SlotLogStore.ACCEPTED && log.getBallot(slot) != ballot)) {
+                if (payload == null) {
+                    return false;
+                }
+                ByteBuffer value = payload.asReadOnlyByteBuffer();
+                durable.accept(slot, ballot, value);
+                log.accept(slot, ballot, value);
+            }
+            durable.commit(slot, ballot);
+            log.commit(slot);
+            notifications = applyCommitted();
+        }
+        for (Runnable notification : notifications) {
+            notification.run();
+        }
+        return true;
+    }
+
+    /**
+     * Applies the run of committed slots that is next in order. Client
+     * sessions are checked slot by slot; the commands they let through go to
+     * the ApplyScheduler, which may apply commuting ones in parallel. All of
+     * it happens under the group lock, so reads (and the applied index) only
+     * ever show the state between two slots.
+     */
+    private List<Runnable> applyCommitted() {
+        List<Runnable> notifications = new ArrayList<>(0);
+        List<AppliedSlot> run = new ArrayList<>(1);
+        while (log.getState(appliedIndex + 1) == SlotLogStore.COMMITTED) {
+            long slot = ++appliedIndex;
+            ByteBuffer payload = log.readPayload(slot);
+            CommandBatch batch = parseBatch(slot, payload);
+            run.add(new AppliedSlot(slot, batch, applyWaiters.remove(slot), scheduleBatch(slot, batch)));
+        }
+        if (!applier.isEmpty()) {
+            applier.run();
+        }
+        // In slot order, so a retry later in the run finds the result of the command it repeats
+        for (AppliedSlot applied : run) {
+            List<CommandResult> results = applied.waiter != null ? new ArrayList<>(applied.tasks.length) : null;
+            for (int i = 0; i < applied.tasks.length; i++) {
+                Command command = applied.batch.getCommands(i);
+                int task = applied.tasks[i];
+                ByteString data;
+                if (task >= 0) {
+                    data = applier.result(task);
+                    sessions.recordResult(command.getClientId(), command.getSequence(), applied.slot, data);
+                } else {
+                    data = task == EXPIRED_TASK ? null : sessions.cachedResult(command.getClientId(), command.getSequence());
+                }
+                if (results != null) {
+                    CommandResult.Builder result = CommandResult.newBuilder()
+                            .setDuplicate(task == DUPLICATE_TASK)
+                            .setSessionExpired(task == EXPIRED_TASK);
+                    if (data != null) {
+                        result.setData(data);
+                    }
+                    results.add(result.build());
+                }
+            }
+            if (results != null) {
+                notifications.add(() -> applied.waiter.complete(results));
+            }
+        }
+        if (!run.isEmpty() && !commitListeners.isEmpty()) {
+            long applied = appliedIndex;
+            notifications.add(() -> {
+                for (CommitListener listener : commitListeners) {
+                    listener.applied(applied);
+                }
+            });
+        }
+        applier.clear();
+        evictApplied();
+        return notifications;
+    }
+
+    // Task of a command that is not applied: a retry of an applied one, or one whose session expired
+    private static final int DUPLICATE_TASK = -1;
+    private static final int EXPIRED_TASK = -2;
+
+    private static final class AppliedSlot {
+        final long slot;
+        final CommandBatch batch;
+        final CompletableFuture<List<CommandResult>> waiter;
+        // Scheduler index of each command of the batch, or DUPLICATE_TASK / EXPIRED_TASK
+        final int[] tasks;
+
+        AppliedSlot(long slot, CommandBatch batch, CompletableFuture<List<CommandResult>> waiter, int[] tasks) {
+            this.slot = slot;
+            this.batch = batch;
+            this.waiter = waiter;
+            this.tasks = tasks;
+        }
+    }
+
+    public void subscribe(CommitListener listener) {
+        commitListeners.add(listener);
+    }
+
+    public void unsubscribe(CommitListener listener) {
+        commitListeners.remove(listener);
+    }
+
+    /**
+     * Copies applied slots from fromSlot on into the batch, at most maxSlots
+     * of them and about maxBytes of payload. Returns false when fromSlot is
+     * no longer held in memory (the durable log may still have it).
+     */
+    public synchronized boolean readApplied(long fromSlot, int maxSlots, long maxBytes, CommittedBatch.Builder batch) {
+        if (fromSlot < log.firstSlot() && fromSlot <= appliedIndex) {
+            return false;
+        }
+        long bytes = 0;
+        for (long s = fromSlot; s <= appliedIndex && s < fromSlot + maxSlots && bytes < maxBytes; s++) {
+            ByteBuffer payload = log.readPayload(s);
+            bytes += payload.remaining();
+            batch.addSlots(CommittedSlot.newBuilder()
+                    .setGroupId(groupId)
+                    .setSlot(s)
+                    .setBallot(log.getBallot(s))
+                    .setPayload(ByteString.copyFrom(payload)));
+        }
+        return true;
+    }
+
+    public DurableLog getDurableLog() {
+        return durable;
+    }
+
+    public synchronized void setKnownLeader(String leaderId) {
+        knownLeader = leaderId;
+    }
+
+    private CommandBatch parseBatch(long slot, ByteBuffer payload) {
+        try {
+            CodedInputStream input = CodedInputStream.newInstance(payload);
+            input.enableAliasing(true);
+            return CommandBatch.parseFrom(input);
+        } catch (IOException e) {
+            logger.warning("Group " + groupId + ": slot " + slot + " holds a malformed batch, skipped");
+            return CommandBatch.getDefaultInstance();
+        }
+    }
+
+     // Queue the commands framed in one slot, deduplicating retries through the client sessions
+
+    private int[] scheduleBatch(long slot, CommandBatch batch) {
+        int[] tasks = new int[batch.getCommandsCount()];
+        for (int i = 0; i < tasks.length; i++) {
+            Command command = batch.getCommands(i);
+            int outcome = sessions.check(command.getClientId(), command.getSequence(), slot);
+            if (outcome == SessionTable.NEW) {
+                tasks[i] = applier.add(slot, command.getData().asReadOnlyByteBuffer());
+            } else {
+                tasks[i] = outcome == SessionTable.EXPIRED ? EXPIRED_TASK : DUPLICATE_TASK;
+            }
+        }
+        return tasks;
+    }
+
+    private void evictApplied() {
+        if (appliedIndex - RETAINED_SLOTS >= log.firstSlot()) {
+            log.evictBefore(appliedIndex - RETAINED_SLOTS + 1);
+        }
+    }
+
+     // Future completed with the command results once the slot is applied here
+
+    public synchronized CompletableFuture<List<CommandResult>> awaitApplied(long slot) {
+        if (slot <= appliedIndex) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        return applyWaiters.computeIfAbsent(slot, s -> new CompletableFuture<>());
+    }
+
+    public void failSlot(long slot, Throwable cause) {
+        CompletableFuture<List<CommandResult>> waiter;
+        synchronized (this) {
+            waiter = applyWaiters.remove(slot);
+        }
+        if (waiter != null) {
+            waiter.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Picks a ballot above everything seen so far, unique to this node (its
+     * number in the low 16 bits), and promises it locally.
+     */
+    public synchronized int prepareBallot(int nodeNumber) {
+        int round = (highestSeenProposal >>> 16) + 1;
+        int ballot = (round << 16) | (nodeNumber & 0xFFFF);
+        durable.promise(ballot);
+        highestSeenProposal = ballot;
+        leaderBallot = 0;
+        return ballot;
+    }
+
+     // Slots accepted or chosen from the given one on, reported to a new leader
+
+    public synchronized List<AcceptedSlot> acceptedSince(long fromSlot) {
+        List<AcceptedSlot> accepted = new ArrayList<>();
+        for (long s = Math.max(fromSlot, log.firstSlot()); s <= log.lastSlot(); s++) {
+            ByteBuffer payload = log.readPayload(s);
+            if (payload == null) continue;
+            accepted.add(AcceptedSlot.newBuilder()
+                    .setSlot(s)
+                    .setBallot(log.getBallot(s))
+                    .setPayload(ByteString.copyFrom(payload))
+                    .build());
+        }
+        return accepted;
+    }
+
+     // Phase 1 won: lead with the ballot unless a higher one showed up meanwhile
+
+    public synchronized boolean becomeLeader(int ballot, long firstFreeSlot, String selfId, QuorumTracker votes) {
+        if (ballot != highestSeenProposal) return false;
+        leaderBallot = ballot;
+        this.votes = votes;
+        knownLeader = selfId;
+        nextSlot = Math.max(firstFreeSlot, Math.max(appliedIndex, log.lastSlot()) + 1);
+        proposalsPaused = false;
+        return true;
+    }
+
+     // Next slot for a client batch, or -1 when this node is not (or no longer) leading
+
+    public synchronized long reserveSlot(int ballot) {
+        if (leaderBallot == 0 || leaderBallot != ballot || proposalsPaused) return -1;
+        return nextSlot++;
+    }
+
+    /**
+     * Vote tracker of the term led with the ballot, or null once this node
+     * no longer leads with it. Slots are numbered per group and again from
+     * the same numbers after a change of leader, so votes are only counted
+     * for the group and term they were cast in.
+     */
+    public synchronized QuorumTracker votesFor(int ballot) {
+        return leaderBallot != 0 && leaderBallot == ballot ? votes : null;
+    }
+
+     // Stop handing out slots ahead of a leadership transfer; returns the last one handed out
+
+    public synchronized long pauseProposals() {
+        proposalsPaused = true;
+        return nextSlot - 1;
+    }
+
+    public synchronized void resumeProposals() {
+        proposalsPaused = false;
+    }
+
+    public synchronized void stepDown() {
+        leaderBallot = 0;
+        proposalsPaused = false;
+    }
+
+     // Slots accepted here but not applied yet
+
+    public synchronized long backlog() {
+        return Math.max(0, log.lastSlot() - appliedIndex);
+    }
+
+    public synchronized int getLeaderBallot() { return leaderBallot; }
+    public synchronized String getKnownLeader() { return knownLeader; }
+    public StateMachine getStateMachine() { return stateMachine; }
+
+     // Read from the state machine between two applied slots, never in the middle of a run
+
+    public synchronized ByteString read(ByteString key) {
+        return stateMachine.read(key);
+    }
+
+    /**
+     * Rebuilds the acceptor state from the durable log, in log order: the
+     * same transitions as acceptSlot and commitSlot, without writing them
+     * back. Committed slots are applied as they are replayed, so only the
+     * retained window is held in memory however long the log is.
+     */
+    private final class Recovery implements DurableLog.Visitor {
+        @Override
+        public void promise(int ballot) {
+            highestSeenProposal = Math.max(highestSeenProposal, ballot);
+        }
+
+        @Override
+        public void accept(long slot, int ballot, ByteBuffer payload) {
+            highestSeenProposal = Math.max(highestSeenProposal, ballot);
+            acceptedProposalNumber = ballot;
+            if (slot > appliedIndex && slot >= log.firstSlot() && log.getState(slot) != SlotLogStore.COMMITTED) {
+                log.accept(slot, ballot, payload);
+            }
+        }
+
+        @Override
+        public void commit(long slot, int ballot) {
+            if (slot <= appliedIndex || slot < log.firstSlot() || log.getBallot(slot) != ballot) return;
+            log.commit(slot);
+            applyCommitted();
+        }
+    }
+
+    public void closeLog() throws IOException {
+        durable.close();
+    }
+
+    public interface CommitListener {
+        void applied(long appliedIndex);
+    }
+
+    public synchronized long getAppliedIndex() { return appliedIndex; }
+
+    public synchronized int getSlotBallot(long slot) {
+        return log.getBallot(slot);
+    }
+
+     // Time since the slot's value was accepted here, or -1 when it holds none
+
+    public synchronized long sinceAcceptedMicros(long slot) {
+        long acceptedAt = log.getAcceptedNanos(slot);
+        return acceptedAt == 0 ? -1 : (System.nanoTime() - acceptedAt) / 1000;
+    }
+    public SessionTable getSessions() { return sessions; }
+
+    public synchronized void initValueIfUnset(int value) {
+        if (currentValue == -1) {
+            currentValue = value;
+        }
+    }
+
+    public synchronized int getHighestSeenProposal() { return highestSeenProposal; }
+    public synchronized int getAcceptedProposalNumber() { return acceptedProposalNumber; }
+    public synchronized boolean isLeader() { return leaderBallot != 0; }
+
+    public synchronized int getRoundPromised() { return roundPromised; }
+    public synchronized int getRoundBallot() { return roundBallot; }
+    public synchronized long getRoundsCommitted() { return roundsCommitted; }
+    public synchronized int getCurrentValue() { return currentValue; }
+    public synchronized boolean isRoundLeader() { return roundLeader; }
+
+    public synchronized void setRoundLeader(boolean roundLeader) {
+        this.roundLeader = roundLeader;
+    }
+
+     // Time since the GUI round's value was accepted, or -1 when none is waiting for its commit
+
+    public synchronized long roundInFlightMicros() {
+        return roundAcceptedAtNanos == 0 ? -1 : (System.nanoTime() - roundAcceptedAtNanos) / 1000;
+    }
+}
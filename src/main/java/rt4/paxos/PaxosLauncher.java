@@ -1,19 +1,45 @@
 package rt4.paxos;
 
+import io.grpc.Channel;
+import io.grpc.StatusRuntimeException;
+import io.grpc.health.v1.HealthCheckRequest;
+import io.grpc.health.v1.HealthCheckResponse;
+import io.grpc.health.v1.HealthGrpc;
 import rt4.paxos.gui.PaxosVisualizer;
 
 import javax.swing.*;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 
 public class PaxosLauncher {
-    private static final int[] DEFAULT_PORTS = {50051, 50052, 50053};
-    private static List<Process> serverProcesses = new ArrayList<>();
-    private static boolean isShuttingDown = false;
+    // Nodes started with the GUI when there is no -Dpaxos.topology (the 5-node mode adds two)
+    private static final int DEFAULT_NODES = 3;
+    private static final Map<String, Process> serverProcesses = new ConcurrentHashMap<>();
+    private static volatile boolean isShuttingDown = false;
+
+    // Readiness probing
+    private static final long READY_TIMEOUT_MS = 10_000;
+    private static final long PROBE_INTERVAL_MS = 2;
+
+    // Class data sharing archive shared by all node JVMs (-Dpaxos.cds=false to disable).
+    // The JVM only archives classes loaded from jars, so it is skipped for exploded class directories.
+    private static final boolean USE_CDS = Boolean.parseBoolean(System.getProperty("paxos.cds", "true"))
+            && classPathIsJarsOnly();
+    private static final Path CDS_ARCHIVE = Paths.get(System.getProperty("paxos.cds.archive",
+            Paths.get(System.getProperty("java.io.tmpdir"),
+                    "paxos-node-" + Integer.toHexString(System.getProperty("java.class.path").hashCode()) + ".jsa")
+                    .toString()));
 
     public static void main(String[] args) {
 
@@ -26,10 +52,12 @@ public class PaxosLauncher {
 
         JFrame splashFrame = showSplashScreen();
 
-        // Start server processes
-        CountDownLatch serversStarted = new CountDownLatch(DEFAULT_PORTS.length);
-        for (int port : DEFAULT_PORTS) {
-            startServerProcess(port, serversStarted);
+        // Start the nodes of this machine in parallel
+        long startNanos = System.nanoTime();
+        List<ClusterTopology.Node> nodes = initialNodes();
+        CountDownLatch serversStarted = new CountDownLatch(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            startServerProcess(nodes.get(i), serversStarted, i == 0);
         }
 
         // Wait for all servers to start with a timeout
@@ -40,6 +68,7 @@ public class PaxosLauncher {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        System.out.printf("Cluster ready in %.1f ms%n", (System.nanoTime() - startNanos) / 1e6);
 
         splashFrame.dispose();
 
@@ -58,6 +87,20 @@ public class PaxosLauncher {
     }
 
 
+     // Every local node of a configured topology, else the first DEFAULT_NODES default ones
+
+    private static List<ClusterTopology.Node> initialNodes() {
+        ClusterTopology topology = ClusterTopology.get();
+        if (!ClusterTopology.isConfigured()) {
+            return topology.nodes().subList(0, DEFAULT_NODES);
+        }
+        List<ClusterTopology.Node> local = new ArrayList<>();
+        for (ClusterTopology.Node node : topology.nodes()) {
+            if (node.isLocal()) local.add(node);
+        }
+        return local;
+    }
+
     private static JFrame showSplashScreen() {
         JFrame splashFrame = new JFrame("Starting Paxos...");
         splashFrame.setUndecorated(true);
@@ -87,67 +130,172 @@ public class PaxosLauncher {
         return splashFrame;
     }
 
-     // Starts a single server process on the specified port
+     // Starts a single node process, the latch is released once it is ready
 
-    private static void startServerProcess(int port, CountDownLatch latch) {
+    private static void startServerProcess(ClusterTopology.Node node, CountDownLatch latch, boolean createsCdsArchive) {
+        String id = node.getId();
         new Thread(() -> {
             try {
-                // Build command to start the server
-                ProcessBuilder processBuilder = new ProcessBuilder(
-                        "java",
-                        "-cp",
-                        System.getProperty("java.class.path"),
-                        "rt4.paxos.PaxosProposer",
-                        String.valueOf(port));
-
-                // Redirect error stream to output stream
+                long startNanos = System.nanoTime();
+
+                ProcessBuilder processBuilder = new ProcessBuilder(nodeCommand(node, createsCdsArchive));
+
+                // Nodes prefix their own event lines, so their output goes straight to ours
+                // instead of being copied line by line
                 processBuilder.redirectErrorStream(true);
+                processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
 
                 // Start the process
                 Process process = processBuilder.start();
-                serverProcesses.add(process);
-
-                // Handle output from the process
-                try (BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(process.getInputStream()))) {
-                    String line;
-                    boolean serverStarted = false;
-
-                    while ((line = reader.readLine()) != null) {
-                        System.out.println("[Server:" + port + "] " + line);
-
-                        // Detect when server has started
-                        if (line.contains("Server started on port") && !serverStarted) {
-                            serverStarted = true;
-                            latch.countDown();
-                        }
-
-                        // Break if shutting down
-                        if (isShuttingDown) {
-                            break;
-                        }
+                serverProcesses.put(id, process);
+
+                // Readiness comes from the health probe, the output is only forwarded
+                Thread probe = new Thread(() -> {
+                    if (awaitReady(node, process)) {
+                        System.out.printf("Server %s on %s ready in %.1f ms%n",
+                                id, node.address(), (System.nanoTime() - startNanos) / 1e6);
+                    } else {
+                        System.out.println("Warning: server " + id + " did not become ready");
                     }
-                }
-
-                // the server has terminated
-                System.out.println("Server on port " + port + " has terminated.");
+                    latch.countDown();
+                }, "ready-probe-" + id);
+                probe.setDaemon(true);
+                probe.start();
+
+                process.onExit().thenRun(() -> {
+                    // Not reported when the process was stopped or replaced on purpose
+                    if (serverProcesses.get(id) == process && !isShuttingDown) {
+                        System.out.println("Server " + id + " has terminated.");
+                    }
+                });
 
             } catch (IOException e) {
-                System.err.println("Error starting server on port " + port + ": " + e.getMessage());
+                System.err.println("Error starting server " + id + ": " + e.getMessage());
                 e.printStackTrace();
                 latch.countDown(); // Ensure latch is decremented even on error
             }
-        }).start();
+        }, "server-" + id).start();
     }
 
+     // JVM command line of a node, using the shared CDS archive when enabled
+
+    private static List<String> nodeCommand(ClusterTopology.Node node, boolean createsCdsArchive) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (USE_CDS) {
+            if (createsCdsArchive) {
+                // One node dumps the archive at exit when it is missing or stale
+                command.add("-XX:+AutoCreateSharedArchive");
+                command.add("-XX:SharedArchiveFile=" + CDS_ARCHIVE);
+            } else if (Files.exists(CDS_ARCHIVE)) {
+                command.add("-XX:SharedArchiveFile=" + CDS_ARCHIVE);
+            }
+        }
+        if (ClusterTopology.isConfigured()) {
+            // The node finds itself and its peers in the same topology
+            command.add("-D" + ClusterTopology.PROPERTY + "=" + System.getProperty(ClusterTopology.PROPERTY));
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("rt4.paxos.PaxosProposer");
+        command.add(ClusterTopology.isConfigured() ? node.getId() : String.valueOf(node.getPort()));
+        return command;
+    }
 
-     // Method to start additional servers for the 5-node mode
+    private static boolean classPathIsJarsOnly() {
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!entry.isEmpty() && !entry.endsWith(".jar")) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-    public static void startAdditionalServers(int[] additionalPorts) {
-        CountDownLatch additionalLatch = new CountDownLatch(additionalPorts.length);
+    /**
+     * Waits until the node serves requests: poll the port until it accepts
+     * connections, then ask the standard gRPC health service.
+     */
+    private static boolean awaitReady(ClusterTopology.Node node, Process process) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READY_TIMEOUT_MS);
+
+        while (!isShuttingDown && process.isAlive() && System.nanoTime() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(node.getHost(), node.getPort()), 50);
+                break;
+            } catch (IOException e) {
+                sleepQuietly(PROBE_INTERVAL_MS);
+            }
+        }
 
-        for (int port : additionalPorts) {
-            startServerProcess(port, additionalLatch);
+        // The shared channel, so whoever talks to the node next finds it connected
+        Channel channel = PeerChannels.shared().channel(node.address());
+        while (!isShuttingDown && process.isAlive() && System.nanoTime() < deadline) {
+            try {
+                HealthCheckResponse response = HealthGrpc.newBlockingStub(channel)
+                        .withWaitForReady()
+                        .withDeadlineAfter(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                        .check(HealthCheckRequest.newBuilder()
+                                .setService(PaxosServiceGrpc.SERVICE_NAME)
+                                .build());
+                if (response.getStatus() == HealthCheckResponse.ServingStatus.SERVING) {
+                    return true;
+                }
+            } catch (StatusRuntimeException e) {
+                // Not registered yet or still starting
+            }
+            sleepQuietly(PROBE_INTERVAL_MS);
+        }
+        return false;
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Restarts one node and returns the time in milliseconds until it was ready
+     * again, or -1 if it did not come back. Used for rolling restarts.
+     */
+    public static double restartServer(String nodeId) {
+        Process old = serverProcesses.remove(nodeId);
+        if (old != null) {
+            stopProcess(old);
+        }
+
+        long startNanos = System.nanoTime();
+        CountDownLatch ready = new CountDownLatch(1);
+        startServerProcess(ClusterTopology.get().node(nodeId), ready, !Files.exists(CDS_ARCHIVE));
+        try {
+            if (!ready.await(READY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return -1;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        return (System.nanoTime() - startNanos) / 1e6;
+    }
+
+
+     // Starts the given nodes of this machine that are not running yet, for larger GUI configurations
+
+    public static int startAdditionalServers(List<String> nodeIds) {
+        List<ClusterTopology.Node> missing = new ArrayList<>();
+        for (String id : nodeIds) {
+            ClusterTopology.Node node = ClusterTopology.get().node(id);
+            Process running = serverProcesses.get(id);
+            if (node != null && node.isLocal() && (running == null || !running.isAlive())) {
+                missing.add(node);
+            }
+        }
+        CountDownLatch additionalLatch = new CountDownLatch(missing.size());
+
+        for (ClusterTopology.Node node : missing) {
+            startServerProcess(node, additionalLatch, false);
         }
 
         // Wait for additional servers to start
@@ -158,28 +306,33 @@ public class PaxosLauncher {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        return missing.size();
     }
 
 
      // Stops all server processes
 
     private static void stopAllServers() {
-        for (Process process : serverProcesses) {
-            if (process.isAlive()) {
-                process.destroy();
-                try {
-                    // Wait for process to terminate gracefully
-                    if (!process.waitFor(2, TimeUnit.SECONDS)) {
-                        // Force termination if it doesn't exit nicely
-                        process.destroyForcibly();
-                    }
-                } catch (InterruptedException e) {
-                    process.destroyForcibly();
-                }
-            }
+        for (Process process : serverProcesses.values()) {
+            stopProcess(process);
         }
 
         // Clear the list
         serverProcesses.clear();
     }
+
+    private static void stopProcess(Process process) {
+        if (process.isAlive()) {
+            process.destroy();
+            try {
+                // Wait for process to terminate gracefully
+                if (!process.waitFor(2, TimeUnit.SECONDS)) {
+                    // Force termination if it doesn't exit nicely
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -2,8 +2,13 @@ package rt4.paxos;
 
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.protobuf.services.HealthStatusManager;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -12,18 +17,34 @@ public class PaxosProposer {
     private static final Logger logger = Logger.getLogger(PaxosProposer.class.getName());
 
     public static int PORT;
+    // This node's id in the topology (NODE_ID without one)
+    public static String NODE_ID;
+    private static ClusterTopology.Node self;
     private Server server;
+    private ExecutorService handlerExecutor;
+    private Replicator replicator;
+    private Learner learner;
+    private CatchUp catchUp;
+    private LeaderPlacement placement;
+    private PaxosServiceImpl service;
+    private final HealthStatusManager health = new HealthStatusManager();
 
      //start the gRPC server
     public static void main(String[] args) throws IOException, InterruptedException {
         // Get port from command line arguments
         if (args.length < 1) {
-            System.err.println("Usage: PaxosProposer <port>");
+            System.err.println("Usage: PaxosProposer <port>, or <node-id|port> with -D" + ClusterTopology.PROPERTY);
             System.exit(1);
         }
 
-        // Parse port
-        PORT = Integer.parseInt(args[0]);
+        // Find this node: in the topology when there is one, else the port and -Dpaxos.peers
+        if (ClusterTopology.isConfigured()) {
+            self = ClusterTopology.get().resolve(args[0]);
+        } else {
+            self = ClusterTopology.initFromPeers(Integer.parseInt(args[0])).nodes().get(0);
+        }
+        PORT = self.getPort();
+        NODE_ID = self.getId();
 
         // Create and start server
         final PaxosProposer proposer = new PaxosProposer();
@@ -34,16 +55,58 @@ public class PaxosProposer {
      // Start the server with PaxosServiceImpl
 
     private void start() throws IOException {
+        // Open the protocol trace before the service starts recording into it
+        TraceRecorder.initFromSystemProperties();
+        SpanTracer.initFromSystemProperties(NODE_ID);
+        // Before the Replicator or Learner opens its peer channels
+        FaultInjector.initFromSystemProperties(NODE_ID);
+
         // Create service implementation
         PaxosServiceImpl serviceImpl = new PaxosServiceImpl();
+        service = serviceImpl;
+        boolean learnerRole = self.isLearner();
+        List<ClusterTopology.Node> voters = ClusterTopology.get().otherVoters(NODE_ID);
+        if (learnerRole) {
+            // A learner follows the voters, never votes
+            serviceImpl.setLearner(true);
+            learner = new Learner(NODE_ID, serviceImpl.getGroups(), serviceImpl.getMetrics(),
+                    ClusterTopology.addresses(voters));
+        } else {
+            replicator = new Replicator(NODE_ID, voters, serviceImpl.getMetrics());
+            serviceImpl.setReplicator(replicator);
+            catchUp = new CatchUp(NODE_ID, serviceImpl.getGroups(), serviceImpl.getMetrics());
+            replicator.setCatchUp(catchUp);
+        }
 
-        // Build and start server
-        server = ServerBuilder.forPort(PORT)
-                .addService(serviceImpl)
+        // Build and start server with the configured execution model
+        ServerExecutorMode executorMode = ServerExecutorMode.fromSystemProperties();
+        ServerBuilder<?> builder = ServerBuilder.forPort(PORT);
+        handlerExecutor = executorMode.configure(builder);
+        PeerChannels.permitKeepAlive(builder);
+        server = builder
+                .addService(ServerInterceptors.intercept(serviceImpl,
+                        SpanTracer.get().serverInterceptor(), FaultInjector.get().serverInterceptor()))
+                .addService(health.getHealthService())
                 .build()
                 .start();
 
-        logger.info("Server started on port " + PORT);
+        // Readiness: the launcher probes the standard gRPC health service
+        health.setStatus("", ServingStatus.SERVING);
+        health.setStatus(PaxosServiceGrpc.SERVICE_NAME, ServingStatus.SERVING);
+
+        if (learner != null) {
+            learner.start();
+        } else {
+            catchUp.start();
+        }
+        if (learner == null && LeaderPlacement.isEnabled()) {
+            placement = new LeaderPlacement(serviceImpl, replicator);
+            placement.start();
+        }
+
+        logger.info("Server " + NODE_ID + " started on port " + PORT + " (executor=" + executorMode +
+                ", groups=" + serviceImpl.getGroupCount() + ", role=" + (learnerRole ? "learner" : "voter") +
+                ", peers=" + voters + ")");
 
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -59,9 +122,48 @@ public class PaxosProposer {
      // Stop the server
 
     private void stop() throws InterruptedException {
+        health.enterTerminalState();
         if (server != null) {
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         }
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdown();
+        }
+        if (placement != null) {
+            placement.shutdown();
+        }
+        if (replicator != null) {
+            replicator.shutdown();
+        }
+        if (catchUp != null) {
+            catchUp.shutdown();
+        }
+        if (learner != null) {
+            learner.shutdown();
+        }
+        PeerChannels.shared().shutdown();
+        if (service != null) {
+            for (PaxosGroup group : service.getGroups()) {
+                try {
+                    group.closeLog();
+                } catch (IOException e) {
+                    logger.warning("Could not close the log of group " + group.getGroupId() + ": " + e.getMessage());
+                }
+            }
+            service.getClusterView().shutdown();
+            // Flush the events still queued
+            service.getEvents().close();
+        }
+        try {
+            TraceRecorder.get().close();
+        } catch (IOException e) {
+            logger.warning("Could not close trace file: " + e.getMessage());
+        }
+        try {
+            SpanTracer.get().close();
+        } catch (IOException e) {
+            logger.warning("Could not close span file: " + e.getMessage());
+        }
     }
 
 
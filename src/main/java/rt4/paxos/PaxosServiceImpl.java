@@ -1,91 +1,238 @@
 package rt4.paxos;
 
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class PaxosServiceImpl extends PaxosServiceGrpc.PaxosServiceImplBase {
     private static final Logger logger = Logger.getLogger(PaxosServiceImpl.class.getName());
 
-    // Server state
-    private int highestSeenProposal = 0;
-    private int acceptedProposalNumber = 0;
-    private int currentValue = -1;
-    private boolean isLeader = false;
+    // This node's id in the topology, and the state of its Paxos groups, one independent instance each
+    private final String nodeId;
+    private final PaxosGroup[] groups;
     private final Random random = new Random();
 
-    // Logging (custom entries for internal use)
-    private final List<LocalLogEntry> eventLog = new CopyOnWriteArrayList<>();
+    // Binary protocol trace, a no-op unless -Dpaxos.trace is set
+    private final TraceRecorder trace = TraceRecorder.get();
+    private final int selfNode;
+    // Stage timings of sampled commands, a no-op unless -Dpaxos.spans is set
+    private final SpanTracer spans = SpanTracer.get();
+
+    // Performance metrics streamed to dashboards
+    private static final int DEFAULT_METRICS_INTERVAL_MS = 500;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final ScheduledExecutorService metricsScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "paxos-metrics");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Leader side of client command replication, set by PaxosProposer
+    private volatile Replicator replicator;
+    // Learners follow the commit stream and never vote
+    private volatile boolean learner = false;
+    private static final long READ_WAIT_MS = 1000;
+    private static final String DEFAULT_NODE_ID = "local";
+    private static final int STREAM_WINDOW = Integer.getInteger("paxos.admission.streamWindow", 64);
+
+    // Protocol event log, written by a background thread
+    private final EventLog events;
+    // Status of the whole cluster, polled only while GetClusterStatus is called
+    private final ClusterView clusterView;
+
+    public PaxosServiceImpl() {
+        this(PaxosProposer.NODE_ID != null ? PaxosProposer.NODE_ID : DEFAULT_NODE_ID);
+    }
+
+     // A service outside PaxosProposer (benchmarks, embedding) names its node itself
+
+    public PaxosServiceImpl(String nodeId) {
+        this(nodeId, GroupRouter.fromSystemProperties().getGroupCount());
+    }
+
+    public PaxosServiceImpl(String nodeId, int groupCount) {
+        this.nodeId = nodeId;
+        this.selfNode = TraceRecorder.nodeNumber(nodeId);
+        groups = new PaxosGroup[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            groups[i] = new PaxosGroup(i, nodeId);
+        }
+        events = EventLog.fromSystemProperties(nodeId, groupCount);
+        clusterView = new ClusterView(nodeId, groupId -> buildStatus(groups[groupId]),
+                ClusterTopology.addresses(ClusterTopology.get().others(nodeId)));
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
 
     @Override
     public void proposeLeader(LeaderProposal request, StreamObserver<LeaderResponse> responseObserver) {
+        PaxosGroup group = groupOrFail(request.getGroupId(), responseObserver);
+        if (group == null || rejectIfLearner(responseObserver)) return;
+        SpanTracer.Span span = spans.startServer("ProposeLeader");
+
         int proposalNumber = request.getProposalNumber();
         String serverId = request.getServerId();
 
-        logEvent("ELECTION", "Received leader proposal " + proposalNumber + " from " + serverId);
+        if (eventsEnabled()) {
+            logEvent(group, "ELECTION", "Received leader proposal {} from {}", proposalNumber, serverId);
+        }
+        int sender = TraceRecorder.nodeNumber(serverId);
+        // A Replicator election names the first slot it takes over; the GUI round has none
+        boolean slotPath = request.getFromSlot() > 0;
+        long slot = slotPath ? request.getFromSlot() : group.getRoundsCommitted() + 1;
+        trace.record(TraceFile.LEADER_PROPOSAL, group.getGroupId(), proposalNumber, slot, sender, selfNode);
+
+        // The new leader must re-propose whatever may already have been chosen
+        List<AcceptedSlot> recovered = slotPath ? group.promiseFrom(proposalNumber, request.getFromSlot()) : null;
+        boolean accepted = slotPath ? recovered != null : group.promiseRound(proposalNumber);
+        int highestSeen = slotPath ? group.getHighestSeenProposal() : group.getRoundPromised();
+
+        LeaderResponse.Builder response = LeaderResponse.newBuilder()
+                .setAccepted(accepted)
+                .setHighestSeen(highestSeen)
+                .setAcceptorId(nodeId)
+                .setGroupId(group.getGroupId());
+        if (slotPath) {
+            response.setAppliedIndex(group.getAppliedIndex());
+        }
+        if (recovered != null) {
+            response.addAllAcceptedSlots(recovered);
+        }
 
-        boolean accepted = proposalNumber > highestSeenProposal;
-        if (accepted) {
-            highestSeenProposal = proposalNumber;
+        if (eventsEnabled()) {
+            logEvent(group, "ELECTION", "Responded to leader proposal: {} (highest={})",
+                    accepted ? "ACCEPTED" : "REJECTED", highestSeen);
         }
+        trace.record(TraceFile.LEADER_RESPONSE, group.getGroupId(), highestSeen, slot, selfNode, sender);
+        span.setAttribute("paxos.recovered_slots", response.getAcceptedSlotsCount()).end();
 
-        LeaderResponse response = LeaderResponse.newBuilder()
-                .setAccepted(accepted)
-                .setHighestSeen(highestSeenProposal)
-                .setAcceptorId("S" + PaxosProposer.PORT)
-                .build();
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
 
-        logEvent("ELECTION", "Responded to leader proposal: " +
-                (accepted ? "ACCEPTED" : "REJECTED") + " (highest=" + highestSeenProposal + ")");
+    @Override
+    public void proposeValue(ValueProposal request, StreamObserver<ValueResponse> responseObserver) {
+        PaxosGroup group = groupOrFail(request.getGroupId(), responseObserver);
+        if (group == null || rejectIfLearner(responseObserver)) return;
+        SpanTracer.Span span = spans.startServer("ProposeValue");
 
+        ValueResponse response = handleValueProposal(group, request, span);
+        span.end();
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
 
     @Override
-    public void proposeValue(ValueProposal request, StreamObserver<ValueResponse> responseObserver) {
+    public void proposeValueBatch(ValueProposalBatch request, StreamObserver<ValueResponseBatch> responseObserver) {
+        if (rejectIfLearner(responseObserver)) return;
+        SpanTracer.Span span = spans.startServer("ProposeValueBatch")
+                .setAttribute("paxos.proposals", request.getProposalsCount());
+        ValueResponseBatch.Builder batch = ValueResponseBatch.newBuilder();
+        for (ValueProposal proposal : request.getProposalsList()) {
+            PaxosGroup group = groupOrFail(proposal.getGroupId(), responseObserver);
+            if (group == null) return;
+            batch.addResponses(handleValueProposal(group, proposal, span));
+        }
+        span.end();
+
+        responseObserver.onNext(batch.build());
+        responseObserver.onCompleted();
+    }
+
+    private ValueResponse handleValueProposal(PaxosGroup group, ValueProposal request, SpanTracer.Span span) {
+        if (request.getSlot() > 0) {
+            return handleSlotProposal(group, request, span);
+        }
         int proposalNumber = request.getProposalNumber();
         int proposedValue = request.getProposedValue();
         String leaderId = request.getLeaderId();
 
-        logEvent("PROPOSAL", "Received value proposal " + proposedValue +
-                " (prop #" + proposalNumber + ") from leader " + leaderId);
+        if (eventsEnabled()) {
+            logEvent(group, "PROPOSAL", "Received value proposal {} (prop #{}) from leader {}",
+                    proposedValue, proposalNumber, leaderId);
+        }
+        int sender = TraceRecorder.nodeNumber(leaderId);
+        long round = group.getRoundsCommitted() + 1;
+        trace.record(TraceFile.VALUE_PROPOSAL, group.getGroupId(), proposalNumber, round, sender, selfNode);
 
-        boolean accepted = proposalNumber >= highestSeenProposal;
+        boolean accepted = group.acceptRound(proposalNumber, proposedValue);
+        trace.record(TraceFile.VALUE_RESPONSE, group.getGroupId(), proposalNumber, round, selfNode, sender);
 
         if (accepted) {
-            acceptedProposalNumber = proposalNumber;
-            currentValue = proposedValue;
-            logEvent("PROPOSAL", "Accepted value " + proposedValue);
+            // A value proposal names the current leader of the group's round
+            boolean selfIsLeader = leaderId.equals(nodeId);
+            if (group.isRoundLeader() != selfIsLeader) {
+                setAsLeader(group.getGroupId(), selfIsLeader);
+            }
+            if (eventsEnabled()) {
+                logEvent(group, "PROPOSAL", "Accepted value {}", proposedValue);
+            }
         } else {
-            logEvent("PROPOSAL", "Rejected value (proposal number too low)");
+            logEvent(group, "PROPOSAL", "Rejected value (proposal number too low)");
         }
 
-        ValueResponse response = ValueResponse.newBuilder()
+        return ValueResponse.newBuilder()
                 .setAccepted(accepted)
-                .setProposalNumber(acceptedProposalNumber)
-                .setAcceptorId("S" + PaxosProposer.PORT)
+                .setProposalNumber(group.getRoundBallot())
+                .setAcceptorId(nodeId)
+                .setGroupId(group.getGroupId())
                 .build();
+    }
 
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+     // Accept request of the Replicator for an explicit slot, recorded in the trace only
+
+    private ValueResponse handleSlotProposal(PaxosGroup group, ValueProposal request, SpanTracer.Span span) {
+        int ballot = request.getProposalNumber();
+        long slot = request.getSlot();
+        int sender = TraceRecorder.nodeNumber(request.getLeaderId());
+        trace.record(TraceFile.VALUE_PROPOSAL, group.getGroupId(), ballot, slot, sender, selfNode);
+
+        SpanTracer.Span append = span.child("log.append").setAttribute("paxos.slot", slot);
+        boolean accepted = group.acceptSlot(ballot, slot, request.getPayload(), request.getLeaderId());
+        append.setAttribute("paxos.accepted", accepted ? 1 : 0).end();
+        trace.record(TraceFile.VALUE_RESPONSE, group.getGroupId(), ballot, slot, selfNode, sender);
+
+        return ValueResponse.newBuilder()
+                .setAccepted(accepted)
+                .setProposalNumber(group.getHighestSeenProposal())
+                .setAcceptorId(nodeId)
+                .setGroupId(group.getGroupId())
+                .build();
     }
 
     @Override
     public void acknowledgeProposal(ProposalAck request, StreamObserver<AckResponse> responseObserver) {
+        PaxosGroup group = groupOrFail(request.getGroupId(), responseObserver);
+        if (group == null) return;
+
+        SpanTracer.Span span = spans.startServer("AcknowledgeProposal");
         int proposalNumber = request.getProposalNumber();
         boolean accepted = request.getAccepted();
         String acceptorId = request.getAcceptorId();
 
-        logEvent("ACK", "Received " + (accepted ? "positive" : "negative") +
-                " acknowledgment for proposal " + proposalNumber + " from " + acceptorId);
+        if (eventsEnabled()) {
+            logEvent(group, "ACK", "Received {} acknowledgment for proposal {} from {}",
+                    accepted ? "positive" : "negative", proposalNumber, acceptorId);
+        }
+        trace.record(TraceFile.ACK, group.getGroupId(), proposalNumber, group.getRoundsCommitted() + 1,
+                TraceRecorder.nodeNumber(acceptorId), selfNode);
 
         AckResponse response = AckResponse.newBuilder()
                 .setReceived(true)
                 .build();
+        span.end();
 
         responseObserver.onNext(response);
         responseObserver.onCompleted();
@@ -93,97 +240,535 @@ public class PaxosServiceImpl extends PaxosServiceGrpc.PaxosServiceImplBase {
 
     @Override
     public void commitValue(ConsensusValue request, StreamObserver<CommitAck> responseObserver) {
+        PaxosGroup group = groupOrFail(request.getGroupId(), responseObserver);
+        if (group == null) return;
+        SpanTracer.Span span = spans.startServer("CommitValue");
+
+        CommitAck ack = handleCommit(group, request, span);
+        span.end();
+        responseObserver.onNext(ack);
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public void commitValueBatch(ConsensusValueBatch request, StreamObserver<CommitAckBatch> responseObserver) {
+        SpanTracer.Span span = spans.startServer("CommitValueBatch")
+                .setAttribute("paxos.values", request.getValuesCount());
+        CommitAckBatch.Builder batch = CommitAckBatch.newBuilder();
+        for (ConsensusValue value : request.getValuesList()) {
+            PaxosGroup group = groupOrFail(value.getGroupId(), responseObserver);
+            if (group == null) return;
+            batch.addAcks(handleCommit(group, value, span));
+        }
+        span.end();
+
+        responseObserver.onNext(batch.build());
+        responseObserver.onCompleted();
+    }
+
+    private CommitAck handleCommit(PaxosGroup group, ConsensusValue request, SpanTracer.Span span) {
+        if (request.getSlot() > 0) {
+            return handleSlotCommit(group, request, span);
+        }
         int proposalNumber = request.getProposalNumber();
         int value = request.getValue();
         String leaderId = request.getLeaderId();
 
-        logEvent("COMMIT", "Received commit for value " + value +
-                " (prop #" + proposalNumber + ") from leader " + leaderId);
+        if (eventsEnabled()) {
+            logEvent(group, "COMMIT", "Received commit for value {} (prop #{}) from leader {}",
+                    value, proposalNumber, leaderId);
+        }
 
-        currentValue = value;
+        int sender = TraceRecorder.nodeNumber(leaderId);
+        long clientId = request.getClientId();
+        long latencyMicros = group.roundInFlightMicros();
+        int outcome = group.commitRound(clientId, request.getSequence(), value);
+        metrics.recordCommit(latencyMicros);
+        boolean duplicate = outcome != SessionTable.NEW;
+        long round = group.getRoundsCommitted();
+        trace.record(TraceFile.COMMIT, group.getGroupId(), proposalNumber, round, sender, selfNode);
+        trace.record(TraceFile.COMMIT_ACK, group.getGroupId(), proposalNumber, round, selfNode, sender);
 
         CommitAck ack = CommitAck.newBuilder()
                 .setSuccess(true)
-                .setServerId("S" + PaxosProposer.PORT)
+                .setServerId(nodeId)
+                .setGroupId(group.getGroupId())
+                .setDuplicate(duplicate)
+                .setResult(duplicate ? group.committedValue(clientId, request.getSequence()) : value)
                 .build();
 
-        logEvent("COMMIT", "Committed value " + value + " to local state");
+        if (duplicate) {
+            if (eventsEnabled()) {
+                logEvent(group, "COMMIT", "Skipped retried command {} from client {} (already applied)",
+                        request.getSequence(), clientId);
+            }
+        } else {
+            if (eventsEnabled()) {
+                logEvent(group, "COMMIT", "Committed value {} to local state", value);
+            }
+        }
+
+        return ack;
+    }
 
-        responseObserver.onNext(ack);
-        responseObserver.onCompleted();
+    private CommitAck handleSlotCommit(PaxosGroup group, ConsensusValue request, SpanTracer.Span span) {
+        int ballot = request.getProposalNumber();
+        long slot = request.getSlot();
+        int sender = TraceRecorder.nodeNumber(request.getLeaderId());
+        trace.record(TraceFile.COMMIT, group.getGroupId(), ballot, slot, sender, selfNode);
+
+        // Accept to commit, as seen here, for this slot
+        long latencyMicros = group.sinceAcceptedMicros(slot);
+        SpanTracer.Span apply = span.child("apply").setAttribute("paxos.slot", slot);
+        boolean committed = group.commitSlot(slot, ballot, request.getIncludesPayload() ? request.getPayload() : null);
+        if (committed) {
+            metrics.recordCommit(latencyMicros);
+            apply.end();
+        } else {
+            apply.fail("Payload needed");
+        }
+        trace.record(TraceFile.COMMIT_ACK, group.getGroupId(), ballot, slot, selfNode, sender);
+
+        // success=false asks the leader to resend the commit with its payload
+        return CommitAck.newBuilder()
+                .setSuccess(committed)
+                .setServerId(nodeId)
+                .setGroupId(group.getGroupId())
+                .build();
     }
 
     @Override
-    public void getServerStatus(StatusRequest request, StreamObserver<ServerStatus> responseObserver) {
-        if (currentValue == -1) {
-            currentValue = random.nextInt(100);
+    public void submit(SubmitRequest request, StreamObserver<SubmitResponse> responseObserver) {
+        PaxosGroup group = groupOrFail(request.getGroupId(), responseObserver);
+        if (group == null) return;
+
+        if (learner) {
+            // Point the client at the leader the commit stream last named
+            SubmitResponse.Builder response = SubmitResponse.newBuilder()
+                    .setAccepted(false)
+                    .setRequestId(request.getRequestId())
+                    .setError("Learners do not accept writes");
+            if (group.getKnownLeader() != null) {
+                response.setLeaderHint(group.getKnownLeader());
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+            return;
         }
 
-        ServerStatus.Builder statusBuilder = ServerStatus.newBuilder()
-                .setServerId("S" + PaxosProposer.PORT)
-                .setCurrentProposal(acceptedProposalNumber)
-                .setIsLeader(isLeader)
-                .setCurrentValue(currentValue);
+        Replicator current = replicator;
+        if (current == null) {
+            responseObserver.onError(Status.UNAVAILABLE
+                    .withDescription("This node does not accept client commands")
+                    .asRuntimeException());
+            return;
+        }
+        current.submit(group, request, responseObserver);
+    }
 
-        // Convert LocalLogEntry to protobuf LogEntry
-        for (LocalLogEntry entry : eventLog) {
-            rt4.paxos.LogEntry proto = rt4.paxos.LogEntry.newBuilder()
-                    .setTimestamp(entry.getTimestamp())
-                    .setEventType(entry.getEventType())
-                    .setDescription(entry.getDescription())
-                    .setProposalNumber(entry.getProposalNumber())
-                    .setValue(entry.getValue())
-                    .build();
+    @Override
+    public StreamObserver<SubmitRequest> submitStream(StreamObserver<SubmitResponse> responseObserver) {
+        ServerCallStreamObserver<SubmitResponse> call = (ServerCallStreamObserver<SubmitResponse>) responseObserver;
+        Replicator current = learner ? null : replicator;
+        if (current == null) {
+            call.onError(Status.UNAVAILABLE
+                    .withDescription("This node does not accept client commands")
+                    .asRuntimeException());
+        }
+        return new SubmitStream(call, current);
+    }
+
+    /**
+     * One pipelining client. At most STREAM_WINDOW requests are read ahead of
+     * their responses, and no more are read while the client is not draining
+     * responses, so a fast writer is held back by HTTP/2 flow control instead
+     * of piling up on the leader.
+     */
+    private class SubmitStream implements StreamObserver<SubmitRequest> {
+        private final ServerCallStreamObserver<SubmitResponse> call;
+        private final Replicator replicator;
+        private int outstanding = 0;
+        private int deferredReads = 0;
+        private boolean halfClosed = false;
+        private boolean closed;
+
+        SubmitStream(ServerCallStreamObserver<SubmitResponse> call, Replicator replicator) {
+            this.call = call;
+            this.replicator = replicator;
+            this.closed = replicator == null;
+            if (closed) return;
+            call.disableAutoRequest();
+            call.setOnReadyHandler(this::onReady);
+            call.request(STREAM_WINDOW);
+        }
 
-            statusBuilder.addLogEntries(proto);
+        @Override
+        public void onNext(SubmitRequest request) {
+            synchronized (this) {
+                if (closed) return;
+                outstanding++;
+            }
+            int groupId = request.getGroupId();
+            if (groupId < 0 || groupId >= groups.length) {
+                send(SubmitResponse.newBuilder()
+                        .setRequestId(request.getRequestId())
+                        .setError("Unknown group " + groupId + " (hosting " + groups.length + ")")
+                        .build());
+                finished();
+                return;
+            }
+
+            replicator.submit(groups[groupId], request, new StreamObserver<SubmitResponse>() {
+                @Override
+                public void onNext(SubmitResponse response) {
+                    send(response);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    send(SubmitResponse.newBuilder()
+                            .setRequestId(request.getRequestId())
+                            .setError(String.valueOf(t.getMessage()))
+                            .build());
+                    finished();
+                }
+
+                @Override
+                public void onCompleted() {
+                    finished();
+                }
+            });
+        }
 
-            if (statusBuilder.getLogEntriesCount() >= 20) break;
+        private synchronized void send(SubmitResponse response) {
+            if (!closed) {
+                call.onNext(response);
+            }
         }
 
-        responseObserver.onNext(statusBuilder.build());
+         // One request answered: read the next one now, or once the client drains its responses
+
+        private synchronized void finished() {
+            outstanding--;
+            if (closed) return;
+            if (call.isReady()) {
+                call.request(1);
+            } else {
+                deferredReads++;
+            }
+            closeIfDone();
+        }
+
+        private synchronized void onReady() {
+            if (deferredReads > 0 && !closed) {
+                call.request(deferredReads);
+                deferredReads = 0;
+            }
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            closed = true;
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            halfClosed = true;
+            closeIfDone();
+        }
+
+        private void closeIfDone() {
+            if (halfClosed && outstanding == 0 && !closed) {
+                closed = true;
+                call.onCompleted();
+            }
+        }
+    }
+
+    @Override
+    public void subscribeCommitted(CommitSubscription request, StreamObserver<CommittedBatch> responseObserver) {
+        PaxosGroup group = groupOrFail(request.getGroupId(), responseObserver);
+        if (group == null) return;
+
+        long fromSlot = Math.max(1, request.getFromSlot());
+        new CommitStream(group, (ServerCallStreamObserver<CommittedBatch>) responseObserver,
+                fromSlot, request.getMaxBatchSlots()).start();
+        if (eventsEnabled()) {
+            logEvent(group, "LEARNER", "{} follows the commit stream from slot {}", request.getSubscriber(), fromSlot);
+        }
+    }
+
+    @Override
+    public void read(ReadRequest request, StreamObserver<ReadResponse> responseObserver) {
+        PaxosGroup group = groupOrFail(request.getGroupId(), responseObserver);
+        if (group == null) return;
+        SpanTracer.Span span = spans.startServer("Read").setAttribute("paxos.min_slot", request.getMinSlot());
+
+        CompletableFuture<?> applied = request.getMinSlot() > group.getAppliedIndex()
+                ? group.awaitApplied(request.getMinSlot())
+                : CompletableFuture.completedFuture(null);
+        applied.orTimeout(READ_WAIT_MS, TimeUnit.MILLISECONDS).whenComplete((ignored, error) -> {
+            if (error != null) {
+                span.fail("Slot not applied in time");
+                responseObserver.onError(Status.UNAVAILABLE
+                        .withDescription("Slot " + request.getMinSlot() + " not applied yet (at " +
+                                group.getAppliedIndex() + ")")
+                        .asRuntimeException());
+                return;
+            }
+            ByteString value = group.read(request.getKey());
+            ReadResponse.Builder response = ReadResponse.newBuilder()
+                    .setFound(value != null)
+                    .setAppliedSlot(group.getAppliedIndex())
+                    .setServerId(nodeId);
+            if (value != null) {
+                response.setValue(value);
+            }
+            span.end();
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override
+    public void getServerStatus(StatusRequest request, StreamObserver<ServerStatus> responseObserver) {
+        PaxosGroup group = groupOrFail(request.getGroupId(), responseObserver);
+        if (group == null) return;
+        responseObserver.onNext(buildStatus(group));
         responseObserver.onCompleted();
     }
 
-    private void logEvent(String eventType, String description) {
-        String timestamp = new SimpleDateFormat("HH:mm:ss.SSS").format(new Date());
-        LocalLogEntry logEntry = new LocalLogEntry(
-                timestamp, eventType, description, acceptedProposalNumber, currentValue);
-        eventLog.add(0, logEntry);
+    @Override
+    public void getClusterStatus(ClusterStatusRequest request, StreamObserver<ClusterStatus> responseObserver) {
+        if (groupOrFail(request.getGroupId(), responseObserver) == null) return;
+        clusterView.status(request).whenComplete((status, error) -> {
+            if (error != null) {
+                responseObserver.onError(Status.INTERNAL.withDescription(error.getMessage()).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(status);
+            responseObserver.onCompleted();
+        });
+    }
+
+    private ServerStatus buildStatus(PaxosGroup group) {
+        group.initValueIfUnset(random.nextInt(100));
 
-        while (eventLog.size() > 100) {
-            eventLog.remove(eventLog.size() - 1);
+        // The replicated log's ballot and leadership, or the GUI round's while the log has none
+        int ballot = group.getAcceptedProposalNumber();
+        ServerStatus.Builder statusBuilder = ServerStatus.newBuilder()
+                .setServerId(nodeId)
+                .setCurrentProposal(ballot != 0 ? ballot : group.getRoundBallot())
+                .setIsLeader(group.isLeader() || (ballot == 0 && group.isRoundLeader()))
+                .setCurrentValue(group.getCurrentValue())
+                .setGroupId(group.getGroupId())
+                .setGroupCount(groups.length)
+                .setRole(learner ? "learner" : "voter");
+
+        // Load report, used by LeaderPlacement on the other nodes
+        long queueDepth = 0;
+        for (PaxosGroup g : groups) {
+            if (g.isLeader()) {
+                statusBuilder.addLedGroups(g.getGroupId());
+            }
+            queueDepth += g.backlog();
+        }
+        Replicator current = replicator;
+        if (current != null) {
+            queueDepth += current.getAdmission().getInFlightCommands();
+            statusBuilder.setMeanPeerRttUs(current.meanPeerRttMicros());
         }
+        statusBuilder.setQueueDepth(queueDepth).setCpuLoad(LeaderPlacement.processCpuLoad());
+
+        // Latest events, newest first, as protobuf LogEntry
+        for (EventLog.Event event : events.recent(20)) {
+            statusBuilder.addLogEntries(rt4.paxos.LogEntry.newBuilder()
+                    .setTimestamp(event.getTimestamp())
+                    .setEventType(event.getType())
+                    .setDescription(event.getMessage())
+                    .setProposalNumber(event.getBallot())
+                    .setValue(event.getValue())
+                    .setGroupId(event.getGroupId())
+                    .build());
+        }
+        return statusBuilder.build();
+    }
 
-        logger.info("[" + eventType + "] " + description);
+    @Override
+    public void streamMetrics(MetricsRequest request, StreamObserver<NodeMetrics> responseObserver) {
+        ServerCallStreamObserver<NodeMetrics> observer = (ServerCallStreamObserver<NodeMetrics>) responseObserver;
+        int intervalMs = request.getIntervalMs() > 0 ? request.getIntervalMs() : DEFAULT_METRICS_INTERVAL_MS;
+        ServerMetrics.Interval interval = metrics.newInterval();
+
+        ScheduledFuture<?> task = metricsScheduler.scheduleAtFixedRate(() -> {
+            // Skip a sample rather than queue it up behind a slow reader
+            if (observer.isCancelled() || !observer.isReady()) return;
+            interval.roll();
+            try {
+                observer.onNext(snapshotMetrics(interval));
+            } catch (RuntimeException e) {
+                // Stream closed concurrently, the cancel handler stops the task
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+
+        observer.setOnCancelHandler(() -> task.cancel(false));
     }
 
-    static class LocalLogEntry {
-        private final String timestamp;
-        private final String eventType;
-        private final String description;
-        private final int proposalNumber;
-        private final int value;
+    private NodeMetrics snapshotMetrics(ServerMetrics.Interval interval) {
+        long inFlight = 0;
+        long applied = 0;
+        for (PaxosGroup g : groups) {
+            inFlight += g.backlog();
+            applied += g.getAppliedIndex();
+        }
+        return NodeMetrics.newBuilder()
+                .setServerId(nodeId)
+                .setTimestampMs(System.currentTimeMillis())
+                .setCommitsTotal(metrics.getCommitsTotal())
+                .setCommitsPerSec(interval.getCommitsPerSec())
+                .setCommitLatencyP50Us(interval.percentileMicros(0.50))
+                .setCommitLatencyP99Us(interval.percentileMicros(0.99))
+                .setInFlightSlots((int) Math.min(inFlight, Integer.MAX_VALUE))
+                .setAppliedIndex(applied)
+                .build();
+    }
 
-        public LocalLogEntry(String timestamp, String eventType, String description,
-                             int proposalNumber, int value) {
-            this.timestamp = timestamp;
-            this.eventType = eventType;
-            this.description = description;
-            this.proposalNumber = proposalNumber;
-            this.value = value;
+    @Override
+    public void transferLeadership(TransferRequest request, StreamObserver<TransferResponse> responseObserver) {
+        PaxosGroup group = groupOrFail(request.getGroupId(), responseObserver);
+        if (group == null || rejectIfLearner(responseObserver)) return;
+        Replicator current = replicator;
+        if (current == null) {
+            responseObserver.onError(Status.UNAVAILABLE
+                    .withDescription("This node does not lead groups")
+                    .asRuntimeException());
+            return;
         }
 
-        public String getTimestamp() { return timestamp; }
-        public String getEventType() { return eventType; }
-        public String getDescription() { return description; }
-        public int getProposalNumber() { return proposalNumber; }
-        public int getValue() { return value; }
+        CompletableFuture<TransferResponse> transfer = request.getTakeOver()
+                ? current.takeOver(group)
+                : current.transferLeadership(group, request.getTargetId());
+        transfer.whenComplete((response, error) -> {
+            if (error != null) {
+                responseObserver.onError(Status.INTERNAL.withDescription(error.getMessage()).asRuntimeException());
+                return;
+            }
+            if (response.getAccepted() && request.getTakeOver()) {
+                logEvent(group, "LEADER", "Took over leadership from {}", request.getFromId());
+            } else if (response.getAccepted()) {
+                if (eventsEnabled()) {
+                    logEvent(group, "LEADER", "Handed leadership to {} in {} ms",
+                            response.getLeaderId(), response.getHandoverMs());
+                }
+            }
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override
+    public void configureFaults(FaultConfig request, StreamObserver<FaultConfig> responseObserver) {
+        FaultInjector faults = FaultInjector.get();
+        if (!faults.isEnabled()) {
+            responseObserver.onError(Status.FAILED_PRECONDITION
+                    .withDescription("Fault injection is off on " + nodeId + " (-Dpaxos.faults=true)")
+                    .asRuntimeException());
+            return;
+        }
+        FaultConfig active;
+        try {
+            active = faults.configure(request);
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            return;
+        }
+        responseObserver.onNext(active);
+        responseObserver.onCompleted();
+    }
+
+     // Resolve the group of a request, failing the call if this node does not host it
+
+    private PaxosGroup groupOrFail(int groupId, StreamObserver<?> responseObserver) {
+        if (groupId < 0 || groupId >= groups.length) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("Unknown group " + groupId + " (hosting " + groups.length + ")")
+                    .asRuntimeException());
+            return null;
+        }
+        return groups[groupId];
+    }
+
+    public int getGroupCount() {
+        return groups.length;
+    }
+
+    private boolean rejectIfLearner(StreamObserver<?> responseObserver) {
+        if (!learner) return false;
+        responseObserver.onError(Status.FAILED_PRECONDITION
+                .withDescription(nodeId + " is a learner and does not vote")
+                .asRuntimeException());
+        return true;
+    }
+
+    public PaxosGroup[] getGroups() {
+        return groups;
+    }
+
+    public void setLearner(boolean learner) {
+        this.learner = learner;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setReplicator(Replicator replicator) {
+        this.replicator = replicator;
+    }
+
+     // Protocol events go to the asynchronous EventLog; nothing is formatted here. Call sites
+     // with int or long arguments test eventsEnabled() first, as those would be boxed regardless
+
+    private boolean eventsEnabled() {
+        return events.isLoggable(Level.INFO);
+    }
+
+    private void logEvent(PaxosGroup group, String eventType, String template) {
+        logEvent(group, eventType, template, null, null, null);
+    }
+
+    private void logEvent(PaxosGroup group, String eventType, String template, Object arg) {
+        logEvent(group, eventType, template, arg, null, null);
+    }
+
+    private void logEvent(PaxosGroup group, String eventType, String template, Object arg0, Object arg1) {
+        logEvent(group, eventType, template, arg0, arg1, null);
+    }
+
+    private void logEvent(PaxosGroup group, String eventType, String template,
+                          Object arg0, Object arg1, Object arg2) {
+        if (!eventsEnabled()) return;
+        events.log(Level.INFO, eventType, group.getGroupId(), group.getAcceptedProposalNumber(),
+                group.getCurrentValue(), template, arg0, arg1, arg2);
+    }
+
+    public EventLog getEvents() {
+        return events;
+    }
+
+    public ClusterView getClusterView() {
+        return clusterView;
     }
 
     public void setAsLeader(boolean isLeader) {
-        this.isLeader = isLeader;
+        setAsLeader(0, isLeader);
+    }
+
+    public void setAsLeader(int groupId, boolean isLeader) {
+        PaxosGroup group = groups[groupId];
+        group.setRoundLeader(isLeader);
         if (isLeader) {
-            logEvent("LEADER", "This server is now the leader");
+            logEvent(group, "LEADER", "This server is now the leader");
         }
     }
 }
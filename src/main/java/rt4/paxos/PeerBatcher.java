@@ -0,0 +1,224 @@
+package rt4.paxos;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.MessageLite;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Coalesces the accepts and commits a leader sends one peer, whatever group
+ * they belong to.
+ *
+ * A call goes out on its own as long as fewer than -Dpaxos.batch.inFlight (8)
+ * calls of its kind are outstanding to the peer, so a lightly loaded leader
+ * pays nothing for batching. Beyond that calls wait, and each outstanding
+ * call that completes sends the waiting ones (up to MAX_BATCH of them, or
+ * MAX_BATCH_BYTES) as one ProposeValueBatch or CommitValueBatch. A leader of
+ * many groups thus makes a few large calls to each peer instead of one per
+ * slot and group. -Dpaxos.batch.inFlight=0 turns batching off.
+ *
+ * Callers pass the stub they would have called, deadline included; a batch
+ * runs until the latest deadline among its calls. Waiting calls whose
+ * deadline has passed fail with DEADLINE_EXCEEDED without being sent.
+ */
+public class PeerBatcher {
+    private static final int IN_FLIGHT = Integer.getInteger("paxos.batch.inFlight", 8);
+    private static final int MAX_BATCH = Integer.getInteger("paxos.batch.max", 256);
+    // Well under the 4 MB gRPC message limit of the receiving node
+    private static final int MAX_BATCH_BYTES = 1 << 20;
+
+    private final Lane<ValueProposal, ValueResponse, ValueProposalBatch, ValueResponseBatch> accepts;
+    private final Lane<ConsensusValue, CommitAck, ConsensusValueBatch, CommitAckBatch> commits;
+
+    public PeerBatcher(String address) {
+        this(address, IN_FLIGHT);
+    }
+
+    PeerBatcher(String address, int inFlight) {
+        PeerChannels channels = PeerChannels.shared();
+        this.accepts = new Lane<>(inFlight,
+                PaxosServiceGrpc.PaxosServiceFutureStub::proposeValue,
+                proposals -> ValueProposalBatch.newBuilder().addAllProposals(proposals).build(),
+                (deadline, batch) -> channels.futureStub(address).withDeadline(deadline).proposeValueBatch(batch),
+                ValueResponseBatch::getResponsesList);
+        this.commits = new Lane<>(inFlight,
+                PaxosServiceGrpc.PaxosServiceFutureStub::commitValue,
+                values -> ConsensusValueBatch.newBuilder().addAllValues(values).build(),
+                (deadline, batch) -> channels.futureStub(address).withDeadline(deadline).commitValueBatch(batch),
+                CommitAckBatch::getAcksList);
+    }
+
+    public ListenableFuture<ValueResponse> propose(PaxosServiceGrpc.PaxosServiceFutureStub stub,
+                                                   ValueProposal proposal) {
+        return accepts.submit(stub, proposal);
+    }
+
+    public ListenableFuture<CommitAck> commit(PaxosServiceGrpc.PaxosServiceFutureStub stub, ConsensusValue value) {
+        return commits.submit(stub, value);
+    }
+
+    /**
+     * Calls of one kind to the peer: Req goes out alone as Req, or with
+     * others as BatchReq, whose BatchResp lists a Resp per Req, in order.
+     */
+    private static final class Lane<Req extends MessageLite, Resp, BatchReq, BatchResp> {
+        private final int maxInFlight;
+        private final BiFunction<PaxosServiceGrpc.PaxosServiceFutureStub, Req, ListenableFuture<Resp>> single;
+        private final Function<List<Req>, BatchReq> wrap;
+        private final BiFunction<Deadline, BatchReq, ListenableFuture<BatchResp>> batchCall;
+        private final Function<BatchResp, List<Resp>> unwrap;
+
+        // Guarded by this
+        private final ArrayDeque<Waiting<Req, Resp>> waiting = new ArrayDeque<>();
+        private int inFlight = 0;
+
+        Lane(int maxInFlight,
+             BiFunction<PaxosServiceGrpc.PaxosServiceFutureStub, Req, ListenableFuture<Resp>> single,
+             Function<List<Req>, BatchReq> wrap,
+             BiFunction<Deadline, BatchReq, ListenableFuture<BatchResp>> batchCall,
+             Function<BatchResp, List<Resp>> unwrap) {
+            this.maxInFlight = maxInFlight;
+            this.single = single;
+            this.wrap = wrap;
+            this.batchCall = batchCall;
+            this.unwrap = unwrap;
+        }
+
+        ListenableFuture<Resp> submit(PaxosServiceGrpc.PaxosServiceFutureStub stub, Req request) {
+            if (maxInFlight <= 0) {
+                return single.apply(stub, request);
+            }
+            SettableFuture<Resp> result;
+            synchronized (this) {
+                if (inFlight >= maxInFlight) {
+                    result = SettableFuture.create();
+                    waiting.add(new Waiting<>(request, stub.getCallOptions().getDeadline(), result));
+                    return result;
+                }
+                inFlight++;
+            }
+            ListenableFuture<Resp> future;
+            try {
+                future = single.apply(stub, request);
+            } catch (RuntimeException e) {
+                done();
+                throw e;
+            }
+            future.addListener(this::done, MoreExecutors.directExecutor());
+            return future;
+        }
+
+         // One outstanding call completed: its slot goes to the calls waiting, if any
+
+        private void done() {
+            List<Waiting<Req, Resp>> batch = new ArrayList<>();
+            List<Waiting<Req, Resp>> expired = new ArrayList<>();
+            synchronized (this) {
+                inFlight--;
+                int bytes = 0;
+                while (!waiting.isEmpty() && batch.size() < MAX_BATCH) {
+                    Waiting<Req, Resp> next = waiting.peek();
+                    if (next.expired()) {
+                        expired.add(waiting.poll());
+                        continue;
+                    }
+                    bytes += next.request.getSerializedSize();
+                    if (!batch.isEmpty() && bytes > MAX_BATCH_BYTES) break;
+                    batch.add(waiting.poll());
+                }
+                if (!batch.isEmpty()) {
+                    inFlight++;
+                }
+            }
+            // Callbacks run outside the lock, as they may send again
+            for (Waiting<Req, Resp> call : expired) {
+                call.result.setException(Status.DEADLINE_EXCEEDED
+                        .withDescription("Deadline passed while waiting to be batched")
+                        .asRuntimeException());
+            }
+            if (!batch.isEmpty()) {
+                send(batch);
+            }
+        }
+
+        private void send(List<Waiting<Req, Resp>> batch) {
+            List<Req> requests = new ArrayList<>(batch.size());
+            // The latest one; none if a call has none
+            Deadline deadline = batch.get(0).deadline;
+            for (Waiting<Req, Resp> call : batch) {
+                requests.add(call.request);
+                if (deadline != null && (call.deadline == null || deadline.isBefore(call.deadline))) {
+                    deadline = call.deadline;
+                }
+            }
+
+            // Sent from whichever call completed last, whose Context is not the waiting calls'
+            Context batchContext = Context.ROOT.fork();
+            Context previous = batchContext.attach();
+            ListenableFuture<BatchResp> future;
+            try {
+                future = batchCall.apply(deadline, wrap.apply(requests));
+            } catch (RuntimeException e) {
+                for (Waiting<Req, Resp> call : batch) {
+                    call.result.setException(e);
+                }
+                done();
+                return;
+            } finally {
+                batchContext.detach(previous);
+            }
+            Futures.addCallback(future, new FutureCallback<BatchResp>() {
+                @Override
+                public void onSuccess(BatchResp response) {
+                    List<Resp> responses = unwrap.apply(response);
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (i < responses.size()) {
+                            batch.get(i).result.set(responses.get(i));
+                        } else {
+                            batch.get(i).result.setException(Status.INTERNAL
+                                    .withDescription("Batch answered " + responses.size() + " of " + batch.size())
+                                    .asRuntimeException());
+                        }
+                    }
+                    done();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    for (Waiting<Req, Resp> call : batch) {
+                        call.result.setException(t);
+                    }
+                    done();
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+
+    private static final class Waiting<Req, Resp> {
+        final Req request;
+        // Null when the caller set none
+        final Deadline deadline;
+        final SettableFuture<Resp> result;
+
+        Waiting(Req request, Deadline deadline, SettableFuture<Resp> result) {
+            this.request = request;
+            this.deadline = deadline;
+            this.result = result;
+        }
+
+        boolean expired() {
+            return deadline != null && deadline.isExpired();
+        }
+    }
+}
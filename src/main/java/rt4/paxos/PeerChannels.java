@@ -0,0 +1,171 @@
+package rt4.paxos;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.ServerBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Long-lived gRPC channels to the other nodes, shared by everything in the
+ * process that talks to them (Replicator, Learner, ClusterView, the launcher
+ * and the GUI), with their stubs cached.
+ *
+ * Each target ("host:port") gets -Dpaxos.rpc.channelsPerPeer channels (1),
+ * connected as soon as they are created and kept open with HTTP/2 keepalive
+ * pings, so no handshake lands on a request. gRPC reconnects a broken
+ * channel by itself, but its backoff grows to two minutes; here a channel in
+ * TRANSIENT_FAILURE has its backoff reset after RECONNECT_MS, so a restarted
+ * peer is reached again within about a second. Servers accept the pings
+ * through permitKeepAlive.
+ */
+public class PeerChannels {
+    private static final Logger logger = Logger.getLogger(PeerChannels.class.getName());
+
+    private static final int CHANNELS_PER_PEER = Integer.getInteger("paxos.rpc.channelsPerPeer", 1);
+    private static final long KEEPALIVE_MS = Long.getLong("paxos.rpc.keepAliveMs", 10_000);
+    private static final long KEEPALIVE_TIMEOUT_MS = 5_000;
+    private static final long RECONNECT_MS = 1_000;
+
+    private static final PeerChannels SHARED = new PeerChannels();
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reconnects = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "paxos-reconnect");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean closed = false;
+
+    public static PeerChannels shared() {
+        return SHARED;
+    }
+
+    public ManagedChannel channel(String target) {
+        Peer peer = peer(target);
+        return peer.channels.get(peer.next());
+    }
+
+     // Cached stubs, spread over the target's channels
+
+    public PaxosServiceGrpc.PaxosServiceFutureStub futureStub(String target) {
+        Peer peer = peer(target);
+        return peer.futureStubs.get(peer.next());
+    }
+
+    public PaxosServiceGrpc.PaxosServiceBlockingStub blockingStub(String target) {
+        Peer peer = peer(target);
+        return peer.blockingStubs.get(peer.next());
+    }
+
+    public PaxosServiceGrpc.PaxosServiceStub asyncStub(String target) {
+        Peer peer = peer(target);
+        return peer.asyncStubs.get(peer.next());
+    }
+
+     // Let clients keep connections open with the pings sent from here
+
+    public static void permitKeepAlive(ServerBuilder<?> builder) {
+        builder.permitKeepAliveTime(KEEPALIVE_MS / 2, TimeUnit.MILLISECONDS)
+                .permitKeepAliveWithoutCalls(true);
+    }
+
+     // Channels to a target that is gone for good (its peer list entry removed)
+
+    public void release(String target) {
+        Peer peer = peers.remove(normalize(target));
+        if (peer != null) {
+            for (ManagedChannel channel : peer.channels) {
+                channel.shutdown();
+            }
+        }
+    }
+
+    public void shutdown() {
+        closed = true;
+        reconnects.shutdownNow();
+        for (Peer peer : peers.values()) {
+            for (ManagedChannel channel : peer.channels) {
+                // Open commit and metrics streams would hold a graceful shutdown
+                channel.shutdownNow();
+            }
+        }
+        peers.clear();
+    }
+
+    private Peer peer(String target) {
+        if (closed) {
+            throw new IllegalStateException("Peer channels are shut down");
+        }
+        return peers.computeIfAbsent(normalize(target), Peer::new);
+    }
+
+     // "localhost:50051", "dns:///localhost:50051" and " localhost:50051" are one peer
+
+    private static String normalize(String target) {
+        String trimmed = target.trim();
+        return trimmed.startsWith("dns:///") ? trimmed.substring("dns:///".length()) : trimmed;
+    }
+
+    private ManagedChannel open(String target) {
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(target)
+                .usePlaintext()
+                .keepAliveTime(KEEPALIVE_MS, TimeUnit.MILLISECONDS)
+                .keepAliveTimeout(KEEPALIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .keepAliveWithoutCalls(true)
+                .idleTimeout(1, TimeUnit.DAYS)
+                .intercept(FaultInjector.get().clientInterceptor())
+                .build();
+        watch(target, channel, channel.getState(true));
+        return channel;
+    }
+
+    private void watch(String target, ManagedChannel channel, ConnectivityState state) {
+        if (closed || state == ConnectivityState.SHUTDOWN) return;
+        channel.notifyWhenStateChanged(state, () -> {
+            ConnectivityState next = channel.getState(true);
+            if (next == ConnectivityState.TRANSIENT_FAILURE && !closed) {
+                logger.fine("Lost " + target + ", reconnecting in " + RECONNECT_MS + " ms");
+                try {
+                    reconnects.schedule(channel::resetConnectBackoff, RECONNECT_MS, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Shut down in the meantime
+                    return;
+                }
+            }
+            watch(target, channel, next);
+        });
+    }
+
+    private final class Peer {
+        final List<ManagedChannel> channels = new ArrayList<>();
+        final List<PaxosServiceGrpc.PaxosServiceFutureStub> futureStubs = new ArrayList<>();
+        final List<PaxosServiceGrpc.PaxosServiceBlockingStub> blockingStubs = new ArrayList<>();
+        final List<PaxosServiceGrpc.PaxosServiceStub> asyncStubs = new ArrayList<>();
+        final AtomicInteger nextChannel = new AtomicInteger();
+
+        Peer(String target) {
+            for (int i = 0; i < Math.max(1, CHANNELS_PER_PEER); i++) {
+                ManagedChannel channel = open(target);
+                channels.add(channel);
+                futureStubs.add(PaxosServiceGrpc.newFutureStub(channel));
+                blockingStubs.add(PaxosServiceGrpc.newBlockingStub(channel));
+                asyncStubs.add(PaxosServiceGrpc.newStub(channel));
+            }
+        }
+
+        int next() {
+            return channels.size() == 1 ? 0 : Math.floorMod(nextChannel.getAndIncrement(), channels.size());
+        }
+    }
+}
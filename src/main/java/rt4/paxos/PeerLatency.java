@@ -0,0 +1,101 @@
+package rt4.paxos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Smoothed round-trip time of every peer, used to give each call a deadline
+ * that follows the peer's actual latency instead of a fixed second.
+ *
+ * Estimates follow TCP's retransmission timer (RFC 6298): srtt and rttvar are
+ * exponentially weighted, and the deadline is srtt + 4 * rttvar, clamped to
+ * [min, max]. A timeout doubles the estimate so a peer that stalls gets more
+ * room on the next call. Concurrent updates are not serialized; a racing
+ * update can only drop a sample.
+ */
+public class PeerLatency {
+    private static final long UNKNOWN = -1;
+
+    private final AtomicLongArray srttMicros;
+    private final AtomicLongArray rttvarMicros;
+    private final long minDeadlineMicros;
+    private final long maxDeadlineMicros;
+
+    public PeerLatency(int peers, long minDeadlineMicros, long maxDeadlineMicros) {
+        this.srttMicros = new AtomicLongArray(peers);
+        this.rttvarMicros = new AtomicLongArray(peers);
+        this.minDeadlineMicros = minDeadlineMicros;
+        this.maxDeadlineMicros = maxDeadlineMicros;
+        for (int i = 0; i < peers; i++) {
+            srttMicros.set(i, UNKNOWN);
+        }
+    }
+
+    public void record(int peer, long micros) {
+        long srtt = srttMicros.get(peer);
+        if (srtt == UNKNOWN) {
+            srttMicros.set(peer, micros);
+            rttvarMicros.set(peer, micros / 2);
+            return;
+        }
+        long rttvar = rttvarMicros.get(peer);
+        rttvarMicros.set(peer, rttvar + (Math.abs(srtt - micros) - rttvar) / 4);
+        srttMicros.set(peer, srtt + (micros - srtt) / 8);
+    }
+
+    public void recordTimeout(int peer) {
+        long srtt = srttMicros.get(peer);
+        srttMicros.set(peer, srtt == UNKNOWN ? maxDeadlineMicros : Math.min(maxDeadlineMicros, srtt * 2));
+    }
+
+     // Deadline for the next call, the maximum until the peer has answered once
+
+    public long deadlineMicros(int peer) {
+        long srtt = srttMicros.get(peer);
+        if (srtt == UNKNOWN) return maxDeadlineMicros;
+        long deadline = srtt + 4 * rttvarMicros.get(peer);
+        return Math.max(minDeadlineMicros, Math.min(maxDeadlineMicros, deadline));
+    }
+
+     // How long to wait for the peer before treating it as late: srtt + 2 * rttvar
+
+    public long lateAfterMicros(int peer) {
+        long srtt = srttMicros.get(peer);
+        if (srtt == UNKNOWN) return maxDeadlineMicros;
+        long late = srtt + 2 * rttvarMicros.get(peer);
+        return Math.max(minDeadlineMicros / 2, Math.min(maxDeadlineMicros, late));
+    }
+
+    public long maxDeadlineMicros() {
+        return maxDeadlineMicros;
+    }
+
+     // Expected round trip, or the maximum deadline when still unknown
+
+    public long expectedMicros(int peer) {
+        long srtt = srttMicros.get(peer);
+        return srtt == UNKNOWN ? maxDeadlineMicros : srtt;
+    }
+
+     // Peer indexes from fastest to slowest
+
+    public int[] peersByLatency() {
+        int n = srttMicros.length();
+        int[] order = new int[n];
+        long[] expected = new long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+            expected[i] = expectedMicros(i);
+        }
+        // Insertion sort, clusters are small
+        for (int i = 1; i < n; i++) {
+            int peer = order[i];
+            int j = i - 1;
+            while (j >= 0 && expected[order[j]] > expected[peer]) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = peer;
+        }
+        return order;
+    }
+}
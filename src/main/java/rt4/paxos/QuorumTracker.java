@@ -0,0 +1,136 @@
+package rt4.paxos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free vote counting for the slots a leader has in flight.
+ *
+ * Every in-flight slot owns one word of a ring indexed by slot number. The
+ * word packs the voters that accepted, the voters that failed, a "decided"
+ * bit, an "in use" bit and a tag derived from the slot number, and is only
+ * ever changed by compare-and-set. The vote that completes a quorum (or makes
+ * it impossible) sets the decided bit, so exactly one caller sees QUORUM or
+ * LOST; later votes are still recorded but never decide again. Votes carrying
+ * the tag of a slot that was retired are dropped, so late responses can not
+ * leak into whatever slot reuses the word.
+ *
+ * Voter 0 is the leader itself, peer i is voter i + 1.
+ */
+public class QuorumTracker {
+    public static final int PENDING = 0;
+    public static final int QUORUM = 1;
+    public static final int LOST = 2;
+
+    public static final int MAX_VOTERS = 24;
+
+    private static final long VOTER_MASK = (1L << MAX_VOTERS) - 1;
+    private static final int FAIL_SHIFT = MAX_VOTERS;
+    private static final long DECIDED = 1L << 48;
+    private static final long IN_USE = 1L << 49;
+    private static final int TAG_SHIFT = 50;
+    private static final long TAG_MASK = (1L << (64 - TAG_SHIFT)) - 1;
+
+    private final AtomicLongArray words;
+    private final int mask;
+    private final int shift;
+    private final int voters;
+    private final int quorum;
+
+    public QuorumTracker(int voters, int quorum, int capacity) {
+        if (voters > MAX_VOTERS) {
+            throw new IllegalArgumentException("At most " + MAX_VOTERS + " voters, got " + voters);
+        }
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.words = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.shift = Integer.numberOfTrailingZeros(size);
+        this.voters = voters;
+        this.quorum = quorum;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Starts tracking a slot. Returns false if its word is still held by the
+     * slot one ring length earlier, i.e. too many slots are in flight.
+     */
+    public boolean open(long slot) {
+        int i = index(slot);
+        long fresh = IN_USE | (tag(slot) << TAG_SHIFT);
+        while (true) {
+            long word = words.get(i);
+            if ((word & IN_USE) != 0) return false;
+            if (words.compareAndSet(i, word, fresh)) return true;
+        }
+    }
+
+     // Record an accepting voter, QUORUM if this vote completed the quorum
+
+    public int ack(long slot, int voter) {
+        return vote(slot, 1L << voter);
+    }
+
+     // Record a voter that rejected or timed out, LOST if a quorum is now out of reach
+
+    public int fail(long slot, int voter) {
+        return vote(slot, 1L << (FAIL_SHIFT + voter));
+    }
+
+    public boolean acked(long slot, int voter) {
+        long word = words.get(index(slot));
+        return owns(word, slot) && (word & (1L << voter)) != 0;
+    }
+
+     // True once the slot reached a quorum, lost it, or is no longer tracked
+
+    public boolean decided(long slot) {
+        long word = words.get(index(slot));
+        return !owns(word, slot) || (word & DECIDED) != 0;
+    }
+
+     // Stop tracking the slot; votes still on their way are dropped
+
+    public void retire(long slot) {
+        int i = index(slot);
+        while (true) {
+            long word = words.get(i);
+            if (!owns(word, slot)) return;
+            if (words.compareAndSet(i, word, word & ~IN_USE)) return;
+        }
+    }
+
+    private int vote(long slot, long bit) {
+        int i = index(slot);
+        while (true) {
+            long word = words.get(i);
+            if (!owns(word, slot)) return PENDING;
+            long updated = word | bit;
+            if (updated == word) return PENDING;
+
+            int outcome = PENDING;
+            if ((word & DECIDED) == 0) {
+                if (Long.bitCount(updated & VOTER_MASK) >= quorum) {
+                    outcome = QUORUM;
+                } else if (voters - Long.bitCount((updated >>> FAIL_SHIFT) & VOTER_MASK) < quorum) {
+                    outcome = LOST;
+                }
+                if (outcome != PENDING) updated |= DECIDED;
+            }
+            if (words.compareAndSet(i, word, updated)) return outcome;
+        }
+    }
+
+    private boolean owns(long word, long slot) {
+        return (word & IN_USE) != 0 && (word >>> TAG_SHIFT) == tag(slot);
+    }
+
+    private int index(long slot) {
+        return (int) slot & mask;
+    }
+
+    private long tag(long slot) {
+        return (slot >>> shift) & TAG_MASK;
+    }
+}
@@ -0,0 +1,791 @@
+package rt4.paxos;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import io.grpc.ConnectivityState;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Leader side of Multi-Paxos for client commands.
+ *
+ * The first Submit a node receives for a group without a known leader, or
+ * whose known leader cannot be connected to, runs phase 1 for it, unless the
+ * group never had an election and its preferred leader (GroupRouter) is
+ * another voter that can be reached: the client is sent there instead, so
+ * leadership of a cold cluster's groups is spread over the voters. After that
+ * every submitted batch gets its own log slot and goes straight to phase 2,
+ * and the client is answered once the slot has been applied locally.
+ *
+ * A batch is framed once (CommandBatch) into a ByteString that is shared by
+ * the local log write and every peer's accept request; commits carry the
+ * payload only to peers that did not acknowledge the accept. Under load, a
+ * peer's accepts and commits of all groups are coalesced by its PeerBatcher.
+ *
+ * Phase 2 votes are counted by a lock-free QuorumTracker, so a slot commits
+ * on the fastest quorum of responses, whatever the slow peers do. Each group
+ * gets a new tracker every time this node wins its phase 1, so late votes
+ * never count for another group's slot or another term's. Every call
+ * gets a deadline from the peer's measured latency (PeerLatency); a call that
+ * misses it is retried once with the full deadline while its slot is still
+ * undecided. With -Dpaxos.hedge=true, accepts first go only to the fastest
+ * peers needed for a quorum, and the others are added as soon as one of them
+ * is late or fails.
+ *
+ * A slot, once handed out, has to be chosen before any later one can be
+ * applied. When it misses a quorum, or cannot be tracked because too many
+ * slots are in flight, its client is answered with an error, but the slot is
+ * proposed again (same ballot, same payload) with backoff for as long as this
+ * node leads with that ballot. A leader that steps down leaves it to the next
+ * one, whose phase 1 re-proposes it or fills it with a no-op.
+ *
+ * Submits pass AdmissionControl first; when the in-flight budget is used up
+ * they are rejected with a retry-after hint instead of being queued.
+ *
+ * Sampled submits (SpanTracer) time each stage of this pipeline, and their
+ * peer calls carry the trace so followers add their own stages to it.
+ *
+ * Leadership can be handed over (transferLeadership): the leader stops
+ * taking new slots, waits until the ones in flight are applied, steps down
+ * and asks the target to run phase 1 at once, so the group is only without
+ * a leader for one election round trip.
+ */
+public class Replicator {
+    private static final Logger logger = Logger.getLogger(Replicator.class.getName());
+
+    public static final String PEERS_PROPERTY = "paxos.peers";
+    private static final long RPC_DEADLINE_MS = 1000;
+    private static final long MIN_DEADLINE_MS = Long.getLong("paxos.rpc.minDeadlineMs", 10);
+    private static final boolean HEDGE = Boolean.getBoolean("paxos.hedge");
+    private static final int COMMIT_ATTEMPTS = 6;
+    private static final long COMMIT_RETRY_MS = 100;
+    private static final long REPROPOSE_MAX_MS = 1000;
+    // Slots one group can have in flight
+    private static final int QUORUM_WINDOW = Integer.getInteger("paxos.quorum.window", 4096);
+    private static final long TRANSFER_DRAIN_MS = 1000;
+
+    private final String selfId;
+    private final int selfNode;
+    private final ServerMetrics metrics;
+    private final List<String> peerAddresses;
+    private final List<String> peerIds;
+    private final PeerChannels peerChannels = PeerChannels.shared();
+    // Coalesce this node's accepts and commits to each peer, across its groups
+    private final PeerBatcher[] batchers;
+    private final int[] peerPorts;
+    private final int quorum;
+    private final GroupRouter router = GroupRouter.fromSystemProperties();
+    // All voters, in the order GroupRouter assigns preferred leaders
+    private final List<String> voterIds =
+            GroupRouter.leaderOrder(ClusterTopology.ids(ClusterTopology.get().voters()));
+    private final PeerLatency latency;
+    private final AdmissionControl admission = AdmissionControl.fromSystemProperties();
+    private final SpanTracer spans = SpanTracer.get();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "paxos-replicator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // One phase 1 at a time per group, shared by the submits that wait for it
+    private final Map<Integer, CompletableFuture<Integer>> elections = new ConcurrentHashMap<>();
+    // Groups whose leadership is being handed over, and to whom
+    private final Map<Integer, String> transfers = new ConcurrentHashMap<>();
+    private volatile CatchUp catchUp;
+
+     // The other voters, from the cluster topology
+
+    public Replicator(String selfId, List<ClusterTopology.Node> peers, ServerMetrics metrics) {
+        this.selfId = selfId;
+        this.selfNode = TraceRecorder.nodeNumber(selfId);
+        this.metrics = metrics;
+        this.peerAddresses = ClusterTopology.addresses(peers);
+        this.peerIds = ClusterTopology.ids(peers);
+        this.peerPorts = new int[peers.size()];
+        this.batchers = new PeerBatcher[peers.size()];
+        for (int i = 0; i < peerPorts.length; i++) {
+            peerPorts[i] = peers.get(i).getPort();
+        }
+        for (int i = 0; i < peerAddresses.size(); i++) {
+            // Connect now rather than on the first accept
+            peerChannels.channel(peerAddresses.get(i));
+            batchers[i] = new PeerBatcher(peerAddresses.get(i));
+        }
+        this.quorum = (peerAddresses.size() + 1) / 2 + 1;
+        this.latency = new PeerLatency(peerAddresses.size(), MIN_DEADLINE_MS * 1000, RPC_DEADLINE_MS * 1000);
+    }
+
+    public List<String> getPeerAddresses() {
+        return peerAddresses;
+    }
+
+     // Where a candidate refused by an acceptor ahead of it gets the slots it missed
+
+    public void setCatchUp(CatchUp catchUp) {
+        this.catchUp = catchUp;
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    /**
+     * Replicates a client request and answers it on the observer, with one
+     * onNext followed by onCompleted.
+     */
+    public void submit(PaxosGroup group, SubmitRequest request, StreamObserver<SubmitResponse> observer) {
+        int commandCount = request.getCommandsCount();
+        long size = request.getSerializedSize();
+        SpanTracer.Span span = spans.startTrace("Submit")
+                .setAttribute("paxos.group", group.getGroupId())
+                .setAttribute("paxos.commands", commandCount);
+        if (!admission.tryAcquire(commandCount, size)) {
+            span.fail("Leader overloaded");
+            observer.onNext(SubmitResponse.newBuilder()
+                    .setAccepted(false)
+                    .setRequestId(request.getRequestId())
+                    .setError("Leader overloaded")
+                    .setRetryAfterMs(admission.retryAfterMillis())
+                    .build());
+            observer.onCompleted();
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        route(group, request, new StreamObserver<SubmitResponse>() {
+            @Override
+            public void onNext(SubmitResponse response) {
+                admission.release(commandCount, size,
+                        response.getAccepted() ? (System.nanoTime() - startNanos) / 1000 : -1);
+                if (response.getAccepted()) {
+                    span.setAttribute("paxos.slot", response.getSlot()).end();
+                } else {
+                    span.fail(response.getError());
+                }
+                observer.onNext(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                observer.onError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                observer.onCompleted();
+            }
+        }, span);
+    }
+
+    private void route(PaxosGroup group, SubmitRequest request, StreamObserver<SubmitResponse> observer,
+                       SpanTracer.Span span) {
+        String newLeader = transfers.get(group.getGroupId());
+        if (newLeader != null) {
+            reject(observer, request, newLeader, "Leadership of group " + group.getGroupId() + " is moving");
+            return;
+        }
+        int ballot = group.getLeaderBallot();
+        if (ballot == 0) {
+            String leader = group.getKnownLeader();
+            if (leader != null && !leader.equals(selfId) && !isUnreachable(leader)) {
+                reject(observer, request, leader, "Not the leader of group " + group.getGroupId());
+                return;
+            }
+            String preferred = router.preferredLeader(group.getGroupId(), voterIds);
+            if (group.getHighestSeenProposal() == 0 && !preferred.equals(selfId) && peerIndex(preferred) >= 0
+                    && !isUnreachable(preferred)) {
+                reject(observer, request, preferred, "Group " + group.getGroupId() + " prefers " + preferred);
+                return;
+            }
+            SpanTracer.Span election = span.child("election");
+            elect(group).whenComplete((won, error) -> {
+                if (error != null) {
+                    election.fail(error.getMessage());
+                    reject(observer, request, group.getKnownLeader(), "Election failed: " + error.getMessage());
+                } else {
+                    election.end();
+                    route(group, request, observer, span);
+                }
+            });
+            return;
+        }
+
+        long slot = group.reserveSlot(ballot);
+        if (slot < 0) {
+            // Lost leadership since reading the ballot
+            route(group, request, observer, span);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        group.awaitApplied(slot).whenComplete((results, error) -> {
+            if (error != null) {
+                reject(observer, request, group.getKnownLeader(), error.getMessage());
+                return;
+            }
+            metrics.recordCommit((System.nanoTime() - startNanos) / 1000);
+            observer.onNext(SubmitResponse.newBuilder()
+                    .setAccepted(true)
+                    .setRequestId(request.getRequestId())
+                    .setSlot(slot)
+                    .addAllResults(results)
+                    .build());
+            observer.onCompleted();
+        });
+
+        SpanTracer.Span batching = span.child("batch");
+        ByteString payload = CommandBatch.newBuilder()
+                .addAllCommands(request.getCommandsList())
+                .build()
+                .toByteString();
+        batching.setAttribute("paxos.bytes", payload.size()).end();
+        replicate(group, ballot, slot, payload, span, 0);
+    }
+
+     // Phase 2 for one slot, then commit once a quorum accepted
+
+    private void replicate(PaxosGroup group, int ballot, long slot, ByteString payload, SpanTracer.Span span,
+                           int attempt) {
+        QuorumTracker votes = group.votesFor(ballot);
+        if (votes == null) {
+            group.failSlot(slot, new IllegalStateException("Leadership lost before slot " + slot));
+            return;
+        }
+        // Tracked before the local accept, so there is no accepted slot nobody votes on
+        if (!votes.open(slot)) {
+            group.failSlot(slot, new IllegalStateException("Too many slots in flight"));
+            repropose(group, ballot, slot, payload, attempt);
+            return;
+        }
+        SpanTracer.Span append = span.child("log.append");
+        if (!group.acceptSlot(ballot, slot, payload, selfId)) {
+            append.fail("Leadership lost");
+            votes.retire(slot);
+            group.stepDown();
+            group.failSlot(slot, new IllegalStateException("Leadership lost before slot " + slot));
+            return;
+        }
+        append.end();
+
+        // Until the deciding vote: the quorum wait of this slot
+        SpanTracer.Span quorumWait = span.child("quorum").setAttribute("paxos.slot", slot);
+        if (votes.ack(slot, 0) == QuorumTracker.QUORUM) {
+            quorumWait.end();
+            commit(group, votes, ballot, slot, payload, span);
+            return;
+        }
+
+        ValueProposal proposal = ValueProposal.newBuilder()
+                .setProposalNumber(ballot)
+                .setLeaderId(selfId)
+                .setGroupId(group.getGroupId())
+                .setSlot(slot)
+                .setPayload(payload)
+                .build();
+
+        int[] order = latency.peersByLatency();
+        int primaries = HEDGE ? Math.min(quorum - 1, order.length) : order.length;
+        AtomicBoolean hedged = new AtomicBoolean(primaries == order.length);
+        BooleanSupplier undecided = () -> !votes.decided(slot);
+
+        // Adds the peers held back by hedging, at most once
+        Runnable hedge = () -> {
+            if (hedged.compareAndSet(false, true) && undecided.getAsBoolean()) {
+                for (int k = primaries; k < order.length; k++) {
+                    sendAccept(group, votes, ballot, slot, payload, proposal, order[k], null, undecided, quorumWait,
+                            span, attempt);
+                }
+            }
+        };
+
+        // Like commits, accepts must not be cancelled with the Submit call that may be current here:
+        // a client giving up on its answer does not withdraw the slot
+        long lateAfterMicros = 0;
+        Context acceptContext = Context.current().fork();
+        Context previous = acceptContext.attach();
+        try {
+            for (int k = 0; k < primaries; k++) {
+                sendAccept(group, votes, ballot, slot, payload, proposal, order[k], hedge, undecided, quorumWait,
+                        span, attempt);
+                lateAfterMicros = Math.max(lateAfterMicros, latency.lateAfterMicros(order[k]));
+            }
+        } finally {
+            acceptContext.detach(previous);
+        }
+        if (!hedged.get()) {
+            timer.schedule(hedge, lateAfterMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void sendAccept(PaxosGroup group, QuorumTracker votes, int ballot, long slot, ByteString payload,
+                            ValueProposal proposal, int peer, Runnable onMiss, BooleanSupplier undecided,
+                            SpanTracer.Span quorumWait, SpanTracer.Span span, int attempt) {
+        // A traced accept goes out alone, so its trace reaches the peer
+        SpanTracer.Span call = quorumWait.child("ProposeValue", SpanTracer.CLIENT);
+        Function<PaxosServiceGrpc.PaxosServiceFutureStub, ListenableFuture<ValueResponse>> accept =
+                stub -> call.isSampled() ? stub.proposeValue(proposal) : batchers[peer].propose(stub, proposal);
+        send(peer, accept, (from, response) -> {
+            if (response != null && response.getAccepted()) {
+                if (votes.ack(slot, peer + 1) == QuorumTracker.QUORUM) {
+                    quorumWait.end();
+                    commit(group, votes, ballot, slot, payload, span);
+                }
+                return;
+            }
+            if (response != null) {
+                // An acceptor promised a higher ballot: another node is leading now
+                group.stepDown();
+            }
+            if (onMiss != null) {
+                onMiss.run();
+            }
+            if (votes.fail(slot, peer + 1) == QuorumTracker.LOST) {
+                quorumWait.fail("No quorum");
+                votes.retire(slot);
+                group.failSlot(slot, new IllegalStateException("No quorum accepted slot " + slot));
+                repropose(group, ballot, slot, payload, attempt);
+            }
+        }, latency.deadlineMicros(peer), undecided, call);
+    }
+
+     // Phase 2 for the slot again after a backoff, unless this node stopped leading with the ballot
+
+    private void repropose(PaxosGroup group, int ballot, long slot, ByteString payload, int attempt) {
+        if (group.getLeaderBallot() != ballot || timer.isShutdown()) return;
+        if (attempt == 0) {
+            logger.info("Group " + group.getGroupId() + ": slot " + slot + " not chosen yet, proposing it again");
+        }
+        long delayMs = Math.min(REPROPOSE_MAX_MS, COMMIT_RETRY_MS << Math.min(attempt, 10));
+        try {
+            timer.schedule(() -> {
+                if (group.getLeaderBallot() == ballot) {
+                    replicate(group, ballot, slot, payload, SpanTracer.Span.NONE, attempt + 1);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down in the meantime
+        }
+    }
+
+    private void commit(PaxosGroup group, QuorumTracker votes, int ballot, long slot, ByteString payload,
+                        SpanTracer.Span span) {
+        SpanTracer.Span apply = span.child("apply");
+        group.commitSlot(slot, ballot, payload);
+        apply.end();
+
+        // Commits outlive the Submit call whose Context may be current here;
+        // its cancellation, once the client is answered, would cancel them too
+        Context commitContext = Context.current().fork();
+        Context previous = commitContext.attach();
+        try {
+            for (int i = 0; i < peerAddresses.size(); i++) {
+                boolean acked = votes.acked(slot, i + 1);
+                sendCommit(i, commitMessage(group, ballot, slot, acked ? null : payload), payload, 1, span);
+            }
+        } finally {
+            commitContext.detach(previous);
+        }
+        votes.retire(slot);
+    }
+
+    private static ConsensusValue withPayload(ConsensusValue value, ByteString payload) {
+        return value.getIncludesPayload() ? value
+                : value.toBuilder().setPayload(payload).setIncludesPayload(true).build();
+    }
+
+    private ConsensusValue commitMessage(PaxosGroup group, int ballot, long slot, ByteString payload) {
+        return ConsensusValue.newBuilder()
+                .setProposalNumber(ballot)
+                .setLeaderId(selfId)
+                .setGroupId(group.getGroupId())
+                .setSlot(slot)
+                .setPayload(payload == null ? ByteString.EMPTY : payload)
+                .setIncludesPayload(payload != null)
+                .build();
+    }
+
+    /**
+     * A follower that misses a commit cannot apply past that slot, so failed
+     * commits are retried with backoff, carrying the payload in case the
+     * accept was lost as well. Past COMMIT_ATTEMPTS the follower's CatchUp
+     * fetches the slot from this node once it notices it is stuck.
+     */
+    private void sendCommit(int peer, ConsensusValue value, ByteString payload, int attempt, SpanTracer.Span span) {
+        SpanTracer.Span call = span.child("CommitValue", SpanTracer.CLIENT)
+                .setAttribute("net.peer.port", peerPorts[peer])
+                .setAttribute("paxos.attempt", attempt);
+        PaxosServiceGrpc.PaxosServiceFutureStub commitStub = call.propagate(stub(peer))
+                .withDeadlineAfter(latency.maxDeadlineMicros(), TimeUnit.MICROSECONDS);
+        ListenableFuture<CommitAck> future = call.isSampled() ? commitStub.commitValue(value)
+                : batchers[peer].commit(commitStub, value);
+        Futures.addCallback(future, new FutureCallback<CommitAck>() {
+            @Override
+            public void onSuccess(CommitAck ack) {
+                call.end();
+                if (!ack.getSuccess() && !value.getIncludesPayload()) {
+                    // The peer holds no value for the slot at this ballot
+                    sendCommit(peer, withPayload(value, payload), payload, attempt + 1, span);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                call.fail(t.getMessage());
+                if (attempt >= COMMIT_ATTEMPTS || timer.isShutdown()) {
+                    logger.warning("Could not deliver commit of slot " + value.getSlot() + " to " +
+                            peerAddresses.get(peer) + ", left to its catch-up: " + t.getMessage());
+                    return;
+                }
+                timer.schedule(() -> sendCommit(peer, withPayload(value, payload), payload, attempt + 1, span),
+                        COMMIT_RETRY_MS << (attempt - 1), TimeUnit.MILLISECONDS);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Phase 1 for the group. The winner re-proposes, with its own ballot, the
+     * highest-ballot value any promising acceptor had accepted for each open
+     * slot, and fills the slots nobody accepted with empty (no-op) batches.
+     * An acceptor that applied and evicted slots the candidate has not
+     * applied refuses it, since it could not report them; the candidate
+     * catches up from that acceptor before its next attempt.
+     */
+    private CompletableFuture<Integer> elect(PaxosGroup group) {
+        CompletableFuture<Integer> pending = new CompletableFuture<>();
+        CompletableFuture<Integer> existing = elections.putIfAbsent(group.getGroupId(), pending);
+        if (existing != null) {
+            return existing;
+        }
+        pending.whenComplete((ballot, error) -> elections.remove(group.getGroupId(), pending));
+
+        int ballot = group.prepareBallot(selfNode);
+        long fromSlot = group.getAppliedIndex() + 1;
+        Map<Long, AcceptedSlot> recovered = new HashMap<>();
+        merge(recovered, group.acceptedSince(fromSlot));
+        logger.info("Group " + group.getGroupId() + ": running phase 1 with ballot " + ballot);
+
+        Round round = new Round();
+        if (round.ack()) {
+            finishElection(group, ballot, fromSlot, recovered, pending);
+            return pending;
+        }
+
+        LeaderProposal proposal = LeaderProposal.newBuilder()
+                .setProposalNumber(ballot)
+                .setServerId(selfId)
+                .setGroupId(group.getGroupId())
+                .setFromSlot(fromSlot)
+                .build();
+
+        broadcast(stub -> stub.proposeLeader(proposal), (peer, response) -> {
+            if (response != null && response.getAccepted()) {
+                merge(recovered, response.getAcceptedSlotsList());
+                if (round.ack()) {
+                    finishElection(group, ballot, fromSlot, recovered, pending);
+                }
+            } else {
+                CatchUp current = catchUp;
+                if (response != null && response.getAppliedIndex() >= fromSlot && current != null) {
+                    // Refused, or outvoted, by a node ahead of this one: learn from it before the next try
+                    current.from(group, peerAddresses.get(peer));
+                }
+                if (round.fail()) {
+                    pending.completeExceptionally(new IllegalStateException(
+                            "ballot " + ballot + " not promised by a quorum"));
+                }
+            }
+        }, () -> !pending.isDone());
+        return pending;
+    }
+
+    private void finishElection(PaxosGroup group, int ballot, long fromSlot,
+                                Map<Long, AcceptedSlot> recovered, CompletableFuture<Integer> pending) {
+        List<AcceptedSlot> slots;
+        long lastSlot = fromSlot - 1;
+        synchronized (recovered) {
+            slots = new ArrayList<>(recovered.values());
+            for (Long slot : recovered.keySet()) {
+                lastSlot = Math.max(lastSlot, slot);
+            }
+        }
+        QuorumTracker votes = new QuorumTracker(peerAddresses.size() + 1, quorum, QUORUM_WINDOW);
+        if (!group.becomeLeader(ballot, lastSlot + 1, selfId, votes)) {
+            pending.completeExceptionally(new IllegalStateException("ballot " + ballot + " was superseded"));
+            return;
+        }
+        logger.info("Group " + group.getGroupId() + ": leading with ballot " + ballot +
+                ", recovering slots " + fromSlot + ".." + lastSlot);
+
+        Map<Long, ByteString> payloads = new HashMap<>();
+        for (AcceptedSlot slot : slots) {
+            payloads.put(slot.getSlot(), slot.getPayload());
+        }
+        for (long s = fromSlot; s <= lastSlot; s++) {
+            replicate(group, ballot, s, payloads.getOrDefault(s, ByteString.EMPTY), SpanTracer.Span.NONE, 0);
+        }
+        pending.complete(ballot);
+    }
+
+     // Keep the highest-ballot value per slot
+
+    private static void merge(Map<Long, AcceptedSlot> recovered, List<AcceptedSlot> accepted) {
+        synchronized (recovered) {
+            for (AcceptedSlot slot : accepted) {
+                AcceptedSlot known = recovered.get(slot.getSlot());
+                if (known == null || slot.getBallot() > known.getBallot()) {
+                    recovered.put(slot.getSlot(), slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the group over to a peer (node id or address; empty picks the
+     * closest one). Fails without side effects if this node is not leading,
+     * or if the slots in flight are not applied within TRANSFER_DRAIN_MS.
+     */
+    public CompletableFuture<TransferResponse> transferLeadership(PaxosGroup group, String targetId) {
+        int groupId = group.getGroupId();
+        if (group.getLeaderBallot() == 0) {
+            return refused(group.getKnownLeader(), "Not the leader of group " + groupId);
+        }
+        if (peerAddresses.isEmpty()) {
+            return refused(selfId, "No peer to hand group " + groupId + " to");
+        }
+        int peer = targetId.isEmpty() ? latency.peersByLatency()[0] : peerIndex(targetId);
+        if (peer < 0) {
+            return refused(selfId, "Unknown node " + targetId);
+        }
+        String target = nodeId(peer);
+        if (transfers.putIfAbsent(groupId, target) != null) {
+            return refused(selfId, "Group " + groupId + " is already being transferred");
+        }
+
+        long startNanos = System.nanoTime();
+        long lastSlot = group.pauseProposals();
+        logger.info("Group " + groupId + ": handing leadership to " + target + " after slot " + lastSlot);
+        CompletableFuture<TransferResponse> result = new CompletableFuture<>();
+        group.awaitApplied(lastSlot).orTimeout(TRANSFER_DRAIN_MS, TimeUnit.MILLISECONDS).whenComplete((ignored, error) -> {
+            if (error != null) {
+                group.resumeProposals();
+                transfers.remove(groupId);
+                result.complete(TransferResponse.newBuilder()
+                        .setLeaderId(selfId)
+                        .setError("Slots in flight were not applied in time, still leading")
+                        .build());
+                return;
+            }
+            group.stepDown();
+            group.setKnownLeader(target);
+            TransferRequest takeOver = TransferRequest.newBuilder()
+                    .setGroupId(groupId)
+                    .setTargetId(target)
+                    .setTakeOver(true)
+                    .setFromId(selfId)
+                    .build();
+            send(peer, stub -> stub.transferLeadership(takeOver), (from, response) -> {
+                transfers.remove(groupId);
+                long handoverMs = (System.nanoTime() - startNanos) / 1_000_000;
+                if (response == null) {
+                    // Stepped down anyway; the next submit to any node elects a leader
+                    result.complete(TransferResponse.newBuilder()
+                            .setLeaderId(target)
+                            .setError(target + " did not confirm the takeover")
+                            .setHandoverMs(handoverMs)
+                            .build());
+                } else {
+                    result.complete(response.toBuilder().setHandoverMs(handoverMs).build());
+                }
+            }, 2 * latency.maxDeadlineMicros(), () -> true, SpanTracer.Span.NONE);
+        });
+        return result;
+    }
+
+     // Target side of a transfer: run phase 1 now instead of waiting for a submit
+
+    public CompletableFuture<TransferResponse> takeOver(PaxosGroup group) {
+        group.setKnownLeader(selfId);
+        CompletableFuture<Integer> leading = group.getLeaderBallot() != 0
+                ? CompletableFuture.completedFuture(group.getLeaderBallot())
+                : elect(group);
+        return leading.handle((ballot, error) -> {
+            TransferResponse.Builder response = TransferResponse.newBuilder();
+            if (error != null) {
+                return response.setLeaderId(selfId).setError("Election failed: " + error.getMessage()).build();
+            }
+            return response.setAccepted(true).setLeaderId(selfId).setBallot(ballot).build();
+        });
+    }
+
+    private static CompletableFuture<TransferResponse> refused(String leaderId, String error) {
+        TransferResponse.Builder response = TransferResponse.newBuilder().setError(error);
+        if (leaderId != null) {
+            response.setLeaderId(leaderId);
+        }
+        return CompletableFuture.completedFuture(response.build());
+    }
+
+     // Peer index of a node id ("S50052"), its number ("50052") or address, -1 if it is not a peer
+
+    public int peerIndex(String target) {
+        int byId = peerIds.indexOf(target);
+        if (byId >= 0) return byId;
+        int byAddress = peerAddresses.indexOf(target);
+        if (byAddress >= 0 || !target.chars().allMatch(Character::isDigit)) return byAddress;
+        int number = TraceRecorder.nodeNumber(target);
+        for (int i = 0; i < peerIds.size(); i++) {
+            if (TraceRecorder.nodeNumber(peerIds.get(i)) == number) return i;
+        }
+        return -1;
+    }
+
+     // Whether the connection to a peer is down, so the leader it names cannot be sent to anyway
+
+    private boolean isUnreachable(String nodeId) {
+        int peer = peerIndex(nodeId);
+        return peer >= 0 && peerChannels.channel(peerAddresses.get(peer)).getState(false)
+                == ConnectivityState.TRANSIENT_FAILURE;
+    }
+
+    public String nodeId(int peer) {
+        return peerIds.get(peer);
+    }
+
+     // Load report of a peer, for leader placement
+
+    public ListenableFuture<ServerStatus> peerStatus(int peer, long deadlineMillis) {
+        return stub(peer)
+                .withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS)
+                .getServerStatus(StatusRequest.newBuilder().setRequester(selfId).build());
+    }
+
+    public long expectedRttMicros(int peer) {
+        return latency.expectedMicros(peer);
+    }
+
+     // Mean round trip to the peers that answered at least once, 0 if none did
+
+    public long meanPeerRttMicros() {
+        long total = 0;
+        int known = 0;
+        for (int i = 0; i < peerPorts.length; i++) {
+            long rtt = latency.expectedMicros(i);
+            if (rtt < latency.maxDeadlineMicros()) {
+                total += rtt;
+                known++;
+            }
+        }
+        return known == 0 ? 0 : total / known;
+    }
+
+    private <T> void broadcast(Function<PaxosServiceGrpc.PaxosServiceFutureStub, ListenableFuture<T>> call,
+                               PeerCallback<T> callback, BooleanSupplier stillNeeded) {
+        for (int i = 0; i < peerAddresses.size(); i++) {
+            send(i, call, callback, latency.deadlineMicros(i), stillNeeded, SpanTracer.Span.NONE);
+        }
+    }
+
+    private PaxosServiceGrpc.PaxosServiceFutureStub stub(int peer) {
+        return peerChannels.futureStub(peerAddresses.get(peer));
+    }
+
+    /**
+     * Calls one peer with the given deadline and feeds the round trip into its
+     * latency estimate. A call that misses an adaptive deadline is sent once
+     * more with the full deadline if its result is still needed. The span
+     * (a client span, or NONE) times the call and is sent along with it.
+     */
+    private <T> void send(int peer, Function<PaxosServiceGrpc.PaxosServiceFutureStub, ListenableFuture<T>> call,
+                          PeerCallback<T> callback, long deadlineMicros, BooleanSupplier stillNeeded,
+                          SpanTracer.Span span) {
+        span.setAttribute("net.peer.port", peerPorts[peer]).setAttribute("paxos.deadline_us", deadlineMicros);
+        long startNanos = System.nanoTime();
+        ListenableFuture<T> future = call.apply(
+                span.propagate(stub(peer)).withDeadlineAfter(deadlineMicros, TimeUnit.MICROSECONDS));
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T response) {
+                latency.record(peer, (System.nanoTime() - startNanos) / 1000);
+                span.end();
+                callback.onResponse(peer, response);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                span.fail(t.getMessage());
+                if (Status.fromThrowable(t).getCode() == Status.Code.DEADLINE_EXCEEDED) {
+                    latency.recordTimeout(peer);
+                    if (deadlineMicros < latency.maxDeadlineMicros() && stillNeeded.getAsBoolean()) {
+                        send(peer, call, callback, latency.maxDeadlineMicros(), stillNeeded,
+                                span.sibling());
+                        return;
+                    }
+                }
+                callback.onResponse(peer, null);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void reject(StreamObserver<SubmitResponse> observer, SubmitRequest request,
+                        String leaderHint, String error) {
+        SubmitResponse.Builder response = SubmitResponse.newBuilder()
+                .setAccepted(false)
+                .setRequestId(request.getRequestId())
+                .setError(error);
+        if (leaderHint != null && !leaderHint.equals(selfId)) {
+            response.setLeaderHint(leaderHint);
+        }
+        observer.onNext(response.build());
+        observer.onCompleted();
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    // Response of one peer, null when the call failed
+    private interface PeerCallback<T> {
+        void onResponse(int peer, T response);
+    }
+
+    /**
+     * Promises collected for one phase 1 round (rare, so a plain monitor).
+     * Reports reaching a quorum, or losing any chance of it, exactly once.
+     */
+    private class Round {
+        private int acks = 0;
+        private int failures = 0;
+        private boolean decided = false;
+
+        synchronized boolean ack() {
+            if (decided || ++acks < quorum) return false;
+            decided = true;
+            return true;
+        }
+
+        synchronized boolean fail() {
+            if (decided || ++failures <= peerAddresses.size() + 1 - quorum) return false;
+            decided = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package rt4.paxos;
+
+import io.grpc.Metadata;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallExecutorSupplier;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Execution model used by the gRPC server to run PaxosService handlers.
+ *
+ * Selected with -Dpaxos.executor=virtual|bounded|direct (default: virtual).
+ * The bounded pool size is taken from -Dpaxos.executor.threads.
+ *
+ * A bounded pool with -Dpaxos.executor.queue (10000) handler tasks waiting
+ * turns new calls
+ * away with RESOURCE_EXHAUSTED rather than queueing them further or running
+ * them on the transport threads; calls already admitted keep their place.
+ * Virtual threads need JDK 21; on an older runtime the virtual mode falls
+ * back to the bounded pool.
+ */
+public enum ServerExecutorMode {
+    // One virtual thread per call, cheap to block on disk sync
+    VIRTUAL,
+    // Fixed pool of platform threads with a bounded queue
+    BOUNDED,
+    // Handlers run on the transport threads, only for non-blocking handlers
+    DIRECT;
+
+    public static final String PROPERTY = "paxos.executor";
+    public static final String THREADS_PROPERTY = "paxos.executor.threads";
+    public static final String QUEUE_PROPERTY = "paxos.executor.queue";
+
+    private static final Logger logger = Logger.getLogger(ServerExecutorMode.class.getName());
+
+    public static ServerExecutorMode fromSystemProperties() {
+        return parse(System.getProperty(PROPERTY, "virtual"));
+    }
+
+    public static ServerExecutorMode parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown executor mode '" + name +
+                    "', expected one of virtual, bounded, direct");
+        }
+    }
+
+    public static int boundedThreads() {
+        return Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public static int boundedQueue() {
+        return Integer.getInteger(QUEUE_PROPERTY, 10_000);
+    }
+
+    /**
+     * Installs this execution model on the builder and returns the executor that
+     * must be shut down with the server, or null when nothing was created.
+     */
+    public ExecutorService configure(ServerBuilder<?> builder) {
+        switch (this) {
+            case DIRECT:
+                builder.directExecutor();
+                return null;
+            case BOUNDED:
+                return bounded(builder);
+            case VIRTUAL:
+            default: {
+                ExecutorService pool = virtualExecutor("paxos-vthread-");
+                if (pool == null) {
+                    logger.warning("Virtual threads need JDK 21 or later, running handlers on a bounded pool");
+                    return bounded(builder);
+                }
+                builder.executor(pool);
+                return pool;
+            }
+        }
+    }
+
+    private static ExecutorService bounded(ServerBuilder<?> builder) {
+        int threads = boundedThreads();
+        // Unbounded so the later callbacks of an admitted call are never dropped; admission keeps it short
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                namedFactory("paxos-handler-"));
+        Admission admission = new Admission(pool, boundedQueue());
+        // Method lookup is cheap and runs inline; each call then moves to the pool or is refused
+        builder.directExecutor()
+                .callExecutor(admission)
+                .intercept(admission);
+        return pool;
+    }
+
+    /**
+     * Admits a call to the pool while fewer than queueCapacity tasks wait.
+     * A refused call starts inline, where the interceptor closes it before
+     * any handler runs.
+     */
+    private static final class Admission implements ServerCallExecutorSupplier, ServerInterceptor {
+        private static final ThreadLocal<Boolean> REFUSED = ThreadLocal.withInitial(() -> false);
+
+        private final ThreadPoolExecutor pool;
+        private final int queueCapacity;
+        private final Executor refusing = task -> {
+            REFUSED.set(true);
+            try {
+                task.run();
+            } finally {
+                REFUSED.set(false);
+            }
+        };
+
+        Admission(ThreadPoolExecutor pool, int queueCapacity) {
+            this.pool = pool;
+            this.queueCapacity = queueCapacity;
+        }
+
+        @Override
+        public <ReqT, RespT> Executor getExecutor(ServerCall<ReqT, RespT> call, Metadata headers) {
+            return pool.getQueue().size() < queueCapacity ? pool : refusing;
+        }
+
+        @Override
+        public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+            if (!REFUSED.get()) {
+                return next.startCall(call, headers);
+            }
+            call.close(Status.RESOURCE_EXHAUSTED.withDescription(
+                    "Server busy: " + queueCapacity + " handler tasks queued"), new Metadata());
+            return new ServerCall.Listener<ReqT>() {
+            };
+        }
+    }
+
+     // Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 0).factory()), or null before JDK 21
+
+    private static ExecutorService virtualExecutor(String prefix) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
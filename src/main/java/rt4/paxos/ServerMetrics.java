@@ -0,0 +1,98 @@
+package rt4.paxos;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free performance counters of one node.
+ *
+ * Commit latency goes into a log-linear histogram (8 sub-buckets per power of
+ * two, about 12% precision) kept as cumulative counts; each reader keeps its
+ * own previous copy to get percentiles over its sampling interval.
+ */
+public class ServerMetrics {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+    private final LongAdder commits = new LongAdder();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+    public void recordCommit(long latencyMicros) {
+        commits.increment();
+        if (latencyMicros >= 0) {
+            latencyBuckets.incrementAndGet(bucket(latencyMicros));
+        }
+    }
+
+    public long getCommitsTotal() {
+        return commits.sum();
+    }
+
+    public Interval newInterval() {
+        return new Interval();
+    }
+
+    static int bucket(long micros) {
+        if (micros < LINEAR_BUCKETS) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+     // Smallest latency that falls into the bucket
+
+    static long bucketFloor(int bucket) {
+        if (bucket < LINEAR_BUCKETS) return bucket;
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - 3);
+    }
+
+    /**
+     * Reader-side view that turns the cumulative counters into per-interval
+     * rates and percentiles. Not thread-safe, one per reader.
+     */
+    public class Interval {
+        private final long[] previous = new long[BUCKET_COUNT];
+        private final long[] delta = new long[BUCKET_COUNT];
+        private long previousCommits = commits.sum();
+        private long previousNanos = System.nanoTime();
+        private long deltaCount = 0;
+
+        private double commitsPerSec;
+
+         // Close the current interval and start the next one
+
+        public void roll() {
+            long now = System.nanoTime();
+            long total = commits.sum();
+            commitsPerSec = (total - previousCommits) * 1e9 / Math.max(1, now - previousNanos);
+            previousCommits = total;
+            previousNanos = now;
+
+            deltaCount = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                long current = latencyBuckets.get(i);
+                delta[i] = current - previous[i];
+                previous[i] = current;
+                deltaCount += delta[i];
+            }
+        }
+
+        public double getCommitsPerSec() {
+            return commitsPerSec;
+        }
+
+        public long percentileMicros(double p) {
+            if (deltaCount == 0) return 0;
+            long rank = (long) Math.ceil(p * deltaCount);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += delta[i];
+                if (seen >= rank) return bucketFloor(i);
+            }
+            return bucketFloor(BUCKET_COUNT - 1);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package rt4.paxos;
+
+import com.google.protobuf.ByteString;
+
+import java.util.Arrays;
+
+/**
+ * Replicated client session table used to execute each client command once.
+ *
+ * Every client has an id and numbers its commands with an increasing sequence
+ * starting at 1. When a committed command is applied, the table tells whether
+ * it is new or a retry of something already applied, in which case the
+ * result cached for it is returned instead of applying it again. The results
+ * kept are those of the client's commands in the slot that last applied one
+ * of them, which covers a client resending its whole request.
+ *
+ * The table is part of the state machine: it only changes when log entries are
+ * applied, and sessions expire after ttlEntries applied entries without
+ * activity. Expiry depends on the log index only, never on wall clock, so all
+ * replicas evict the same sessions. A command with a sequence above 1 from a
+ * client without a session is EXPIRED and not applied: it may be the retry
+ * of a command applied before the session went away, and only the client can
+ * tell whether it is safe to send again under a new session.
+ *
+ * Keys and values live in parallel primitive arrays with linear probing; they
+ * start small and only grow (up to the size needed for maxSessions), so
+ * checking a command does not allocate. The sessions are also linked in order
+ * of last activity, which makes both expiry and eviction of the least
+ * recently active session O(1).
+ */
+public class SessionTable {
+    public static final int NEW = 0;
+    public static final int DUPLICATE = 1;
+    public static final int STALE = 2;
+    public static final int EXPIRED = 3;
+
+    // Client id 0 means "no session": the command is applied without dedup
+    public static final long NO_CLIENT = 0L;
+    public static final long FIRST_SEQUENCE = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NONE = -1;
+    // Results cached per session, enough for a full client batch
+    private static final int MAX_CACHED_RESULTS = 1024;
+
+    private final int maxSessions;
+    private final long ttlEntries;
+    private int mask;
+
+    private long[] clientIds;
+    private long[] lastSequences;
+    private long[] lastActiveIndexes;
+    // Results of the session's commands applied in slot resultSlots[i], from sequence resultFirsts[i] on
+    private long[] resultSlots;
+    private long[] resultFirsts;
+    private ByteString[][] results;
+    // Activity order: table index of the next older and newer session, NONE at either end
+    private int[] older;
+    private int[] newer;
+    private int oldest = NONE;
+    private int newest = NONE;
+    private int size = 0;
+
+    public SessionTable(int maxSessions, long ttlEntries) {
+        if (maxSessions < 1 || ttlEntries < 1) {
+            throw new IllegalArgumentException("maxSessions and ttlEntries must be positive");
+        }
+        this.maxSessions = maxSessions;
+        this.ttlEntries = ttlEntries;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mask = capacity - 1;
+        clientIds = new long[capacity];
+        lastSequences = new long[capacity];
+        lastActiveIndexes = new long[capacity];
+        resultSlots = new long[capacity];
+        resultFirsts = new long[capacity];
+        results = new ByteString[capacity][];
+        older = new int[capacity];
+        newer = new int[capacity];
+        oldest = NONE;
+        newest = NONE;
+    }
+
+    public static SessionTable fromSystemProperties() {
+        return new SessionTable(Integer.getInteger("paxos.sessions.max", 65_536),
+                Long.getLong("paxos.sessions.ttlEntries", 1_000_000L));
+    }
+
+    /**
+     * Records a command being applied at logIndex and classifies it as NEW,
+     * DUPLICATE (same sequence as the last applied command), STALE (older than
+     * that) or EXPIRED (no session, and not the client's first command). Only
+     * NEW commands should be applied; the caller then stores their result with
+     * {@link #recordResult}, and answers the others with {@link #cachedResult}.
+     * logIndex must not decrease from one call to the next.
+     */
+    public synchronized int check(long clientId, long sequence, long logIndex) {
+        expire(logIndex);
+        if (clientId == NO_CLIENT) {
+            return NEW;
+        }
+
+        int slot = find(clientId);
+        if (slot >= 0) {
+            lastActiveIndexes[slot] = logIndex;
+            unlink(slot);
+            append(slot);
+            long last = lastSequences[slot];
+            if (sequence == last) return DUPLICATE;
+            if (sequence < last) return STALE;
+            lastSequences[slot] = sequence;
+            return NEW;
+        }
+        if (sequence > FIRST_SEQUENCE) {
+            return EXPIRED;
+        }
+
+        if (size >= maxSessions) {
+            remove(oldest);
+        } else if ((size + 1) * 2 > mask + 1) {
+            // Keep the load factor at or below one half
+            grow();
+        }
+        slot = insertionSlot(clientId);
+        clientIds[slot] = clientId;
+        lastSequences[slot] = sequence;
+        lastActiveIndexes[slot] = logIndex;
+        resultSlots[slot] = 0;
+        results[slot] = null;
+        append(slot);
+        size++;
+        return NEW;
+    }
+
+    /**
+     * Caches the result of a NEW command applied at logIndex. Results must be
+     * recorded in log order; the first one of a later slot replaces what was
+     * cached for the session.
+     */
+    public synchronized void recordResult(long clientId, long sequence, long logIndex, ByteString result) {
+        if (clientId == NO_CLIENT) return;
+        int slot = find(clientId);
+        if (slot < 0) return;
+        if (resultSlots[slot] != logIndex) {
+            resultSlots[slot] = logIndex;
+            resultFirsts[slot] = sequence;
+            if (results[slot] != null) {
+                Arrays.fill(results[slot], null);
+            }
+        }
+        long offset = sequence - resultFirsts[slot];
+        if (offset >= MAX_CACHED_RESULTS) return;
+        ByteString[] cached = results[slot];
+        if (cached == null || cached.length <= offset) {
+            int length = (int) Math.min(MAX_CACHED_RESULTS, Math.max(offset + 1, cached == null ? 4 : cached.length * 2L));
+            results[slot] = cached = cached == null ? new ByteString[length] : Arrays.copyOf(cached, length);
+        }
+        cached[(int) offset] = result;
+    }
+
+     // Result of an already applied command, or null when it is no longer cached
+
+    public synchronized ByteString cachedResult(long clientId, long sequence) {
+        int slot = find(clientId);
+        if (slot < 0 || results[slot] == null) return null;
+        long offset = sequence - resultFirsts[slot];
+        return offset >= 0 && offset < results[slot].length ? results[slot][(int) offset] : null;
+    }
+
+    public synchronized boolean contains(long clientId) {
+        return find(clientId) >= 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void grow() {
+        long[] oldIds = clientIds;
+        long[] oldSequences = lastSequences;
+        long[] oldActive = lastActiveIndexes;
+        long[] oldResultSlots = resultSlots;
+        long[] oldResultFirsts = resultFirsts;
+        ByteString[][] oldResults = results;
+        int[] oldNewer = newer;
+        int from = oldest;
+
+        // Reinsert from the oldest session on, so the activity order carries over
+        allocate(oldIds.length * 2);
+        for (int i = from; i != NONE; i = oldNewer[i]) {
+            int slot = insertionSlot(oldIds[i]);
+            clientIds[slot] = oldIds[i];
+            lastSequences[slot] = oldSequences[i];
+            lastActiveIndexes[slot] = oldActive[i];
+            resultSlots[slot] = oldResultSlots[i];
+            resultFirsts[slot] = oldResultFirsts[i];
+            results[slot] = oldResults[i];
+            append(slot);
+        }
+    }
+
+     // Sessions idle for more than ttlEntries are at the old end of the activity order
+
+    private void expire(long logIndex) {
+        while (oldest != NONE && logIndex - lastActiveIndexes[oldest] > ttlEntries) {
+            remove(oldest);
+        }
+    }
+
+    private void append(int slot) {
+        older[slot] = newest;
+        newer[slot] = NONE;
+        if (newest != NONE) {
+            newer[newest] = slot;
+        } else {
+            oldest = slot;
+        }
+        newest = slot;
+    }
+
+    private void unlink(int slot) {
+        if (older[slot] != NONE) {
+            newer[older[slot]] = newer[slot];
+        } else {
+            oldest = newer[slot];
+        }
+        if (newer[slot] != NONE) {
+            older[newer[slot]] = older[slot];
+        } else {
+            newest = older[slot];
+        }
+    }
+
+     // An entry moved by remove() keeps its place in the activity order
+
+    private void relink(int from, int to) {
+        older[to] = older[from];
+        newer[to] = newer[from];
+        if (older[to] != NONE) {
+            newer[older[to]] = to;
+        } else {
+            oldest = to;
+        }
+        if (newer[to] != NONE) {
+            older[newer[to]] = to;
+        } else {
+            newest = to;
+        }
+    }
+
+    private int find(long clientId) {
+        int slot = bucket(clientId);
+        while (clientIds[slot] != NO_CLIENT) {
+            if (clientIds[slot] == clientId) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int insertionSlot(long clientId) {
+        int slot = bucket(clientId);
+        while (clientIds[slot] != NO_CLIENT) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+     // Backward-shift deletion keeps probe chains intact without tombstones
+
+    private void remove(int slot) {
+        unlink(slot);
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (clientIds[next] != NO_CLIENT) {
+            int home = bucket(clientIds[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                clientIds[hole] = clientIds[next];
+                lastSequences[hole] = lastSequences[next];
+                lastActiveIndexes[hole] = lastActiveIndexes[next];
+                resultSlots[hole] = resultSlots[next];
+                resultFirsts[hole] = resultFirsts[next];
+                results[hole] = results[next];
+                relink(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        clientIds[hole] = NO_CLIENT;
+        results[hole] = null;
+        size--;
+    }
+
+    private int bucket(long clientId) {
+        long h = clientId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
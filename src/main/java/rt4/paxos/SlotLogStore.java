@@ -0,0 +1,283 @@
+package rt4.paxos;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory log of accepted slots that keeps almost nothing on the heap.
+ *
+ * Slot metadata (ballot, state, payload location, accept time) lives in
+ * parallel primitive arrays used as a ring over the window [firstSlot,
+ * lastSlot], so millions of slots are a handful of arrays rather than
+ * millions of objects. Payload bytes
+ * are appended to large direct (off-heap) segments. Evicting a slot range
+ * releases the segments no live slot points to any more; freed segments are
+ * pooled and reused, so steady-state operation does not allocate.
+ *
+ * Not thread-safe: callers (PaxosGroup) serialize access.
+ */
+public class SlotLogStore {
+    public static final byte EMPTY = 0;
+    public static final byte ACCEPTED = 1;
+    public static final byte COMMITTED = 2;
+
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int DEFAULT_SEGMENT_SIZE = Integer.getInteger("paxos.log.segmentBytes", 1 << 20);
+    private static final int MAX_POOLED_SEGMENTS = 4;
+    private static final long NO_PAYLOAD = -1L;
+
+    private final int segmentSize;
+
+    // Slot metadata ring, index = slot & mask
+    private int mask;
+    private int[] ballots;
+    private byte[] states;
+    private long[] locations;  // segment index << 32 | offset, or NO_PAYLOAD
+    private int[] lengths;
+    private long[] acceptedNanos;  // System.nanoTime() of the accept, 0 when empty
+    private long firstSlot = 1;
+    private long lastSlot = 0;
+
+    // Off-heap payload segments
+    private final List<Segment> segments = new ArrayList<>();
+    private final ArrayDeque<Integer> freeSegmentIndexes = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> pooledBuffers = new ArrayDeque<>();
+    private int writeSegment = -1;
+    private long allocatedSegments = 0;
+
+    public SlotLogStore() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    public SlotLogStore(int segmentSize) {
+        this.segmentSize = segmentSize;
+        allocateRing(INITIAL_SLOTS);
+    }
+
+    private void allocateRing(int capacity) {
+        mask = capacity - 1;
+        ballots = new int[capacity];
+        states = new byte[capacity];
+        locations = new long[capacity];
+        lengths = new int[capacity];
+        acceptedNanos = new long[capacity];
+    }
+
+    public long firstSlot() { return firstSlot; }
+    public long lastSlot() { return lastSlot; }
+
+    public int getBallot(long slot) {
+        return inWindow(slot) ? ballots[index(slot)] : 0;
+    }
+
+    public byte getState(long slot) {
+        return inWindow(slot) ? states[index(slot)] : EMPTY;
+    }
+
+    public long getAcceptedNanos(long slot) {
+        return inWindow(slot) ? acceptedNanos[index(slot)] : 0;
+    }
+
+    /**
+     * Stores the accepted payload of a slot, replacing whatever was accepted
+     * there with a lower ballot. The payload's remaining bytes are copied once
+     * into off-heap memory; its position is left unchanged.
+     */
+    public void accept(long slot, int ballot, ByteBuffer payload) {
+        if (slot < firstSlot) {
+            throw new IllegalArgumentException("Slot " + slot + " was evicted (first slot " + firstSlot + ")");
+        }
+        ensureCapacity(slot);
+        for (long s = lastSlot + 1; s < slot; s++) {
+            clear(index(s));
+        }
+        if (slot > lastSlot) {
+            clear(index(slot));
+            lastSlot = slot;
+        }
+
+        int i = index(slot);
+        releasePayload(i);
+        ballots[i] = ballot;
+        states[i] = ACCEPTED;
+        lengths[i] = payload.remaining();
+        locations[i] = appendPayload(payload);
+        acceptedNanos[i] = System.nanoTime();
+    }
+
+    public void commit(long slot) {
+        if (inWindow(slot) && states[index(slot)] != EMPTY) {
+            states[index(slot)] = COMMITTED;
+        }
+    }
+
+    /**
+     * Read-only view of the slot's payload, sharing the off-heap memory (no
+     * copy), or null if nothing was accepted for the slot.
+     */
+    public ByteBuffer readPayload(long slot) {
+        if (!inWindow(slot)) return null;
+        int i = index(slot);
+        long location = locations[i];
+        if (states[i] == EMPTY || location == NO_PAYLOAD) return null;
+
+        ByteBuffer view = segments.get((int) (location >>> 32)).buffer.asReadOnlyBuffer();
+        int offset = (int) location;
+        view.limit(offset + lengths[i]).position(offset);
+        return view.slice();
+    }
+
+     // Drop every slot below the given one and release segments nobody points to
+
+    public void evictBefore(long slot) {
+        long end = Math.min(slot, lastSlot + 1);
+        for (long s = firstSlot; s < end; s++) {
+            clear(index(s));
+        }
+        if (end > firstSlot) {
+            firstSlot = end;
+        }
+    }
+
+    public int size() {
+        return (int) (lastSlot - firstSlot + 1);
+    }
+
+    public long offHeapBytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            if (segment != null) total += segment.buffer.capacity();
+        }
+        return total;
+    }
+
+     // Direct buffers allocated so far; flat once pooled segments cover the window
+
+    long allocatedSegments() {
+        return allocatedSegments;
+    }
+
+    private boolean inWindow(long slot) {
+        return slot >= firstSlot && slot <= lastSlot;
+    }
+
+    private int index(long slot) {
+        return (int) slot & mask;
+    }
+
+    private void clear(int i) {
+        releasePayload(i);
+        ballots[i] = 0;
+        states[i] = EMPTY;
+        locations[i] = NO_PAYLOAD;
+        lengths[i] = 0;
+        acceptedNanos[i] = 0;
+    }
+
+     // Grow the ring (by doubling) so that the window can reach the slot
+
+    private void ensureCapacity(long slot) {
+        long needed = slot - firstSlot + 1;
+        if (needed <= mask + 1) return;
+
+        int capacity = mask + 1;
+        while (capacity < needed) {
+            if (capacity >= (1 << 30)) {
+                throw new IllegalStateException("Too many uncompacted slots: " + needed);
+            }
+            capacity <<= 1;
+        }
+        int[] oldBallots = ballots;
+        byte[] oldStates = states;
+        long[] oldLocations = locations;
+        int[] oldLengths = lengths;
+        long[] oldAccepted = acceptedNanos;
+        int oldMask = mask;
+
+        allocateRing(capacity);
+        for (long s = firstSlot; s <= lastSlot; s++) {
+            int from = (int) s & oldMask;
+            int to = index(s);
+            ballots[to] = oldBallots[from];
+            states[to] = oldStates[from];
+            locations[to] = oldLocations[from];
+            lengths[to] = oldLengths[from];
+            acceptedNanos[to] = oldAccepted[from];
+        }
+    }
+
+    private long appendPayload(ByteBuffer payload) {
+        int length = payload.remaining();
+        Segment segment = writeSegment >= 0 ? segments.get(writeSegment) : null;
+        if (segment == null || segment.buffer.capacity() - segment.writeOffset < length) {
+            writeSegment = newSegment(Math.max(segmentSize, length));
+            segment = segments.get(writeSegment);
+        }
+
+        int offset = segment.writeOffset;
+        segment.buffer.put(offset, payload, payload.position(), length);
+        segment.writeOffset += length;
+        segment.liveSlots++;
+        return ((long) writeSegment << 32) | offset;
+    }
+
+    private void releasePayload(int i) {
+        long location = locations[i];
+        if (states[i] == EMPTY || location == NO_PAYLOAD) return;
+        locations[i] = NO_PAYLOAD;
+
+        int segmentIndex = (int) (location >>> 32);
+        Segment segment = segments.get(segmentIndex);
+        if (--segment.liveSlots == 0 && segmentIndex != writeSegment) {
+            freeSegment(segmentIndex);
+        }
+    }
+
+    private int newSegment(int capacity) {
+        ByteBuffer buffer = null;
+        if (capacity == segmentSize && !pooledBuffers.isEmpty()) {
+            buffer = pooledBuffers.poll();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            allocatedSegments++;
+        }
+
+        // The previous write segment may already be empty
+        if (writeSegment >= 0 && segments.get(writeSegment).liveSlots == 0) {
+            int previous = writeSegment;
+            writeSegment = -1;
+            freeSegment(previous);
+        }
+
+        Segment segment = new Segment(buffer);
+        Integer reused = freeSegmentIndexes.poll();
+        if (reused != null) {
+            segments.set(reused, segment);
+            return reused;
+        }
+        segments.add(segment);
+        return segments.size() - 1;
+    }
+
+    private void freeSegment(int segmentIndex) {
+        Segment segment = segments.get(segmentIndex);
+        segments.set(segmentIndex, null);
+        freeSegmentIndexes.push(segmentIndex);
+        if (segment.buffer.capacity() == segmentSize && pooledBuffers.size() < MAX_POOLED_SEGMENTS) {
+            pooledBuffers.push(segment.buffer);
+        }
+    }
+
+    private static class Segment {
+        final ByteBuffer buffer;
+        int writeOffset = 0;
+        int liveSlots = 0;
+
+        Segment(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
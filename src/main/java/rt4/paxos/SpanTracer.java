@@ -0,0 +1,368 @@
+package rt4.paxos;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.stub.AbstractStub;
+import io.grpc.stub.MetadataUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Sampled per-command latency breakdown, exported as OpenTelemetry spans.
+ *
+ * Enabled with -Dpaxos.spans=&lt;file&gt;. A Submit starts a trace with
+ * probability -Dpaxos.spans.sample (0.01 by default), or always when the
+ * client sent a W3C traceparent header. Each pipeline stage (election,
+ * batching, quorum wait, every peer's accept round trip, apply, commit
+ * delivery) becomes a span. Calls of a sampled command carry its traceparent
+ * in gRPC metadata, and the receiving node records its own handler stages
+ * (log append, apply) as children, so the spans of all nodes join into one
+ * trace.
+ *
+ * Spans only take System.nanoTime() stamps on the request path. Finished
+ * spans go into a bounded queue (dropped when full) that a background thread
+ * writes to the file as OTLP/JSON, one ExportTraceServiceRequest per line,
+ * the format of the OpenTelemetry file exporter. Unsampled commands get
+ * {@link Span#NONE}, whose methods do nothing.
+ */
+public class SpanTracer implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(SpanTracer.class.getName());
+
+    public static final String PROPERTY = "paxos.spans";
+    public static final String SAMPLE_PROPERTY = "paxos.spans.sample";
+
+    public static final Metadata.Key<String> TRACEPARENT =
+            Metadata.Key.of("traceparent", Metadata.ASCII_STRING_MARSHALLER);
+    private static final Context.Key<String> REMOTE_PARENT = Context.key("paxos-traceparent");
+
+    // OTLP span kinds
+    public static final int INTERNAL = 1;
+    public static final int SERVER = 2;
+    public static final int CLIENT = 3;
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int MAX_SPANS_PER_LINE = 512;
+
+    private static final SpanTracer DISABLED = new SpanTracer();
+    private static volatile SpanTracer instance = DISABLED;
+
+    private final boolean enabled;
+    private final double sampleRate;
+    private final String nodeId;
+    private final long epochOffsetNanos;
+    private final BlockingQueue<Span> finished;
+    private final AtomicLong dropped = new AtomicLong();
+    private final BufferedWriter out;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    private SpanTracer() {
+        this.enabled = false;
+        this.sampleRate = 0;
+        this.nodeId = null;
+        this.epochOffsetNanos = 0;
+        this.finished = null;
+        this.out = null;
+        this.writer = null;
+    }
+
+    public SpanTracer(String path, String nodeId, double sampleRate) throws IOException {
+        this.enabled = true;
+        this.sampleRate = sampleRate;
+        this.nodeId = nodeId;
+        this.epochOffsetNanos = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+        this.finished = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.out = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8);
+        this.writer = new Thread(this::drain, "paxos-spans");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+     // Install the process-wide tracer from -Dpaxos.spans, if set
+
+    public static void initFromSystemProperties(String nodeId) {
+        String path = System.getProperty(PROPERTY);
+        if (path == null || path.isEmpty()) return;
+        double rate = Double.parseDouble(System.getProperty(SAMPLE_PROPERTY, "0.01"));
+        try {
+            instance = new SpanTracer(path, nodeId, rate);
+            logger.info("Recording sampled latency spans (rate " + rate + ") to " + path);
+        } catch (IOException e) {
+            logger.warning("Could not open span file " + path + ": " + e.getMessage());
+        }
+    }
+
+    public static SpanTracer get() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Server span of a call that may start a trace: a child of the caller's
+     * span if it sent one, otherwise a new trace if sampled.
+     */
+    public Span startTrace(String name) {
+        if (!enabled) return Span.NONE;
+        Span remote = startServer(name);
+        if (remote != Span.NONE) return remote;
+        if (ThreadLocalRandom.current().nextDouble() >= sampleRate) return Span.NONE;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new Span(this, name, SERVER, random.nextLong(), random.nextLong(), 0);
+    }
+
+     // Server span of a call, recorded only when the caller's command is sampled
+
+    public Span startServer(String name) {
+        if (!enabled) return Span.NONE;
+        String traceparent = REMOTE_PARENT.get();
+        if (traceparent == null) return Span.NONE;
+        // 00-<32 hex trace id>-<16 hex parent span id>-<flags>
+        if (traceparent.length() < 55 || traceparent.charAt(2) != '-' || traceparent.charAt(35) != '-') {
+            return Span.NONE;
+        }
+        try {
+            long traceHigh = Long.parseUnsignedLong(traceparent.substring(3, 19), 16);
+            long traceLow = Long.parseUnsignedLong(traceparent.substring(19, 35), 16);
+            long parent = Long.parseUnsignedLong(traceparent.substring(36, 52), 16);
+            return new Span(this, name, SERVER, traceHigh, traceLow, parent);
+        } catch (NumberFormatException e) {
+            return Span.NONE;
+        }
+    }
+
+    /**
+     * Makes the caller's traceparent header visible to the handlers through
+     * the gRPC Context. Calls without the header pass straight through.
+     */
+    public ServerInterceptor serverInterceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+                    ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+                String traceparent = enabled ? headers.get(TRACEPARENT) : null;
+                if (traceparent == null) {
+                    return next.startCall(call, headers);
+                }
+                Context context = Context.current().withValue(REMOTE_PARENT, traceparent);
+                return Contexts.interceptCall(context, call, headers, next);
+            }
+        };
+    }
+
+    private void submit(Span span) {
+        if (closed || !finished.offer(span)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void drain() {
+        List<Span> batch = new ArrayList<>(MAX_SPANS_PER_LINE);
+        while (!closed || !finished.isEmpty()) {
+            try {
+                Span first = finished.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                finished.drainTo(batch, MAX_SPANS_PER_LINE - 1);
+                writeLine(batch);
+            } catch (InterruptedException e) {
+                closed = true;
+            } catch (IOException e) {
+                logger.warning("Could not write spans: " + e.getMessage());
+            }
+            batch.clear();
+        }
+    }
+
+     // One OTLP/JSON ExportTraceServiceRequest per line
+
+    private void writeLine(List<Span> spans) throws IOException {
+        StringBuilder json = new StringBuilder(256 * spans.size());
+        json.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        stringAttribute(json, "service.name", "paxos").append(',');
+        stringAttribute(json, "service.instance.id", nodeId);
+        json.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"rt4.paxos\"},\"spans\":[");
+        for (int i = 0; i < spans.size(); i++) {
+            if (i > 0) json.append(',');
+            spans.get(i).appendJson(json, epochOffsetNanos);
+        }
+        json.append("]}]}]}\n");
+        out.write(json.toString());
+        out.flush();
+    }
+
+    private static StringBuilder stringAttribute(StringBuilder json, String key, String value) {
+        return json.append("{\"key\":\"").append(key).append("\",\"value\":{\"stringValue\":\"")
+                .append(value).append("\"}}");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!enabled || closed) return;
+        closed = true;
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped.get() > 0) {
+            logger.warning("Dropped " + dropped.get() + " spans, the writer could not keep up");
+        }
+        out.close();
+    }
+
+    /**
+     * One timed stage. Not thread-safe: a span is ended by whoever finishes
+     * the stage, and attributes are set before that.
+     */
+    public static final class Span {
+        public static final Span NONE = new Span(null, null, INTERNAL, 0, 0, 0);
+
+        private static final int MAX_ATTRIBUTES = 4;
+
+        private final SpanTracer tracer;
+        private final String name;
+        private final int kind;
+        private final long traceHigh;
+        private final long traceLow;
+        private final long spanId;
+        private final long parentId;
+        private final long startNanos;
+        private long endNanos;
+        private String error;
+        private final String[] attributeKeys;
+        private final long[] attributeValues;
+        private int attributeCount;
+
+        private Span(SpanTracer tracer, String name, int kind, long traceHigh, long traceLow, long parentId) {
+            this.tracer = tracer;
+            this.name = name;
+            this.kind = kind;
+            this.traceHigh = traceHigh;
+            this.traceLow = traceLow;
+            this.parentId = parentId;
+            if (tracer == null) {
+                this.spanId = 0;
+                this.startNanos = 0;
+                this.attributeKeys = null;
+                this.attributeValues = null;
+            } else {
+                this.spanId = ThreadLocalRandom.current().nextLong() | 1;
+                this.startNanos = System.nanoTime();
+                this.attributeKeys = new String[MAX_ATTRIBUTES];
+                this.attributeValues = new long[MAX_ATTRIBUTES];
+            }
+        }
+
+        public boolean isSampled() {
+            return tracer != null;
+        }
+
+        public Span child(String name) {
+            return child(name, INTERNAL);
+        }
+
+        public Span child(String name, int kind) {
+            if (tracer == null) return NONE;
+            return new Span(tracer, name, kind, traceHigh, traceLow, spanId);
+        }
+
+         // A new span for another attempt at the same stage
+
+        public Span sibling() {
+            if (tracer == null) return NONE;
+            return new Span(tracer, name, kind, traceHigh, traceLow, parentId);
+        }
+
+        public Span setAttribute(String key, long value) {
+            if (tracer != null && attributeCount < MAX_ATTRIBUTES) {
+                attributeKeys[attributeCount] = key;
+                attributeValues[attributeCount++] = value;
+            }
+            return this;
+        }
+
+        public void end() {
+            if (tracer == null || endNanos != 0) return;
+            endNanos = System.nanoTime();
+            tracer.submit(this);
+        }
+
+        public void fail(String message) {
+            if (tracer == null) return;
+            error = message == null ? "error" : message;
+            end();
+        }
+
+         // Send this span as the parent of the call made through the stub
+
+        public <S extends AbstractStub<S>> S propagate(S stub) {
+            if (tracer == null) return stub;
+            Metadata headers = new Metadata();
+            headers.put(TRACEPARENT, "00-" + hex(traceHigh) + hex(traceLow) + "-" + hex(spanId) + "-01");
+            return stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+        }
+
+        private void appendJson(StringBuilder json, long epochOffsetNanos) {
+            json.append("{\"traceId\":\"").append(hex(traceHigh)).append(hex(traceLow))
+                    .append("\",\"spanId\":\"").append(hex(spanId)).append('"');
+            if (parentId != 0) {
+                json.append(",\"parentSpanId\":\"").append(hex(parentId)).append('"');
+            }
+            json.append(",\"name\":\"").append(name)
+                    .append("\",\"kind\":").append(kind)
+                    .append(",\"startTimeUnixNano\":\"").append(startNanos + epochOffsetNanos)
+                    .append("\",\"endTimeUnixNano\":\"").append(endNanos + epochOffsetNanos)
+                    .append("\",\"attributes\":[");
+            for (int i = 0; i < attributeCount; i++) {
+                if (i > 0) json.append(',');
+                json.append("{\"key\":\"").append(attributeKeys[i])
+                        .append("\",\"value\":{\"intValue\":\"").append(attributeValues[i]).append("\"}}");
+            }
+            json.append(']');
+            if (error != null) {
+                json.append(",\"status\":{\"code\":2,\"message\":\"")
+                        .append(escape(error)).append("\"}");
+            }
+            json.append('}');
+        }
+
+        private static String escape(String text) {
+            StringBuilder escaped = new StringBuilder(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"' || c == '\\') {
+                    escaped.append('\\').append(c);
+                } else if (c < 0x20) {
+                    escaped.append(' ');
+                } else {
+                    escaped.append(c);
+                }
+            }
+            return escaped.toString();
+        }
+
+        private static String hex(long value) {
+            String digits = Long.toHexString(value);
+            return "0000000000000000".substring(digits.length()) + digits;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package rt4.paxos;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Deterministic state machine fed with the commands chosen by a Paxos group.
+ *
+ * Commands are applied as if one at a time in slot order. A state machine
+ * that declares footprints may see apply called concurrently, but only for
+ * commands whose footprints do not overlap (see ApplyScheduler).
+ */
+public interface StateMachine {
+
+    /**
+     * Applies one command and returns the result sent back to the client.
+     *
+     * The command is a read-only view of the replicated log that is only valid
+     * during the call: anything kept in the state, or returned, must be copied.
+     */
+    ByteString apply(long slot, ByteBuffer command);
+
+    /**
+     * Keys the command reads or writes. Commands with disjoint footprints
+     * must commute and may be applied in parallel; an empty list means the
+     * command touches no state. The default, null, orders the command after
+     * and before every other one.
+     *
+     * Same view rules as apply; the keys may alias the command and are only
+     * used until the command is applied.
+     */
+    default List<ByteString> footprint(ByteBuffer command) {
+        return null;
+    }
+
+    /**
+     * Current value of a key for reads served from local state, or null when
+     * absent or when the state machine is not keyed.
+     */
+    default ByteString read(ByteString key) {
+        return null;
+    }
+}
@@ -0,0 +1,120 @@
+package rt4.paxos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary protocol trace format and a reader for it.
+ *
+ * Layout (little endian):
+ * <pre>
+ * header, 32 bytes: magic "PXTR", version, record size,
+ *                   epoch millis at start, nanoTime at start, reserved
+ * record, 32 bytes: nanoTime (8), slot (8), ballot (4), group (4),
+ *                   from node (2), to node (2), type (1), padding (3)
+ * </pre>
+ * A record with type 0 marks the end of the written part of the file.
+ */
+public class TraceFile {
+    public static final int MAGIC = 0x52545850;  // "PXTR"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 32;
+
+    // Event types
+    public static final byte LEADER_PROPOSAL = 1;
+    public static final byte LEADER_RESPONSE = 2;
+    public static final byte VALUE_PROPOSAL = 3;
+    public static final byte VALUE_RESPONSE = 4;
+    public static final byte ACK = 5;
+    public static final byte COMMIT = 6;
+    public static final byte COMMIT_ACK = 7;
+
+    private static final String[] TYPE_NAMES = {
+            "?", "ELECT", "ELECT_ACK", "PROP", "PROP_ACK", "ACK", "COMMIT", "COMMIT_ACK"
+    };
+
+    private final MappedByteBuffer buffer;
+    private final long startEpochMillis;
+    private final long startNanos;
+    private final int recordCount;
+
+    private TraceFile(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a Paxos trace file");
+        }
+        if (buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Unsupported trace version " + buffer.getInt(4));
+        }
+        this.startEpochMillis = buffer.getLong(12);
+        this.startNanos = buffer.getLong(20);
+
+        // A node that crashed leaves zeroed records after the last one written
+        int count = (buffer.limit() - HEADER_SIZE) / RECORD_SIZE;
+        while (count > 0 && type(count - 1) == 0) {
+            count--;
+        }
+        this.recordCount = count;
+    }
+
+    public static TraceFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Trace file too large: " + channel.size() + " bytes");
+            }
+            return new TraceFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    static void writeHeader(ByteBuffer header, long epochMillis, long nanoTime) {
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, RECORD_SIZE);
+        header.putLong(12, epochMillis);
+        header.putLong(20, nanoTime);
+    }
+
+    static void writeRecord(ByteBuffer buf, int offset, long nanoTime, long slot, int ballot,
+                            int groupId, int fromNode, int toNode, byte type) {
+        buf.putLong(offset, nanoTime);
+        buf.putLong(offset + 8, slot);
+        buf.putInt(offset + 16, ballot);
+        buf.putInt(offset + 20, groupId);
+        buf.putShort(offset + 24, (short) fromNode);
+        buf.putShort(offset + 26, (short) toNode);
+        // Type last: a non-zero type means the record is complete
+        buf.put(offset + 28, type);
+    }
+
+    public int size() {
+        return recordCount;
+    }
+
+    private int offset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+     // Record time converted to nanoseconds since the epoch, comparable across nodes
+
+    public long epochNanos(int index) {
+        return startEpochMillis * 1_000_000L + (buffer.getLong(offset(index)) - startNanos);
+    }
+
+    public long slot(int index) { return buffer.getLong(offset(index) + 8); }
+    public int ballot(int index) { return buffer.getInt(offset(index) + 16); }
+    public int group(int index) { return buffer.getInt(offset(index) + 20); }
+    public int fromNode(int index) { return buffer.getShort(offset(index) + 24) & 0xFFFF; }
+    public int toNode(int index) { return buffer.getShort(offset(index) + 26) & 0xFFFF; }
+    public byte type(int index) { return buffer.get(offset(index) + 28); }
+
+    public static String typeName(byte type) {
+        return type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : TYPE_NAMES[0];
+    }
+}
@@ -0,0 +1,145 @@
+package rt4.paxos;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+/**
+ * Records protocol events into a compact binary trace in a memory-mapped file.
+ *
+ * Enabled with -Dpaxos.trace=&lt;file&gt;. Each event is one fixed-size record
+ * (see {@link TraceFile} for the layout). Writers reserve a record with a
+ * single atomic increment and write it with absolute puts into the mapping, so
+ * recording takes no lock and makes no system call on the hot path. When
+ * tracing is disabled {@link #record} returns after one field read. Once the
+ * file reaches its limit of just under 2 GB, further events are dropped.
+ */
+public class TraceRecorder implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(TraceRecorder.class.getName());
+
+    public static final String PROPERTY = "paxos.trace";
+
+    // Records per mapped segment (64 MB with 32-byte records); 31 segments keep
+    // the file under 2 GB, the most TraceFile maps in one piece (about 65M events)
+    private static final int RECORDS_PER_SEGMENT = 1 << 21;
+    private static final int MAX_SEGMENTS = 31;
+
+    private static final TraceRecorder DISABLED = new TraceRecorder();
+    private static volatile TraceRecorder instance = DISABLED;
+
+    private final boolean enabled;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final AtomicReferenceArray<MappedByteBuffer> segments;
+    private final AtomicLong nextRecord = new AtomicLong();
+    private volatile boolean closed = false;
+
+    private TraceRecorder() {
+        this.enabled = false;
+        this.file = null;
+        this.channel = null;
+        this.segments = null;
+    }
+
+    public TraceRecorder(Path path) throws IOException {
+        this.enabled = true;
+        this.file = new RandomAccessFile(path.toFile(), "rw");
+        this.file.setLength(0);
+        this.channel = file.getChannel();
+        this.segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, TraceFile.HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        TraceFile.writeHeader(header, System.currentTimeMillis(), System.nanoTime());
+        header.force();
+    }
+
+     // Install the process-wide recorder from -Dpaxos.trace, if set
+
+    public static void initFromSystemProperties() {
+        String path = System.getProperty(PROPERTY);
+        if (path == null || path.isEmpty()) return;
+        try {
+            instance = new TraceRecorder(Paths.get(path));
+            logger.info("Recording protocol trace to " + path);
+        } catch (IOException e) {
+            logger.warning("Could not open trace file " + path + ": " + e.getMessage());
+        }
+    }
+
+    public static TraceRecorder get() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void record(byte type, int groupId, int ballot, long slot, int fromNode, int toNode) {
+        if (!enabled || closed) return;
+
+        long index = nextRecord.getAndIncrement();
+        int segmentIndex = (int) (index / RECORDS_PER_SEGMENT);
+        if (segmentIndex >= MAX_SEGMENTS) return;  // Trace full, drop
+
+        MappedByteBuffer segment = segments.get(segmentIndex);
+        if (segment == null) {
+            segment = mapSegment(segmentIndex);
+            if (segment == null) return;
+        }
+        int offset = (int) (index % RECORDS_PER_SEGMENT) * TraceFile.RECORD_SIZE;
+        TraceFile.writeRecord(segment, offset, System.nanoTime(), slot, ballot, groupId,
+                fromNode, toNode, type);
+    }
+
+    private synchronized MappedByteBuffer mapSegment(int segmentIndex) {
+        MappedByteBuffer segment = segments.get(segmentIndex);
+        if (segment != null) return segment;
+        try {
+            long position = TraceFile.HEADER_SIZE + (long) segmentIndex * RECORDS_PER_SEGMENT * TraceFile.RECORD_SIZE;
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                    (long) RECORDS_PER_SEGMENT * TraceFile.RECORD_SIZE);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments.set(segmentIndex, segment);
+            return segment;
+        } catch (IOException e) {
+            logger.warning("Could not extend trace file: " + e.getMessage());
+            return null;
+        }
+    }
+
+     // Parse a node id such as "S50051" or "50051" into its port number
+
+    public static int nodeNumber(String nodeId) {
+        int n = 0;
+        for (int i = 0; i < nodeId.length(); i++) {
+            char c = nodeId.charAt(i);
+            if (c >= '0' && c <= '9') {
+                n = n * 10 + (c - '0');
+            }
+        }
+        return n & 0xFFFF;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!enabled || closed) return;
+        closed = true;
+        long records = Math.min(nextRecord.get(), (long) RECORDS_PER_SEGMENT * MAX_SEGMENTS);
+        for (int i = 0; i < MAX_SEGMENTS; i++) {
+            MappedByteBuffer segment = segments.get(i);
+            if (segment != null) segment.force();
+        }
+        // Drop the unused tail of the last segment
+        file.setLength(TraceFile.HEADER_SIZE + records * TraceFile.RECORD_SIZE);
+        channel.close();
+        file.close();
+    }
+}
@@ -0,0 +1,139 @@
+package rt4.paxos.bench;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import rt4.paxos.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the server execution models under the same ProposeValue load.
+ *
+ * Usage: ExecutorBenchmark [requests] [concurrency] [blockMicros]
+ *
+ * blockMicros makes every handler park for that long before answering, to
+ * stand in for an acceptor waiting on a disk sync.
+ */
+public class ExecutorBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        long blockMicros = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+        // Keep per-event logging out of the measurement
+        Logger.getLogger("rt4.paxos").setLevel(Level.WARNING);
+
+        System.out.printf("requests=%d concurrency=%d blockMicros=%d%n", requests, concurrency, blockMicros);
+        System.out.printf("%-8s %12s %10s %10s %10s%n", "mode", "ops/sec", "p50(us)", "p99(us)", "max(us)");
+
+        for (ServerExecutorMode mode : ServerExecutorMode.values()) {
+            if (mode == ServerExecutorMode.DIRECT && blockMicros > 0) {
+                System.out.printf("%-8s %12s%n", mode, "skipped (blocking handler)");
+                continue;
+            }
+            // Warm up then measure
+            run(mode, requests / 5, concurrency, blockMicros, false);
+            run(mode, requests, concurrency, blockMicros, true);
+        }
+    }
+
+    private static void run(ServerExecutorMode mode, int requests, int concurrency,
+                            long blockMicros, boolean report) throws Exception {
+        ServerBuilder<?> builder = ServerBuilder.forPort(0);
+        ExecutorService executor = mode.configure(builder);
+        Server server = builder.addService(new BlockingService(blockMicros * 1000)).build().start();
+
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", server.getPort())
+                .usePlaintext()
+                .build();
+        PaxosServiceGrpc.PaxosServiceStub stub = PaxosServiceGrpc.newStub(channel);
+
+        long[] latencies = new long[requests];
+        Semaphore window = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(requests);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            window.acquire();
+            final int index = i;
+            final long sent = System.nanoTime();
+            ValueProposal proposal = ValueProposal.newBuilder()
+                    .setProposalNumber(i + 1)
+                    .setProposedValue(i)
+                    .setLeaderId("bench")
+                    .build();
+            stub.proposeValue(proposal, new StreamObserver<ValueResponse>() {
+                @Override
+                public void onNext(ValueResponse value) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    finish();
+                }
+
+                @Override
+                public void onCompleted() {
+                    finish();
+                }
+
+                private void finish() {
+                    latencies[index] = System.nanoTime() - sent;
+                    window.release();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        server.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        if (executor != null) {
+            executor.shutdown();
+        }
+
+        if (report) {
+            Arrays.sort(latencies);
+            double opsPerSec = requests / (elapsed / 1e9);
+            System.out.printf("%-8s %12.0f %10d %10d %10d%n", mode, opsPerSec,
+                    percentile(latencies, 0.50) / 1000,
+                    percentile(latencies, 0.99) / 1000,
+                    latencies[latencies.length - 1] / 1000);
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    // Real acceptor logic with an optional simulated sync before each reply
+    static class BlockingService extends PaxosServiceImpl {
+        private final long blockNanos;
+
+        BlockingService(long blockNanos) {
+            super("bench");
+            this.blockNanos = blockNanos;
+        }
+
+        @Override
+        public void proposeValue(ValueProposal request, StreamObserver<ValueResponse> responseObserver) {
+            if (blockNanos > 0) {
+                LockSupport.parkNanos(blockNanos);
+            }
+            super.proposeValue(request, responseObserver);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package rt4.paxos.gui;
+
+import io.grpc.Context;
+import io.grpc.stub.StreamObserver;
+import rt4.paxos.ClusterTopology;
+import rt4.paxos.MetricsRequest;
+import rt4.paxos.NodeMetrics;
+import rt4.paxos.PeerChannels;
+
+import javax.swing.*;
+import javax.swing.Timer;
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live performance dashboard: subscribes to StreamMetrics on every node and
+ * draws rolling charts of throughput, commit latency, in-flight slots and
+ * replication lag.
+ *
+ * Incoming samples only go into fixed-size ring buffers; the panel is redrawn
+ * by a timer at a fixed frame rate, so the drawing cost does not depend on how
+ * many nodes report or how often.
+ */
+public class MetricsDashboard extends JPanel {
+    private static final int HISTORY = 240;
+    private static final int FRAME_MILLIS = 100;
+    private static final int SAMPLE_INTERVAL_MS = 500;
+    private static final long RECONNECT_DELAY_MS = 2000;
+
+    private static final Color BACKGROUND_COLOR = new Color(240, 240, 245);
+    private static final Color GRID_COLOR = new Color(210, 210, 215);
+    private static final Color TEXT_COLOR = new Color(50, 50, 50);
+    private static final Color[] SERIES_COLORS = {
+            new Color(66, 114, 196), new Color(237, 125, 49), new Color(112, 173, 71),
+            new Color(165, 105, 189), new Color(200, 60, 60), new Color(70, 170, 170),
+            new Color(120, 120, 120)
+    };
+
+    private static final int COMMITS = 0;
+    private static final int P50 = 1;
+    private static final int P99 = 2;
+    private static final int IN_FLIGHT = 3;
+    private static final int LAG = 4;
+    private static final int SERIES_PER_NODE = 5;
+
+    private final Map<String, NodeSeries> series = new ConcurrentHashMap<>();
+    // Streams run on the shared peer channels, so stopping cancels them instead of closing channels
+    private final Map<String, Context.CancellableContext> streams = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "dashboard-reconnect");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Timer frameTimer;
+    private volatile boolean dirty = false;
+    private volatile long generation = 0;
+
+    public MetricsDashboard() {
+        setBackground(BACKGROUND_COLOR);
+        frameTimer = new Timer(FRAME_MILLIS, e -> {
+            if (dirty) {
+                dirty = false;
+                repaint();
+            }
+        });
+        frameTimer.start();
+    }
+
+    /**
+     * Starts watching the given nodes, replacing any previous subscriptions.
+     */
+    public synchronized void watch(List<String> nodeIds) {
+        stop();
+        long current = ++generation;
+        for (String nodeId : nodeIds) {
+            series.put(nodeId, new NodeSeries());
+            subscribe(nodeId, current);
+        }
+        dirty = true;
+    }
+
+    public synchronized void stop() {
+        generation++;
+        for (Context.CancellableContext stream : streams.values()) {
+            stream.cancel(null);
+        }
+        streams.clear();
+        series.clear();
+    }
+
+    private synchronized void subscribe(String nodeId, long subscribedGeneration) {
+        if (generation != subscribedGeneration) return;
+        MetricsRequest request = MetricsRequest.newBuilder()
+                .setRequester("dashboard")
+                .setIntervalMs(SAMPLE_INTERVAL_MS)
+                .build();
+
+        Context.CancellableContext stream = Context.current().withCancellation();
+        streams.put(nodeId, stream);
+        stream.run(() -> PeerChannels.shared().asyncStub(ClusterTopology.get().node(nodeId).address()).streamMetrics(request, new StreamObserver<NodeMetrics>() {
+            @Override
+            public void onNext(NodeMetrics sample) {
+                onSample(nodeId, sample);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                retry();
+            }
+
+            @Override
+            public void onCompleted() {
+                retry();
+            }
+
+            private void retry() {
+                if (generation != subscribedGeneration) return;
+                reconnector.schedule(() -> subscribe(nodeId, subscribedGeneration),
+                        RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }));
+    }
+
+    private void onSample(String nodeId, NodeMetrics sample) {
+        NodeSeries node = series.get(nodeId);
+        if (node == null) return;
+
+        long maxApplied = sample.getAppliedIndex();
+        for (NodeSeries other : series.values()) {
+            maxApplied = Math.max(maxApplied, other.lastApplied);
+        }
+
+        synchronized (node) {
+            node.lastApplied = sample.getAppliedIndex();
+            node.rings[COMMITS].add(sample.getCommitsPerSec());
+            node.rings[P50].add(sample.getCommitLatencyP50Us() / 1000.0);
+            node.rings[P99].add(sample.getCommitLatencyP99Us() / 1000.0);
+            node.rings[IN_FLIGHT].add(sample.getInFlightSlots());
+            node.rings[LAG].add(maxApplied - sample.getAppliedIndex());
+        }
+        dirty = true;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Graphics2D g2d = (Graphics2D) g;
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        int w = getWidth() / 2;
+        int h = getHeight() / 2;
+        List<String> nodeIds = new ArrayList<>(series.keySet());
+        Collections.sort(nodeIds);
+
+        drawChart(g2d, 0, 0, w, h, "Commits / sec", nodeIds, new int[]{COMMITS}, "%.0f");
+        drawChart(g2d, w, 0, w, h, "Commit latency p50 / p99 (ms)", nodeIds, new int[]{P50, P99}, "%.2f");
+        drawChart(g2d, 0, h, w, h, "In-flight slots", nodeIds, new int[]{IN_FLIGHT}, "%.0f");
+        drawChart(g2d, w, h, w, h, "Replication lag (entries)", nodeIds, new int[]{LAG}, "%.0f");
+
+        if (nodeIds.isEmpty()) {
+            g2d.setColor(TEXT_COLOR);
+            g2d.drawString("Start the Paxos process to stream metrics from the nodes", 20, getHeight() / 2);
+        }
+    }
+
+    private void drawChart(Graphics2D g2d, int x, int y, int w, int h, String title,
+                           List<String> nodeIds, int[] kinds, String valueFormat) {
+        int left = x + 50, top = y + 25, right = x + w - 10, bottom = y + h - 30;
+        int plotWidth = right - left, plotHeight = bottom - top;
+        if (plotWidth <= 0 || plotHeight <= 0) return;
+
+        double[] values = new double[HISTORY];
+        double max = 1;
+        for (String nodeId : nodeIds) {
+            NodeSeries node = series.get(nodeId);
+            if (node == null) continue;
+            synchronized (node) {
+                for (int kind : kinds) {
+                    max = Math.max(max, node.rings[kind].max());
+                }
+            }
+        }
+
+        g2d.setColor(GRID_COLOR);
+        g2d.drawRect(left, top, plotWidth, plotHeight);
+        g2d.drawLine(left, top + plotHeight / 2, right, top + plotHeight / 2);
+        g2d.setColor(TEXT_COLOR);
+        g2d.setFont(new Font("SansSerif", Font.BOLD, 12));
+        g2d.drawString(title, left, y + 15);
+        g2d.setFont(new Font("SansSerif", Font.PLAIN, 10));
+        g2d.drawString(String.format(valueFormat, max), x + 4, top + 10);
+        g2d.drawString("0", x + 4, bottom);
+
+        int legendX = left;
+        for (int p = 0; p < nodeIds.size(); p++) {
+            NodeSeries node = series.get(nodeIds.get(p));
+            if (node == null) continue;
+            Color color = SERIES_COLORS[p % SERIES_COLORS.length];
+
+            for (int k = 0; k < kinds.length; k++) {
+                int n;
+                synchronized (node) {
+                    n = node.rings[kinds[k]].copyTo(values);
+                }
+                // Second series of a chart (p99) is drawn dashed
+                g2d.setStroke(k == 0 ? new BasicStroke(1.5f)
+                        : new BasicStroke(1.5f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10f, new float[]{4f, 3f}, 0f));
+                g2d.setColor(color);
+                int prevX = -1, prevY = -1;
+                for (int i = 0; i < n; i++) {
+                    int px = left + (int) ((long) (HISTORY - n + i) * plotWidth / (HISTORY - 1));
+                    int py = bottom - (int) (values[i] / max * plotHeight);
+                    if (prevX >= 0) g2d.drawLine(prevX, prevY, px, py);
+                    prevX = px;
+                    prevY = py;
+                }
+            }
+
+            g2d.setStroke(new BasicStroke(1f));
+            g2d.setColor(color);
+            g2d.fillRect(legendX, bottom + 10, 10, 10);
+            g2d.setColor(TEXT_COLOR);
+            g2d.drawString(nodeIds.get(p), legendX + 14, bottom + 19);
+            legendX += 70;
+        }
+    }
+
+    // Rolling window of samples for one node
+    static class NodeSeries {
+        final RingBuffer[] rings = new RingBuffer[SERIES_PER_NODE];
+        long lastApplied = 0;
+
+        NodeSeries() {
+            for (int i = 0; i < SERIES_PER_NODE; i++) {
+                rings[i] = new RingBuffer(HISTORY);
+            }
+        }
+    }
+
+    static class RingBuffer {
+        private final double[] values;
+        private int start = 0;
+        private int size = 0;
+
+        RingBuffer(int capacity) {
+            this.values = new double[capacity];
+        }
+
+        void add(double value) {
+            if (size < values.length) {
+                values[(start + size++) % values.length] = value;
+            } else {
+                values[start] = value;
+                start = (start + 1) % values.length;
+            }
+        }
+
+         // Copy oldest to newest into out, returns the number of samples
+
+        int copyTo(double[] out) {
+            for (int i = 0; i < size; i++) {
+                out[i] = values[(start + i) % values.length];
+            }
+            return size;
+        }
+
+        double max() {
+            double max = 0;
+            for (int i = 0; i < size; i++) {
+                max = Math.max(max, values[(start + i) % values.length]);
+            }
+            return max;
+        }
+    }
+}
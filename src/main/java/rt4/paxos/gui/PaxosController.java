@@ -1,113 +1,141 @@
 package rt4.paxos.gui;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
 import io.grpc.StatusRuntimeException;
 import rt4.paxos.*;
 
-import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Controller class that manages the Paxos process and communicates with the GUI
  */
 public class PaxosController {
+    private static final String CONSENSUS_KEY = "consensus";
+    private static final long CLIENT_WAIT_MS = 3000;
+
     private final PaxosVisualizer visualizer;
-    private List<ManagedChannel> activeChannels = new ArrayList<>();
     private AtomicBoolean isRunning = new AtomicBoolean(false);
     private final Random random = new Random();
     private Map<String, Boolean> serverAvailability = new HashMap<>();
 
+    // Real-protocol mode: drive the actual RPCs instead of simulating them
+    private volatile boolean realProtocolMode = false;
+    private int nextBallot = 1;
+
+    // Status of every node by id, kept current with the changes GetClusterStatus reports
+    private final Map<String, ServerStatus> clusterStatus = new HashMap<>();
+    private long statusEpoch = 0;
+    private long statusVersion = 0;
+
+    // Submits the proposal phase's value to the leader, which it keeps track of
+    private PaxosClient client;
+
     public PaxosController(PaxosVisualizer visualizer) {
         this.visualizer = visualizer;
     }
 
+    public void setRealProtocolMode(boolean realProtocolMode) {
+        this.realProtocolMode = realProtocolMode;
+    }
+
+    public boolean isRealProtocolMode() {
+        return realProtocolMode;
+    }
+
     /**
      * Starts the Paxos consensus process with the specified servers
      */
-    public void startPaxosProcess(List<String> targetPorts) {
+    public void startPaxosProcess(List<String> targetNodes) {
         if (isRunning.getAndSet(true)) {
             return;  // Already running
         }
 
         try {
-            activeChannels.clear();
             serverAvailability.clear();
 
             // First check which servers are available
-            checkServerAvailability(targetPorts);
+            checkServerAvailability(targetNodes);
 
             // Filter out unavailable servers
-            List<String> availablePorts = new ArrayList<>();
-            for (String port : targetPorts) {
-                if (serverAvailability.getOrDefault(port, false)) {
-                    availablePorts.add(port);
+            List<String> availableNodes = new ArrayList<>();
+            for (String nodeId : targetNodes) {
+                if (serverAvailability.getOrDefault(nodeId, false)) {
+                    availableNodes.add(nodeId);
                 } else {
-                    visualizer.addLogMessage("WARNING", "Server on port " + port + " is not available");
+                    visualizer.addLogMessage("WARNING", "Server " + nodeId + " is not available");
                 }
             }
 
-            if (availablePorts.isEmpty()) {
+            if (availableNodes.isEmpty()) {
                 visualizer.addLogMessage("ERROR", "No servers available. Make sure servers are started.");
                 isRunning.set(false);
                 return;
             }
 
+            if (realProtocolMode) {
+                runRealProtocolRound(availableNodes);
+                isRunning.set(false);
+                return;
+            }
+
             // Phase 1: Election
-            runElectionPhase(availablePorts);
+            runElectionPhase(availableNodes);
 
             if (!visualizer.isRunning()) return;
             sleepWithAnimation(1000);
 
             // Phase 2: Bill (Propose values and collect ACKs)
-            runProposalPhase(availablePorts);
+            runProposalPhase(availableNodes);
 
             if (!visualizer.isRunning()) return;
             sleepWithAnimation(1000);
 
             // Phase 3: Law (Commit consensus value)
-            runCommitPhase(availablePorts);
+            runCommitPhase(availableNodes);
 
             // Clean up
-            cleanupChannels();
             isRunning.set(false);
 
         } catch (Exception e) {
             visualizer.addLogMessage("ERROR", "Process error: " + e.getMessage());
             e.printStackTrace();
-            cleanupChannels();
             isRunning.set(false);
         }
     }
 
-    private void checkServerAvailability(List<String> targetPorts) {
-        for (String port : targetPorts) {
+    private void checkServerAvailability(List<String> targetNodes) {
+        for (String nodeId : targetNodes) {
             try {
-                ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", Integer.parseInt(port))
-                        .usePlaintext()
-                        .build();
-
-                PaxosServiceGrpc.PaxosServiceBlockingStub stub = PaxosServiceGrpc.newBlockingStub(channel);
-
-                stub.withDeadlineAfter(1, TimeUnit.SECONDS)
+                PeerChannels.shared().blockingStub(target(nodeId))
+                        .withDeadlineAfter(1, TimeUnit.SECONDS)
                         .getServerStatus(StatusRequest.newBuilder().setRequester("gui").build());
 
-                serverAvailability.put(port, true);
-                activeChannels.add(channel);
-                visualizer.addLogMessage("INFO", "Server on port " + port + " is available");
+                serverAvailability.put(nodeId, true);
+                visualizer.addLogMessage("INFO", "Server " + nodeId + " is available");
 
             } catch (Exception e) {
-                serverAvailability.put(port, false);
-                visualizer.addLogMessage("WARNING", "Server on port " + port + " is not responding");
+                serverAvailability.put(nodeId, false);
+                visualizer.addLogMessage("WARNING", "Server " + nodeId + " is not responding");
             }
         }
     }
 
      //Phase 1: Leader Election
 
-    private void runElectionPhase(List<String> targetPorts) throws InterruptedException {
+    private void runElectionPhase(List<String> targetNodes) throws InterruptedException {
         visualizer.setPhase("1 - Election");
         visualizer.addLogMessage("PHASE", "Starting ELECTION phase");
 
@@ -117,22 +145,22 @@ public class PaxosController {
         int highestProposal = 0;
 
         // Each server proposes itself as a leader with a random proposal number
-        for (String port : targetPorts) {
+        for (String nodeId : targetNodes) {
             // Generate a random proposal number for this server
             int proposalNum = random.nextInt(100) + 1;
-            proposalNumbers.put(port, proposalNum);
+            proposalNumbers.put(nodeId, proposalNum);
 
             // Update node status in visualization
-            visualizer.updateNodeStatus(port, false, "Proposer", proposalNum, -1);
+            visualizer.updateNodeStatus(nodeId, false, "Proposer", proposalNum, -1);
 
             // Log the proposal
             visualizer.addLogMessage("PROPOSE_LEADER",
-                    "Server " + port + " proposes itself as leader with proposal number " + proposalNum);
+                    "Server " + nodeId + " proposes itself as leader with proposal number " + proposalNum);
 
             // Track highest proposal
             if (proposalNum > highestProposal) {
                 highestProposal = proposalNum;
-                leaderId = port;
+                leaderId = nodeId;
             }
 
             sleepWithAnimation(500);
@@ -140,17 +168,17 @@ public class PaxosController {
 
         // Simulate leader acceptance by other nodes
         if (leaderId != null) {
-            for (String port : targetPorts) {
-                if (!port.equals(leaderId)) {
+            for (String nodeId : targetNodes) {
+                if (!nodeId.equals(leaderId)) {
                     // This server acknowledges the leader
-                    boolean accepts = proposalNumbers.get(port) <= highestProposal;
+                    boolean accepts = proposalNumbers.get(nodeId) <= highestProposal;
 
                     // Visualize message passing
-                    visualizer.addMessageAnimation(leaderId, port, "ELECT", accepts);
-                    visualizer.addMessageAnimation(port, leaderId, "ACK", accepts);
+                    visualizer.addMessageAnimation(leaderId, nodeId, "ELECT", accepts);
+                    visualizer.addMessageAnimation(nodeId, leaderId, "ACK", accepts);
 
                     visualizer.addLogMessage("LEADER_ACK",
-                            "Server " + port + (accepts ? " accepts " : " rejects ") +
+                            "Server " + nodeId + (accepts ? " accepts " : " rejects ") +
                                     leaderId + " as leader");
 
                     sleepWithAnimation(300);
@@ -164,9 +192,8 @@ public class PaxosController {
 
             // Try to communicate with actual server to set leader status
             try {
-                ManagedChannel channel = getChannelForPort(leaderId);
-                if (channel != null) {
-                    PaxosServiceGrpc.PaxosServiceBlockingStub stub = PaxosServiceGrpc.newBlockingStub(channel);
+                PaxosServiceGrpc.PaxosServiceBlockingStub stub = blockingStubFor(leaderId);
+                if (stub != null) {
                     stub.getServerStatus(StatusRequest.newBuilder().setRequester("gui").build());
                 }
             } catch (Exception e) {
@@ -179,38 +206,20 @@ public class PaxosController {
 
      // Phase 2: Proposal (Bill)
 
-    private void runProposalPhase(List<String> targetPorts) throws InterruptedException {
+    private void runProposalPhase(List<String> targetNodes) throws InterruptedException {
         visualizer.setPhase("2 - Bill (Proposal)");
         visualizer.addLogMessage("PHASE", "Starting BILL phase (value proposal)");
 
-        // Identify the leader
-        String leaderId = null;
-        for (String port : targetPorts) {
-            try {
-                ManagedChannel channel = getChannelForPort(port);
-                if (channel == null) continue;
-
-                PaxosServiceGrpc.PaxosServiceBlockingStub stub = PaxosServiceGrpc.newBlockingStub(channel);
-
-                ServerStatus status = stub.withDeadlineAfter(1, TimeUnit.SECONDS)
-                        .getServerStatus(StatusRequest.newBuilder().setRequester("gui").build());
-
-                if (status.getIsLeader()) {
-                    leaderId = port;
-                    break;
-                }
-            } catch (StatusRuntimeException e) {
-
-                continue;
-            }
-        }
+        // The leader is the node that commits the value; the client reaches it in one call
+        int proposedValue = random.nextInt(100);
+        String leaderId = proposeThroughClient(proposedValue, targetNodes);
 
-        // If no leader found from real servers, use the one from election phase
+        // If no server committed it, use the leader from the election phase
         if (leaderId == null) {
             // Find the node currently marked as leader in UI
-            for (String port : targetPorts) {
-                if (isNodeLeader(port)) {
-                    leaderId = port;
+            for (String nodeId : targetNodes) {
+                if (isNodeLeader(nodeId)) {
+                    leaderId = nodeId;
                     visualizer.addLogMessage("INFO", "Using simulated leader " + leaderId + " for proposal phase");
                     break;
                 }
@@ -219,8 +228,8 @@ public class PaxosController {
 
         if (leaderId == null) {
             // Last resort - pick the first available server
-            if (!targetPorts.isEmpty()) {
-                leaderId = targetPorts.get(0);
+            if (!targetNodes.isEmpty()) {
+                leaderId = targetNodes.get(0);
                 visualizer.updateNodeStatus(leaderId, true, "Leader", 0, -1);
                 visualizer.addLogMessage("INFO", "Selecting " + leaderId + " as fallback leader");
             } else {
@@ -229,79 +238,94 @@ public class PaxosController {
             }
         }
 
-        // Leader proposes a random value
-        int proposedValue = random.nextInt(100);
+        // Leader proposes the value
         visualizer.updateNodeStatus(leaderId, true, "Leader", 0, proposedValue);
         visualizer.addLogMessage("PROPOSE_VALUE",
                 "Leader " + leaderId + " proposes value: " + proposedValue);
 
         // Send proposal to all acceptors
-        Map<String, Boolean> acceptances = new HashMap<>();
-        for (String port : targetPorts) {
-            if (!port.equals(leaderId)) {
-                // Simulate acceptors receiving the proposal
-                visualizer.addMessageAnimation(leaderId, port, "PROP:" + proposedValue, true);
-                visualizer.updateNodeStatus(port, false, "Acceptor", 0, proposedValue);
-
-                // Random acceptance (but mostly yes)
-                boolean accepts = random.nextInt(10) < 9; // 90% chance of acceptance
-                acceptances.put(port, accepts);
-
-                sleepWithAnimation(300);
-
-                // Acceptor sends ACK back to leader
-                visualizer.addMessageAnimation(port, leaderId, "ACK", accepts);
-                visualizer.addLogMessage("VALUE_ACK",
-                        "Server " + port + (accepts ? " accepts" : " rejects") +
-                                " value " + proposedValue);
-
-                sleepWithAnimation(300);
+        for (String nodeId : targetNodes) {
+            if (!nodeId.equals(leaderId)) {
+                visualizer.addMessageAnimation(leaderId, nodeId, "PROP:" + proposedValue, true);
+                visualizer.updateNodeStatus(nodeId, false, "Acceptor", 0, proposedValue);
             }
         }
-
-        // Check if we have a majority of acceptances
-        int accepted = 0;
-        for (boolean accepts : acceptances.values()) {
+        sleepWithAnimation(300);
+
+        // Count acks as they arrive; the leader's own vote is included, and the
+        // value is chosen as soon as a quorum accepted, without waiting for stragglers
+        int quorum = targetNodes.size() / 2 + 1;
+        int accepted = 1;
+        int rejected = 0;
+        for (String nodeId : targetNodes) {
+            if (nodeId.equals(leaderId)) continue;
+            if (accepted >= quorum || targetNodes.size() - rejected < quorum) break;
+
+            // Random acceptance (but mostly yes)
+            boolean accepts = random.nextInt(10) < 9; // 90% chance of acceptance
             if (accepts) accepted++;
-        }
+            else rejected++;
 
-        boolean majorityAccepted = accepted >= targetPorts.size() / 2;
+            // Acceptor sends ACK back to leader
+            visualizer.addMessageAnimation(nodeId, leaderId, "ACK", accepts);
+            visualizer.addLogMessage("VALUE_ACK",
+                    "Server " + nodeId + (accepts ? " accepts" : " rejects") +
+                            " value " + proposedValue);
 
-        if (majorityAccepted) {
+            sleepWithAnimation(300);
+        }
+
+        if (accepted >= quorum) {
             visualizer.addLogMessage("PROPOSAL_SUCCESS",
-                    "Value " + proposedValue + " accepted by majority (" + accepted + "/" + acceptances.size() + ")");
+                    "Value " + proposedValue + " accepted by a quorum (" + accepted + "/" + targetNodes.size() +
+                            "), remaining acks ignored");
             visualizer.setConsensusValue(proposedValue);
         } else {
             visualizer.addLogMessage("PROPOSAL_FAILED",
-                    "Value " + proposedValue + " rejected (only " + accepted + "/" + acceptances.size() + " accepted)");
+                    "Value " + proposedValue + " rejected (only " + accepted + "/" + targetNodes.size() + " accepted)");
             // In a real implementation, we would retry with a new proposal
         }
     }
 
 
-     // Helper method to check if a node is currently marked as leader in the UI
-
-    private boolean isNodeLeader(String port) {
+    /**
+     * Submits the value as a put of CONSENSUS_KEY through the client and
+     * returns the node that committed it, or null if none did in time or it
+     * is not one of the nodes shown.
+     */
+    private String proposeThroughClient(int value, List<String> targetNodes) {
         try {
-            Field nodesField = visualizer.getClass().getDeclaredField("nodes");
-            nodesField.setAccessible(true);
-
-            @SuppressWarnings("unchecked")
-            Map<String, PaxosVisualizer.ServerNode> nodes =
-                    (Map<String, PaxosVisualizer.ServerNode>) nodesField.get(visualizer);
+            client().put(CONSENSUS_KEY, ByteString.copyFromUtf8(Integer.toString(value)))
+                    .get(CLIENT_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            visualizer.addLogMessage("WARNING", "Value " + value + " not committed by the servers: " + e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        String leaderId = client().leaderForKey(CONSENSUS_KEY);
+        return targetNodes.contains(leaderId) ? leaderId : null;
+    }
 
-            PaxosVisualizer.ServerNode node = nodes.get(port);
-            return node != null && node.isLeader;
-        } catch (Exception e) {
-            // Fallback if reflection fails
-            return false;
+    private synchronized PaxosClient client() {
+        if (client == null) {
+            client = PaxosClient.fromSystemProperties();
         }
+        return client;
+    }
+
+     // Helper method to check if a node is currently marked as leader in the UI
+
+    private boolean isNodeLeader(String nodeId) {
+        PaxosVisualizer.ServerNode node = visualizer.getNode(nodeId);
+        return node != null && node.isLeader();
     }
 
 
      // Phase 3: Commit (Law)
 
-    private void runCommitPhase(List<String> targetPorts) throws InterruptedException {
+    private void runCommitPhase(List<String> targetNodes) throws InterruptedException {
         visualizer.setPhase("3 - Law (Commit)");
         visualizer.addLogMessage("PHASE", "Starting LAW phase (value commit)");
 
@@ -310,39 +334,25 @@ public class PaxosController {
         int consensusValue = -1;
 
         // Try to find leader from server stats
-        for (String port : targetPorts) {
-            try {
-                ManagedChannel channel = getChannelForPort(port);
-                if (channel == null) continue;
-
-                PaxosServiceGrpc.PaxosServiceBlockingStub stub = PaxosServiceGrpc.newBlockingStub(channel);
-                ServerStatus status = stub.withDeadlineAfter(1, TimeUnit.SECONDS)
-                        .getServerStatus(StatusRequest.newBuilder().setRequester("gui").build());
-
-                if (status.getIsLeader()) {
-                    leaderId = port;
-                    consensusValue = status.getCurrentValue();
-                    break;
-                }
-            } catch (Exception e) {
-                continue;
+        Map<String, ServerStatus> statuses = refreshClusterStatus(targetNodes);
+        for (String nodeId : targetNodes) {
+            ServerStatus status = statuses.get(nodeId);
+            if (status != null && status.getIsLeader()) {
+                leaderId = nodeId;
+                consensusValue = status.getCurrentValue();
+                break;
             }
         }
 
         // If no leader found, use visualization data
         if (leaderId == null) {
             // Try to find leader from UI
-            for (String port : targetPorts) {
-                if (isNodeLeader(port)) {
-                    leaderId = port;
-
-                    // Get the current value from field if possible
-                    try {
-                        Field consensusValueField = visualizer.getClass().getDeclaredField("consensusValue");
-                        consensusValueField.setAccessible(true);
-                        consensusValue = (int) consensusValueField.get(visualizer);
-                    } catch (Exception e) {
-                        // Fallback to random value if we can't get it
+            for (String nodeId : targetNodes) {
+                if (isNodeLeader(nodeId)) {
+                    leaderId = nodeId;
+
+                    consensusValue = visualizer.getConsensusValue();
+                    if (consensusValue == -1) {
                         consensusValue = random.nextInt(100);
                     }
 
@@ -354,8 +364,8 @@ public class PaxosController {
 
         if (leaderId == null || consensusValue == -1) {
             // Last fallback - take the first server and a random value
-            if (!targetPorts.isEmpty()) {
-                leaderId = targetPorts.get(0);
+            if (!targetNodes.isEmpty()) {
+                leaderId = targetNodes.get(0);
                 consensusValue = random.nextInt(100);
                 visualizer.addLogMessage("INFO", "Using " + leaderId + " as fallback leader with value " + consensusValue);
             } else {
@@ -368,20 +378,20 @@ public class PaxosController {
         visualizer.setConsensusValue(consensusValue);
 
         // Leader sends commit to all servers
-        for (String port : targetPorts) {
-            if (!port.equals(leaderId)) {
+        for (String nodeId : targetNodes) {
+            if (!nodeId.equals(leaderId)) {
                 // Visualize commit message
-                visualizer.addMessageAnimation(leaderId, port, "COMMIT:" + consensusValue, true);
+                visualizer.addMessageAnimation(leaderId, nodeId, "COMMIT:" + consensusValue, true);
                 visualizer.addLogMessage("COMMIT",
-                        "Leader " + leaderId + " commits value " + consensusValue + " to server " + port);
+                        "Leader " + leaderId + " commits value " + consensusValue + " to server " + nodeId);
 
                 // Update acceptor with final value
-                visualizer.updateNodeStatus(port, false, "Acceptor", 0, consensusValue);
+                visualizer.updateNodeStatus(nodeId, false, "Acceptor", 0, consensusValue);
 
                 sleepWithAnimation(500);
 
                 // Acceptor confirms
-                visualizer.addMessageAnimation(port, leaderId, "COMMIT_ACK", true);
+                visualizer.addMessageAnimation(nodeId, leaderId, "COMMIT_ACK", true);
             }
         }
 
@@ -391,30 +401,216 @@ public class PaxosController {
     }
 
     /**
-     * Helper method to get an existing channel for a port or null
+     * Runs one full consensus round against the real servers: ProposeLeader,
+     * ProposeValue and CommitValue are sent to every node in parallel and each
+     * phase completes as soon as a majority answered positively. The wall-clock
+     * time of every phase is measured and shown in the GUI. The round carries
+     * no slot, so the servers run it on ballots and state of its own and the
+     * leader of the replicated log keeps serving clients meanwhile.
      */
-    private ManagedChannel getChannelForPort(String port) {
-        for (ManagedChannel channel : activeChannels) {
-            String authority = channel.authority();
-            if (authority != null && authority.contains(port)) {
-                return channel;
+    private void runRealProtocolRound(List<String> targetNodes) throws InterruptedException {
+        int quorum = targetNodes.size() / 2 + 1;
+        String leaderId = targetNodes.get(random.nextInt(targetNodes.size()));
+        long roundStart = System.nanoTime();
+
+        // Phase 1: Election, retried with a higher ballot when a node has seen a newer one
+        visualizer.setPhase("1 - Election (RPC)");
+        int ballot = 0;
+        int elected = 0;
+        long electionNanos = 0;
+        for (int attempt = 0; attempt < 3 && elected < quorum; attempt++) {
+            ballot = nextBallot++;
+            final int proposalNumber = ballot;
+            AtomicInteger highestSeen = new AtomicInteger();
+            long start = System.nanoTime();
+            elected = callQuorum(targetNodes, quorum,
+                    stub -> stub.proposeLeader(LeaderProposal.newBuilder()
+                            .setProposalNumber(proposalNumber)
+                            .setServerId(leaderId)
+                            .build()),
+                    response -> {
+                        highestSeen.accumulateAndGet(response.getHighestSeen(), Math::max);
+                        return response.getAccepted();
+                    },
+                    nodeId -> visualizer.addMessageAnimation(leaderId, nodeId, "ELECT", true));
+            electionNanos = System.nanoTime() - start;
+            nextBallot = Math.max(nextBallot, highestSeen.get() + 1);
+        }
+        visualizer.addLogMessage("LEADER_ELECTED", String.format(
+                "Server %s promised ballot %d by %d/%d nodes in %.3f ms",
+                leaderId, ballot, elected, targetNodes.size(), electionNanos / 1e6));
+        if (elected < quorum) {
+            visualizer.addLogMessage("ERROR", "Election failed, no quorum of promises");
+            visualizer.setPhaseTimings(String.format("elect %.2f ms (failed)", electionNanos / 1e6));
+            return;
+        }
+        visualizer.updateNodeStatus(leaderId, true, "Leader", ballot, -1);
+
+        // Phase 2: Bill, acceptors answer ProposeValue and acknowledge to the leader
+        visualizer.setPhase("2 - Bill (RPC)");
+        final int proposalNumber = ballot;
+        int proposedValue = random.nextInt(100);
+        PaxosServiceGrpc.PaxosServiceFutureStub leaderStub = futureStubFor(leaderId);
+        long start = System.nanoTime();
+        int accepted = callQuorum(targetNodes, quorum,
+                stub -> stub.proposeValue(ValueProposal.newBuilder()
+                        .setProposalNumber(proposalNumber)
+                        .setProposedValue(proposedValue)
+                        .setLeaderId(leaderId)
+                        .build()),
+                response -> {
+                    if (leaderStub != null) {
+                        leaderStub.withDeadlineAfter(1, TimeUnit.SECONDS)
+                                .acknowledgeProposal(ProposalAck.newBuilder()
+                                        .setProposalNumber(proposalNumber)
+                                        .setAccepted(response.getAccepted())
+                                        .setAcceptorId(response.getAcceptorId())
+                                        .build());
+                    }
+                    return response.getAccepted();
+                },
+                nodeId -> visualizer.addMessageAnimation(leaderId, nodeId, "PROP:" + proposedValue, true));
+        long proposalNanos = System.nanoTime() - start;
+        visualizer.addLogMessage("PROPOSAL", String.format(
+                "Value %d accepted by %d/%d nodes in %.3f ms",
+                proposedValue, accepted, targetNodes.size(), proposalNanos / 1e6));
+        if (accepted < quorum) {
+            visualizer.addLogMessage("PROPOSAL_FAILED", "Value " + proposedValue + " not accepted by a majority");
+            visualizer.setPhaseTimings(String.format("elect %.2f ms | bill %.2f ms (failed)",
+                    electionNanos / 1e6, proposalNanos / 1e6));
+            return;
+        }
+
+        // Phase 3: Law, the chosen value is committed on every node
+        visualizer.setPhase("3 - Law (RPC)");
+        start = System.nanoTime();
+        int committed = callQuorum(targetNodes, quorum,
+                stub -> stub.commitValue(ConsensusValue.newBuilder()
+                        .setProposalNumber(proposalNumber)
+                        .setValue(proposedValue)
+                        .setLeaderId(leaderId)
+                        .build()),
+                CommitAck::getSuccess,
+                nodeId -> visualizer.addMessageAnimation(leaderId, nodeId, "COMMIT:" + proposedValue, true));
+        long commitNanos = System.nanoTime() - start;
+        long totalNanos = System.nanoTime() - roundStart;
+
+        for (String nodeId : targetNodes) {
+            if (!nodeId.equals(leaderId)) {
+                visualizer.updateNodeStatus(nodeId, false, "Acceptor", proposalNumber, proposedValue);
             }
         }
+        visualizer.updateNodeStatus(leaderId, true, "Leader", proposalNumber, proposedValue);
+        visualizer.setConsensusValue(proposedValue);
+        visualizer.addLogMessage("CONSENSUS_REACHED", String.format(
+                "Value %d committed by %d/%d nodes in %.3f ms (round %.3f ms)",
+                proposedValue, committed, targetNodes.size(), commitNanos / 1e6, totalNanos / 1e6));
+        visualizer.setPhaseTimings(String.format("elect %.2f ms | bill %.2f ms | law %.2f ms | total %.2f ms",
+                electionNanos / 1e6, proposalNanos / 1e6, commitNanos / 1e6, totalNanos / 1e6));
+        visualizer.setPhase("Complete");
+    }
+
+    /**
+     * Sends one RPC to every node in parallel and waits until a quorum of
+     * positive answers arrived or every node answered. Returns the number of
+     * positive answers seen by then.
+     */
+    private <T> int callQuorum(List<String> targetNodes, int quorum,
+                               Function<PaxosServiceGrpc.PaxosServiceFutureStub, ListenableFuture<T>> call,
+                               Predicate<T> isPositive,
+                               Consumer<String> onSend) throws InterruptedException {
+        AtomicInteger positive = new AtomicInteger();
+        AtomicInteger answered = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        int expected = targetNodes.size();
+
+        for (String nodeId : targetNodes) {
+            PaxosServiceGrpc.PaxosServiceFutureStub stub = futureStubFor(nodeId);
+            if (stub == null) {
+                if (answered.incrementAndGet() == expected) done.countDown();
+                continue;
+            }
+            onSend.accept(nodeId);
+            ListenableFuture<T> future = call.apply(
+                    stub.withDeadlineAfter(1, TimeUnit.SECONDS));
+            Futures.addCallback(future, new FutureCallback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    boolean ok = isPositive.test(result);
+                    int count = ok ? positive.incrementAndGet() : positive.get();
+                    if (count >= quorum || answered.incrementAndGet() == expected) {
+                        done.countDown();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    visualizer.addLogMessage("WARNING", "Server " + nodeId + " failed: " + t.getMessage());
+                    if (answered.incrementAndGet() == expected) {
+                        done.countDown();
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        done.await(2, TimeUnit.SECONDS);
+        return positive.get();
+    }
 
-        // If no existing channel, try to create one for available servers
-        if (serverAvailability.getOrDefault(port, false)) {
+    /**
+     * Brings the cluster status up to date with one GetClusterStatus call to
+     * the first node that answers, applying only the nodes that changed since
+     * the last call. Log entries are not kept; unreachable nodes are dropped.
+     */
+    private Map<String, ServerStatus> refreshClusterStatus(List<String> targetNodes) {
+        for (String target : targetNodes) {
+            PaxosServiceGrpc.PaxosServiceBlockingStub stub = blockingStubFor(target);
+            if (stub == null) continue;
+            ClusterStatus update;
             try {
-                ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", Integer.parseInt(port))
-                        .usePlaintext()
-                        .build();
-                activeChannels.add(channel);
-                return channel;
-            } catch (Exception e) {
-                return null;
+                update = stub.withDeadlineAfter(1, TimeUnit.SECONDS)
+                        .getClusterStatus(ClusterStatusRequest.newBuilder()
+                                .setRequester("gui")
+                                .setEpoch(statusEpoch)
+                                .setSinceVersion(statusVersion)
+                                .build());
+            } catch (StatusRuntimeException e) {
+                continue;
+            }
+            if (update.getFull()) {
+                clusterStatus.clear();
             }
+            for (NodeStatusUpdate node : update.getNodesList()) {
+                // Nodes that never answered are named by their address
+                ClusterTopology.Node byAddress = ClusterTopology.get().nodeAt(node.getServerId());
+                String nodeId = byAddress != null ? byAddress.getId() : node.getServerId();
+                if (node.getReachable()) {
+                    clusterStatus.put(nodeId, node.getStatus());
+                } else {
+                    clusterStatus.remove(nodeId);
+                }
+            }
+            statusEpoch = update.getEpoch();
+            statusVersion = update.getVersion();
+            break;
         }
+        return clusterStatus;
+    }
 
-        return null;
+    /**
+     * Stubs on the shared, long-lived channel to a node; null for a node that
+     * did not answer this round's availability check
+     */
+    private PaxosServiceGrpc.PaxosServiceFutureStub futureStubFor(String nodeId) {
+        return serverAvailability.getOrDefault(nodeId, false) ? PeerChannels.shared().futureStub(target(nodeId)) : null;
+    }
+
+    private PaxosServiceGrpc.PaxosServiceBlockingStub blockingStubFor(String nodeId) {
+        return serverAvailability.getOrDefault(nodeId, false) ? PeerChannels.shared().blockingStub(target(nodeId)) : null;
+    }
+
+    private static String target(String nodeId) {
+        return ClusterTopology.get().node(nodeId).address();
     }
 
      // Sleep with animation to show process visually
@@ -426,20 +622,4 @@ public class PaxosController {
 
     public void stopPaxosProcess() {
         isRunning.set(false);
-        cleanupChannels();
-    }
-
-
-     // Clean up all gRPC channels
-
-    private void cleanupChannels() {
-        for (ManagedChannel channel : activeChannels) {
-            try {
-                channel.shutdown().awaitTermination(1, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-        activeChannels.clear();
-    }
-}
\ No newline at end of file
+    }}
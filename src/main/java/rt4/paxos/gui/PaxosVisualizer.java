@@ -1,13 +1,24 @@
 package rt4.paxos.gui;
 
+import rt4.paxos.ClusterTopology;
+
 import javax.swing.*;
 import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
 import java.awt.*;
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
@@ -25,27 +36,43 @@ public class PaxosVisualizer extends JFrame {
     private static final Color MESSAGE_COLOR = new Color(252, 146, 162);
     private static final Color SUCCESS_COLOR = new Color(140, 200, 140);
 
+    // Event log rendering: lines kept in the text area and how often pending lines are flushed
+    private static final int MAX_LOG_LINES = 500;
+    private static final int LOG_FRAME_MILLIS = 33;
+    private static final DateTimeFormatter LOG_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
     // Server information
     private final ConcurrentHashMap<String, ServerNode> nodes = new ConcurrentHashMap<>();
-    private final CopyOnWriteArrayList<LogMessage> logMessages = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<LogMessage> pendingLogMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingLogCount = new AtomicInteger();
     private final CopyOnWriteArrayList<MessageAnimation> messageAnimations = new CopyOnWriteArrayList<>();
 
     // UI components
     private JPanel visualizationPanel;
+    private MetricsDashboard dashboard;
     private JTextArea logTextArea;
     private JButton startButton;
     private JButton stopButton;
+    private JButton loadTraceButton;
+    private JPanel northPanel;
     private JComboBox<String> portSelector;
+    // Node ids of each configuration in portSelector: the first 3, 5, 7... nodes of the topology, then all
+    private final List<List<String>> configurations = new ArrayList<>();
     private JLabel statusLabel;
     private JLabel phaseLabel;
     private JLabel consensusLabel;
+    private JLabel timingLabel;
+    private JCheckBox realRpcCheckBox;
 
     // State
     private String currentPhase = "Ready";
     private int consensusValue = -1;
     private String leaderId = "None";
     private Timer animationTimer;
+    private Timer logFlushTimer;
     private PaxosController controller;
+    private TraceReplayer traceReplayer;
     private boolean running = false;
 
     public PaxosVisualizer() {
@@ -67,21 +94,28 @@ public class PaxosVisualizer extends JFrame {
         startButton = new JButton("Start Paxos Process");
         stopButton = new JButton("Stop");
         stopButton.setEnabled(false);
+        loadTraceButton = new JButton("Load Trace...");
 
-        String[] ports = {"3 Nodes (50051-50053)", "5 Nodes (50051-50055)"};
-        portSelector = new JComboBox<>(ports);
+        portSelector = new JComboBox<>(configurationLabels());
 
         statusLabel = new JLabel("Status: Ready");
         phaseLabel = new JLabel("Phase: —");
         consensusLabel = new JLabel("Consensus Value: —");
+        timingLabel = new JLabel("Timings: —");
+        realRpcCheckBox = new JCheckBox("Real RPCs");
+        realRpcCheckBox.setToolTipText("Drive the real protocol RPCs with quorum counting and measure each phase");
+        realRpcCheckBox.setOpaque(false);
 
         controlPanel.add(new JLabel("Configuration:"));
         controlPanel.add(portSelector);
         controlPanel.add(startButton);
         controlPanel.add(stopButton);
+        controlPanel.add(loadTraceButton);
         controlPanel.add(statusLabel);
         controlPanel.add(phaseLabel);
         controlPanel.add(consensusLabel);
+        controlPanel.add(realRpcCheckBox);
+        controlPanel.add(timingLabel);
 
         // Main visualization panel
         visualizationPanel = new JPanel() {
@@ -109,6 +143,12 @@ public class PaxosVisualizer extends JFrame {
         };
         visualizationPanel.setBackground(BACKGROUND_COLOR);
 
+        // Performance dashboard, next to the protocol view
+        dashboard = new MetricsDashboard();
+        JTabbedPane centerTabs = new JTabbedPane();
+        centerTabs.addTab("Consensus", visualizationPanel);
+        centerTabs.addTab("Dashboard", dashboard);
+
         // Log panel
         logTextArea = new JTextArea(5, 50);
         logTextArea.setEditable(false);
@@ -117,13 +157,16 @@ public class PaxosVisualizer extends JFrame {
         logScrollPane.setBorder(BorderFactory.createTitledBorder("Event Log"));
 
         // Layout
-        add(controlPanel, BorderLayout.NORTH);
-        add(visualizationPanel, BorderLayout.CENTER);
+        northPanel = new JPanel(new BorderLayout());
+        northPanel.add(controlPanel, BorderLayout.CENTER);
+        add(northPanel, BorderLayout.NORTH);
+        add(centerTabs, BorderLayout.CENTER);
         add(logScrollPane, BorderLayout.SOUTH);
 
         // Event listeners
         startButton.addActionListener(e -> startProcess());
         stopButton.addActionListener(e -> stopProcess());
+        loadTraceButton.addActionListener(e -> loadTrace());
 
         // Animation timer
         animationTimer = new Timer(50, e -> {
@@ -132,14 +175,29 @@ public class PaxosVisualizer extends JFrame {
         });
         animationTimer.start();
 
+        // Log flush timer: at most one text area update per frame, however many events arrive
+        logFlushTimer = new Timer(LOG_FRAME_MILLIS, e -> flushLogMessages());
+        logFlushTimer.start();
+
         setLocationRelativeTo(null);
     }
 
+    private String[] configurationLabels() {
+        List<String> all = ClusterTopology.ids(ClusterTopology.get().nodes());
+        for (int size = 3; size < all.size(); size += 2) {
+            configurations.add(all.subList(0, size));
+        }
+        configurations.add(all);
+        String[] labels = new String[configurations.size()];
+        for (int i = 0; i < labels.length; i++) {
+            List<String> ids = configurations.get(i);
+            labels[i] = ids.size() + " Nodes (" + ids.get(0) + "-" + ids.get(ids.size() - 1) + ")";
+        }
+        return labels;
+    }
+
     private void initializeNodes() {
-        // Default 3-node setup
-        addNode("50051", 250, 200);
-        addNode("50052", 500, 200);
-        addNode("50053", 375, 400);
+        layoutNodes(configurations.get(0));
     }
 
     private void addNode(String id, int x, int y) {
@@ -150,23 +208,69 @@ public class PaxosVisualizer extends JFrame {
         nodes.clear();
 
         // Based on selected configuration
-        if (portSelector.getSelectedIndex() == 0) {
-            // 3 Nodes
-            addNode("50051", 250, 200);
-            addNode("50052", 500, 200);
-            addNode("50053", 375, 400);
+        layoutNodes(configurations.get(portSelector.getSelectedIndex()));
+    }
+
+    private void layoutNodes(List<String> ids) {
+        if (ids.size() == 3) {
+            addNode(ids.get(0), 250, 200);
+            addNode(ids.get(1), 500, 200);
+            addNode(ids.get(2), 375, 400);
         } else {
-            // 5 Nodes - arrange in a pentagon
-            int centerX = WIDTH / 2 - 100;
-            int centerY = HEIGHT / 2 - 100;
-            int radius = 200;
-
-            for (int i = 0; i < 5; i++) {
-                double angle = Math.PI / 2 + i * (2 * Math.PI / 5);
-                int x = (int) (centerX + radius * Math.cos(angle));
-                int y = (int) (centerY + radius * Math.sin(angle));
-                addNode("5005" + (i + 1), x, y);
-            }
+            layoutNodesInCircle(ids);
+        }
+    }
+
+    private void layoutNodesInCircle(List<String> ids) {
+        int centerX = WIDTH / 2 - 100;
+        int centerY = HEIGHT / 2 - 100;
+        int radius = 200;
+
+        for (int i = 0; i < ids.size(); i++) {
+            double angle = Math.PI / 2 + i * (2 * Math.PI / ids.size());
+            int x = (int) (centerX + radius * Math.cos(angle));
+            int y = (int) (centerY + radius * Math.sin(angle));
+            addNode(ids.get(i), x, y);
+        }
+    }
+
+    // Replace the displayed nodes, e.g. with the nodes found in a trace
+    public void showNodes(List<String> ids) {
+        nodes.clear();
+        messageAnimations.clear();
+        layoutNodesInCircle(ids);
+        visualizationPanel.repaint();
+    }
+
+    private void loadTrace() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Select trace files (one per node)");
+        chooser.setMultiSelectionEnabled(true);
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+
+        if (running) {
+            stopProcess();
+        }
+
+        List<Path> paths = new ArrayList<>();
+        for (File file : chooser.getSelectedFiles()) {
+            paths.add(file.toPath());
+        }
+
+        if (traceReplayer == null) {
+            traceReplayer = new TraceReplayer(this);
+            northPanel.add(traceReplayer.getPanel(), BorderLayout.SOUTH);
+            northPanel.revalidate();
+        }
+
+        try {
+            clearLog();
+            List<String> ids = traceReplayer.load(paths);
+            showNodes(ids);
+            setPhase("Replay");
+            addLogMessage("SYSTEM", "Loaded trace with " + ids.size() + " nodes from " + paths.size() + " file(s)");
+        } catch (Exception e) {
+            addLogMessage("ERROR", "Could not load trace: " + e.getMessage());
         }
     }
 
@@ -269,24 +373,57 @@ public class PaxosVisualizer extends JFrame {
     }
 
     public void addLogMessage(String event, String description) {
-        String timestamp = new SimpleDateFormat("HH:mm:ss.SSS").format(new Date());
-        LogMessage logMsg = new LogMessage(timestamp, event, description);
-        logMessages.add(0, logMsg);  // Add to beginning
+        pendingLogMessages.add(new LogMessage(System.currentTimeMillis(), event, description));
 
-        // Update log text area
-        SwingUtilities.invokeLater(() -> {
-            logTextArea.setText("");
-            StringBuilder logText = new StringBuilder();
-            int count = 0;
-            for (LogMessage msg : logMessages) {
-                logText.append(msg.timestamp).append(" [").append(msg.event)
-                        .append("] ").append(msg.description).append("\n");
-                count++;
-                if (count >= 100) break;  // Limit to 100 messages
+        // If the EDT falls behind, only the newest lines would be shown anyway
+        if (pendingLogCount.incrementAndGet() > MAX_LOG_LINES) {
+            if (pendingLogMessages.poll() != null) {
+                pendingLogCount.decrementAndGet();
             }
+        }
+    }
+
+     // Runs on the EDT: prepend all pending lines in one edit, then trim the oldest lines
+
+    private void flushLogMessages() {
+        if (pendingLogCount.get() == 0) return;
+
+        List<LogMessage> batch = new ArrayList<>();
+        LogMessage msg;
+        while ((msg = pendingLogMessages.poll()) != null) {
+            pendingLogCount.decrementAndGet();
+            batch.add(msg);
+        }
+        if (batch.isEmpty()) return;
+
+        // Newest first, matching the order of the text area
+        StringBuilder logText = new StringBuilder(batch.size() * 64);
+        int first = Math.max(0, batch.size() - MAX_LOG_LINES);
+        for (int i = batch.size() - 1; i >= first; i--) {
+            LogMessage m = batch.get(i);
+            logText.append(LOG_TIME_FORMAT.format(Instant.ofEpochMilli(m.timeMillis)))
+                    .append(" [").append(m.event).append("] ").append(m.description).append('\n');
+        }
+
+        Document doc = logTextArea.getDocument();
+        try {
+            doc.insertString(0, logText.toString(), null);
+
+            Element root = doc.getDefaultRootElement();
+            if (root.getElementCount() > MAX_LOG_LINES) {
+                int trimFrom = root.getElement(MAX_LOG_LINES).getStartOffset();
+                doc.remove(trimFrom, doc.getLength() - trimFrom);
+            }
+        } catch (BadLocationException e) {
             logTextArea.setText(logText.toString());
-            logTextArea.setCaretPosition(0);
-        });
+        }
+        logTextArea.setCaretPosition(0);
+    }
+
+    private void clearLog() {
+        pendingLogMessages.clear();
+        pendingLogCount.set(0);
+        logTextArea.setText("");
     }
 
     public void updateNodeStatus(String nodeId, boolean isLeader, String role,
@@ -313,6 +450,16 @@ public class PaxosVisualizer extends JFrame {
         });
     }
 
+    public int getConsensusValue() {
+        return consensusValue;
+    }
+
+    public void setPhaseTimings(String timings) {
+        SwingUtilities.invokeLater(() -> {
+            timingLabel.setText("Timings: " + timings);
+        });
+    }
+
     public void setConsensusValue(int value) {
         consensusValue = value;
         SwingUtilities.invokeLater(() -> {
@@ -335,8 +482,11 @@ public class PaxosVisualizer extends JFrame {
         return running;
     }
     private void startProcess() {
+        if (traceReplayer != null) {
+            traceReplayer.setPlaying(false);
+        }
         resetNodes();
-        logMessages.clear();
+        clearLog();
         messageAnimations.clear();
         consensusValue = -1;
         leaderId = "None";
@@ -349,31 +499,28 @@ public class PaxosVisualizer extends JFrame {
         stopButton.setEnabled(true);
         statusLabel.setText("Status: Running");
 
-        // Extract selected ports
-        List<String> targetPorts;
-        if (portSelector.getSelectedIndex() == 0) {
-            targetPorts = Arrays.asList("50051", "50052", "50053");
-        } else {
-            targetPorts = Arrays.asList("50051", "50052", "50053", "50054", "50055");
-
-            // Start additional server processes if 5-node mode is selected
-            try {
-                // Try to use reflection to call the startAdditionalServers method
-                Class<?> launcherClass = Class.forName("rt4.paxos.PaxosLauncher");
-                Method startMethod = launcherClass.getMethod("startAdditionalServers", int[].class);
-                startMethod.invoke(null, new Object[]{new int[]{50054, 50055}});
-
-                // Give servers some time to start
-                addLogMessage("SYSTEM", "Starting additional servers for 5-node mode");
-                Thread.sleep(2000);
-            } catch (Exception e) {
-                addLogMessage("WARNING", "Could not start additional servers: " + e.getMessage());
+        // Node ids of the selected configuration
+        List<String> targetNodes = configurations.get(portSelector.getSelectedIndex());
+
+        // Start the selected local nodes the launcher has not started yet
+        try {
+            // Try to use reflection to call the startAdditionalServers method
+            Class<?> launcherClass = Class.forName("rt4.paxos.PaxosLauncher");
+            Method startMethod = launcherClass.getMethod("startAdditionalServers", List.class);
+            int started = (Integer) startMethod.invoke(null, targetNodes);
+            if (started > 0) {
+                addLogMessage("SYSTEM", "Started " + started + " additional servers");
             }
+        } catch (Exception e) {
+            addLogMessage("WARNING", "Could not start additional servers: " + e.getMessage());
         }
 
+        dashboard.watch(targetNodes);
+        controller.setRealProtocolMode(realRpcCheckBox.isSelected());
+
         // Start Paxos process in background thread
         new Thread(() -> {
-            controller.startPaxosProcess(targetPorts);
+            controller.startPaxosProcess(targetNodes);
         }).start();
     }
 
@@ -440,12 +587,12 @@ public class PaxosVisualizer extends JFrame {
     }
 
     static class LogMessage {
-        final String timestamp;
+        final long timeMillis;
         final String event;
         final String description;
 
-        public LogMessage(String timestamp, String event, String description) {
-            this.timestamp = timestamp;
+        public LogMessage(long timeMillis, String event, String description) {
+            this.timeMillis = timeMillis;
             this.event = event;
             this.description = description;
         }
@@ -0,0 +1,271 @@
+package rt4.paxos.gui;
+
+import rt4.paxos.TraceFile;
+
+import javax.swing.*;
+import javax.swing.Timer;
+import java.awt.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Replays binary protocol traces recorded by the nodes in the visualizer.
+ *
+ * The traces of all selected nodes are merged into one timeline held in
+ * primitive arrays. A frame timer advances a replay clock by the frame time
+ * times the selected speed and feeds the events that fall inside the frame to
+ * the visualizer, so replay cost depends on the frame rate and not on how
+ * dense the trace is. The slider seeks anywhere in the trace.
+ */
+public class TraceReplayer {
+    private static final int FRAME_MILLIS = 33;
+    private static final int SLIDER_MAX = 1000;
+    private static final int MAX_ANIMATIONS_PER_FRAME = 40;
+    private static final int MAX_LOG_LINES_PER_FRAME = 100;
+    private static final String[] SPEEDS = {"1x", "10x", "100x", "1000x", "10000x"};
+
+    private final PaxosVisualizer visualizer;
+
+    // Merged timeline
+    private long[] times = new long[0];
+    private long[] slots = new long[0];
+    private int[] ballots = new int[0];
+    private int[] groups = new int[0];
+    private int[] fromNodes = new int[0];
+    private int[] toNodes = new int[0];
+    private byte[] types = new byte[0];
+    private int count = 0;
+
+    // Replay position
+    private long replayNanos = 0;
+    private int cursor = 0;
+    private double speed = 1.0;
+    private boolean playing = false;
+    private boolean updatingSlider = false;
+
+    // UI components
+    private final JPanel panel;
+    private final JButton playButton;
+    private final JSlider positionSlider;
+    private final JLabel positionLabel;
+    private final Timer frameTimer;
+
+    public TraceReplayer(PaxosVisualizer visualizer) {
+        this.visualizer = visualizer;
+
+        panel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        panel.setBackground(new Color(230, 230, 235));
+        panel.setBorder(BorderFactory.createTitledBorder("Trace Replay"));
+
+        playButton = new JButton("Play");
+        JComboBox<String> speedSelector = new JComboBox<>(SPEEDS);
+        positionSlider = new JSlider(0, SLIDER_MAX, 0);
+        positionSlider.setPreferredSize(new Dimension(400, positionSlider.getPreferredSize().height));
+        positionLabel = new JLabel("No trace loaded");
+
+        panel.add(playButton);
+        panel.add(new JLabel("Speed:"));
+        panel.add(speedSelector);
+        panel.add(positionSlider);
+        panel.add(positionLabel);
+
+        playButton.addActionListener(e -> setPlaying(!playing));
+        speedSelector.addActionListener(e -> {
+            String selected = (String) speedSelector.getSelectedItem();
+            speed = Double.parseDouble(selected.substring(0, selected.length() - 1));
+        });
+        positionSlider.addChangeListener(e -> {
+            if (!updatingSlider) {
+                seek((long) (duration() * (positionSlider.getValue() / (double) SLIDER_MAX)));
+            }
+        });
+
+        frameTimer = new Timer(FRAME_MILLIS, e -> onFrame());
+    }
+
+    public JPanel getPanel() {
+        return panel;
+    }
+
+    /**
+     * Loads and merges the traces of one or more nodes, and returns the node ids
+     * seen in them.
+     */
+    public List<String> load(List<Path> paths) throws IOException {
+        setPlaying(false);
+
+        int total = 0;
+        List<TraceFile> files = new ArrayList<>();
+        for (Path path : paths) {
+            TraceFile file = TraceFile.open(path);
+            files.add(file);
+            total += file.size();
+        }
+
+        long[] rawTimes = new long[total];
+        int[] order = new int[total];
+        int[] fileOf = new int[total];
+        int[] indexInFile = new int[total];
+        int n = 0;
+        for (int f = 0; f < files.size(); f++) {
+            TraceFile file = files.get(f);
+            for (int i = 0; i < file.size(); i++) {
+                rawTimes[n] = file.epochNanos(i);
+                fileOf[n] = f;
+                indexInFile[n] = i;
+                order[n] = n;
+                n++;
+            }
+        }
+        sortByTime(order, rawTimes);
+
+        times = new long[total];
+        slots = new long[total];
+        ballots = new int[total];
+        groups = new int[total];
+        fromNodes = new int[total];
+        toNodes = new int[total];
+        types = new byte[total];
+        TreeSet<Integer> nodeIds = new TreeSet<>();
+        for (int k = 0; k < total; k++) {
+            int r = order[k];
+            TraceFile file = files.get(fileOf[r]);
+            int i = indexInFile[r];
+            times[k] = rawTimes[r];
+            slots[k] = file.slot(i);
+            ballots[k] = file.ballot(i);
+            groups[k] = file.group(i);
+            fromNodes[k] = file.fromNode(i);
+            toNodes[k] = file.toNode(i);
+            types[k] = file.type(i);
+            if (fromNodes[k] != 0) nodeIds.add(fromNodes[k]);
+            if (toNodes[k] != 0) nodeIds.add(toNodes[k]);
+        }
+        count = total;
+
+        List<String> ids = new ArrayList<>();
+        for (int id : nodeIds) {
+            ids.add(String.valueOf(id));
+        }
+        seek(0);
+        return ids;
+    }
+
+    public void setPlaying(boolean play) {
+        playing = play && count > 0;
+        playButton.setText(playing ? "Pause" : "Play");
+        if (playing) {
+            frameTimer.start();
+        } else {
+            frameTimer.stop();
+        }
+    }
+
+    private long duration() {
+        return count == 0 ? 0 : times[count - 1] - times[0];
+    }
+
+     // Jump to a position and rebuild node state from the events before it
+
+    private void seek(long nanos) {
+        replayNanos = Math.max(0, Math.min(nanos, duration()));
+        cursor = lowerBound(count == 0 ? 0 : times[0] + replayNanos);
+
+        Map<Integer, Integer> lastBallot = new HashMap<>();
+        int leader = 0;
+        for (int i = 0; i < cursor; i++) {
+            if (types[i] == TraceFile.VALUE_PROPOSAL) leader = fromNodes[i];
+            if (types[i] == TraceFile.COMMIT) lastBallot.put(toNodes[i], ballots[i]);
+        }
+        for (Map.Entry<Integer, Integer> entry : lastBallot.entrySet()) {
+            visualizer.updateNodeStatus(String.valueOf(entry.getKey()), false, "Acceptor", entry.getValue(), -1);
+        }
+        if (leader != 0) {
+            visualizer.updateNodeStatus(String.valueOf(leader), true, "Leader", 0, -1);
+        }
+        updatePosition();
+    }
+
+    private void onFrame() {
+        replayNanos += (long) (FRAME_MILLIS * 1_000_000L * speed);
+        long until = times[0] + replayNanos;
+
+        int animations = 0;
+        int logged = 0;
+        int skipped = 0;
+        while (cursor < count && times[cursor] <= until) {
+            int i = cursor++;
+            String from = String.valueOf(fromNodes[i]);
+            String to = String.valueOf(toNodes[i]);
+            String label = TraceFile.typeName(types[i]);
+
+            if (types[i] == TraceFile.VALUE_PROPOSAL) {
+                visualizer.updateNodeStatus(from, true, "Leader", ballots[i], -1);
+            } else if (types[i] == TraceFile.COMMIT || types[i] == TraceFile.VALUE_RESPONSE) {
+                visualizer.updateNodeStatus(to, false, "Acceptor", ballots[i], -1);
+            }
+
+            if (animations < MAX_ANIMATIONS_PER_FRAME) {
+                visualizer.addMessageAnimation(from, to, label, true);
+                animations++;
+            }
+            if (logged < MAX_LOG_LINES_PER_FRAME) {
+                visualizer.addLogMessage("TRACE", label + " " + from + " -> " + to +
+                        " (group " + groups[i] + ", slot " + slots[i] + ", ballot " + ballots[i] + ")");
+                logged++;
+            } else {
+                skipped++;
+            }
+        }
+        if (skipped > 0) {
+            visualizer.addLogMessage("TRACE", "... " + skipped + " more events in this frame");
+        }
+
+        if (cursor >= count) {
+            replayNanos = duration();
+            setPlaying(false);
+        }
+        updatePosition();
+    }
+
+    private void updatePosition() {
+        updatingSlider = true;
+        long total = duration();
+        positionSlider.setValue(total == 0 ? 0 : (int) (replayNanos * SLIDER_MAX / total));
+        updatingSlider = false;
+        positionLabel.setText(String.format("%.3f / %.3f s  (event %d / %d)",
+                replayNanos / 1e9, total / 1e9, cursor, count));
+    }
+
+    private int lowerBound(long time) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+     // Stable merge sort of record indices by time, without boxing
+
+    private static void sortByTime(int[] order, long[] keys) {
+        int[] buffer = new int[order.length];
+        for (int width = 1; width < order.length; width *= 2) {
+            for (int lo = 0; lo < order.length - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, order.length);
+                if (keys[order[mid - 1]] <= keys[order[mid]]) continue;  // already in order
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    buffer[k++] = keys[order[j]] < keys[order[i]] ? order[j++] : order[i++];
+                }
+                while (i < mid) buffer[k++] = order[i++];
+                while (j < hi) buffer[k++] = order[j++];
+                System.arraycopy(buffer, lo, order, lo, hi - lo);
+            }
+        }
+    }
+}
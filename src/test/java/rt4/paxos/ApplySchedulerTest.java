@@ -0,0 +1,183 @@
+package rt4.paxos;
+
+import com.google.protobuf.ByteString;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ApplySchedulerTest {
+    // Parallel whatever the number of cores of the machine running the tests
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void stopPool() {
+        POOL.shutdownNow();
+    }
+
+    @Test
+    public void commandsOnOneKeyApplyInSlotOrder() {
+        Recorder recorder = new Recorder();
+        ApplyScheduler scheduler = new ApplyScheduler(recorder, POOL);
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            // Four keys, every command touching one or two of them
+            commands.add(i % 7 == 0 ? "k" + (i % 4) + ",k" + ((i + 1) % 4) : "k" + (i % 4));
+        }
+        run(scheduler, commands);
+        recorder.assertConsistent(commands);
+    }
+
+    @Test
+    public void commandsWithoutFootprintSeparateEverythingAroundThem() {
+        Recorder recorder = new Recorder();
+        ApplyScheduler scheduler = new ApplyScheduler(recorder, POOL);
+        Random random = new Random(7);
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            int kind = random.nextInt(20);
+            // Barriers (some back to back), commands touching nothing, and keyed ones
+            commands.add(kind == 0 ? "*" : kind == 1 ? "" : "k" + random.nextInt(16));
+        }
+        commands.set(100, "*");
+        commands.set(101, "*");
+        run(scheduler, commands);
+        recorder.assertConsistent(commands);
+    }
+
+    @Test
+    public void resultsAreThoseOfEachCommand() {
+        Recorder recorder = new Recorder();
+        ApplyScheduler scheduler = new ApplyScheduler(recorder, POOL);
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            commands.add("k" + i);
+        }
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < commands.size(); i++) {
+            indexes.add(scheduler.add(i + 1, bytes(commands.get(i))));
+        }
+        scheduler.run();
+        for (int i = 0; i < commands.size(); i++) {
+            assertEquals("applied " + (i + 1), scheduler.result(indexes.get(i)).toStringUtf8());
+        }
+        scheduler.clear();
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void aFailingCommandFailsTheRun() {
+        Recorder recorder = new Recorder();
+        recorder.failAt = 50;
+        ApplyScheduler scheduler = new ApplyScheduler(recorder, POOL);
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            commands.add("k" + (i % 3));
+        }
+        try {
+            run(scheduler, commands);
+            fail("Expected the failure of slot 50");
+        } catch (IllegalStateException expected) {
+            assertEquals("slot 50", expected.getMessage());
+        }
+        // Nothing that depends on the failed command was applied after it
+        for (int slot : recorder.perKey.get(ByteString.copyFromUtf8("k1"))) {
+            assertTrue("slot " + slot, slot < 50);
+        }
+    }
+
+    private static void run(ApplyScheduler scheduler, List<String> commands) {
+        for (int i = 0; i < commands.size(); i++) {
+            scheduler.add(i + 1, bytes(commands.get(i)));
+        }
+        scheduler.run();
+    }
+
+    private static ByteBuffer bytes(String command) {
+        return ByteBuffer.wrap(command.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Commands are "*" (no footprint), "" (touches nothing) or comma
+     * separated keys. Records the order each key saw and flags two commands
+     * with a common key, or anything next to a "*", running at once.
+     */
+    private static final class Recorder implements StateMachine {
+        final Map<ByteString, List<Integer>> perKey = new ConcurrentHashMap<>();
+        final Map<ByteString, AtomicInteger> busy = new ConcurrentHashMap<>();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger applied = new AtomicInteger();
+        final List<String> violations = new CopyOnWriteArrayList<>();
+        volatile int failAt = -1;
+
+        @Override
+        public ByteString apply(long slot, ByteBuffer command) {
+            String text = StandardCharsets.UTF_8.decode(command.duplicate()).toString();
+            int concurrent = running.incrementAndGet();
+            try {
+                if (slot == failAt) {
+                    throw new IllegalStateException("slot " + slot);
+                }
+                if (text.equals("*")) {
+                    if (concurrent != 1) violations.add("barrier " + slot + " ran next to another command");
+                    if (applied.get() != slot - 1) violations.add("barrier " + slot + " ran out of order");
+                } else {
+                    List<ByteString> keys = keys(text);
+                    for (ByteString key : keys) {
+                        if (busy.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet() != 1) {
+                            violations.add("slot " + slot + " ran next to another command on " + key.toStringUtf8());
+                        }
+                    }
+                    LockSupport.parkNanos(20_000);
+                    for (ByteString key : keys) {
+                        perKey.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add((int) slot);
+                        busy.get(key).decrementAndGet();
+                    }
+                }
+                applied.incrementAndGet();
+                return ByteString.copyFromUtf8("applied " + slot);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public List<ByteString> footprint(ByteBuffer command) {
+            String text = StandardCharsets.UTF_8.decode(command).toString();
+            return text.equals("*") ? null : keys(text);
+        }
+
+        private static List<ByteString> keys(String text) {
+            List<ByteString> keys = new ArrayList<>();
+            for (String key : text.split(",")) {
+                if (!key.isEmpty()) keys.add(ByteString.copyFromUtf8(key));
+            }
+            return keys;
+        }
+
+        void assertConsistent(List<String> commands) {
+            assertEquals(new ArrayList<String>(), violations);
+            assertEquals(commands.size(), applied.get());
+            for (Map.Entry<ByteString, List<Integer>> entry : perKey.entrySet()) {
+                List<Integer> slots = entry.getValue();
+                for (int i = 1; i < slots.size(); i++) {
+                    assertTrue(entry.getKey().toStringUtf8() + " saw " + slots, slots.get(i - 1) < slots.get(i));
+                }
+            }
+        }
+    }
+}
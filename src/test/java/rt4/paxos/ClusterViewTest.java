@@ -0,0 +1,102 @@
+package rt4.paxos;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClusterViewTest {
+    private volatile ServerStatus local = status(0.10, List.of());
+    private final ClusterView view = new ClusterView("S1", groupId -> local, List.of());
+
+    @After
+    public void shutdown() {
+        view.shutdown();
+    }
+
+    @Test
+    public void aCallerWithoutAVersionGetsTheFullView() throws Exception {
+        ClusterStatus first = ask(0, 0);
+        assertTrue(first.getFull());
+        assertEquals("S1", first.getServedBy());
+        assertEquals(1, first.getNodesCount());
+        assertEquals("S1", first.getNodes(0).getServerId());
+        assertTrue(first.getNodes(0).getReachable());
+
+        // Another node's epoch, or a version this node never reached, is no base for a delta
+        assertTrue(ask(first.getEpoch() + 1, first.getVersion()).getFull());
+        assertTrue(ask(first.getEpoch(), first.getVersion() + 1).getFull());
+    }
+
+    @Test
+    public void anUnchangedViewSendsNoNodes() throws Exception {
+        ClusterStatus first = ask(0, 0);
+        // Load noise below the rounding is not a change
+        local = status(0.11, List.of());
+        // Long enough for a couple of background polls
+        Thread.sleep(1500);
+        ClusterStatus next = ask(first.getEpoch(), first.getVersion());
+        assertFalse(next.getFull());
+        assertEquals(first.getVersion(), next.getVersion());
+        assertEquals(0, next.getNodesCount());
+    }
+
+    @Test
+    public void aDeltaHoldsOnlyTheNewLogEntries() throws Exception {
+        LogEntry old = entry("old");
+        local = status(0.10, List.of(old));
+        ClusterStatus first = ask(0, 0);
+        assertEquals(List.of(old), first.getNodes(0).getStatus().getLogEntriesList());
+
+        // Newest first, as nodes report them
+        LogEntry recent = entry("recent");
+        local = status(0.10, List.of(recent, old));
+        ClusterStatus delta = waitForChangeAfter(first);
+        assertFalse(delta.getFull());
+        assertEquals(1, delta.getNodesCount());
+        assertEquals(delta.getVersion(), delta.getNodes(0).getVersion());
+        assertEquals(List.of(recent), delta.getNodes(0).getStatus().getLogEntriesList());
+
+        // A full view still carries every entry
+        assertEquals(List.of(recent, old), ask(0, 0).getNodes(0).getStatus().getLogEntriesList());
+    }
+
+    private ClusterStatus ask(long epoch, long sinceVersion) throws Exception {
+        return view.status(ClusterStatusRequest.newBuilder()
+                .setRequester("test")
+                .setEpoch(epoch)
+                .setSinceVersion(sinceVersion)
+                .build()).get(5, TimeUnit.SECONDS);
+    }
+
+     // Ask for a delta every 100 ms until a background poll moved the version
+
+    private ClusterStatus waitForChangeAfter(ClusterStatus previous) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Thread.sleep(100);
+            ClusterStatus next = ask(previous.getEpoch(), previous.getVersion());
+            if (next.getVersion() != previous.getVersion()) return next;
+        }
+        fail("The view never changed after version " + previous.getVersion());
+        return null;
+    }
+
+    private static ServerStatus status(double cpuLoad, List<LogEntry> entries) {
+        return ServerStatus.newBuilder()
+                .setServerId("S1")
+                .setCpuLoad(cpuLoad)
+                .addAllLogEntries(new ArrayList<>(entries))
+                .build();
+    }
+
+    private static LogEntry entry(String description) {
+        return LogEntry.newBuilder().setEventType("test").setDescription(description).build();
+    }
+}
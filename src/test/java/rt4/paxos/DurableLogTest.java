@@ -0,0 +1,198 @@
+package rt4.paxos;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DurableLogTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoveryReplaysEveryRecordInOrder() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        DurableLog log = open(dir, 1 << 20, new Recorder());
+        log.promise(65537);
+        log.accept(1, 65537, bytes("one"));
+        log.accept(2, 65537, bytes("two"));
+        log.commit(1, 65537);
+        log.close();
+
+        Recorder replayed = new Recorder();
+        open(dir, 1 << 20, replayed).close();
+        assertEquals(List.of("promise 65537", "accept 1 65537 one", "accept 2 65537 two", "commit 1 65537"),
+                replayed.records);
+    }
+
+    @Test
+    public void aTornTailIsTruncatedAndAppendsContinueAfterIt() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        DurableLog log = open(dir, 1 << 20, new Recorder());
+        log.accept(1, 1, bytes("kept"));
+        log.accept(2, 1, bytes("torn by the crash"));
+        log.close();
+        Path segment = segments(dir).get(0);
+        long intact = Files.size(segment);
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            file.truncate(intact - 5);
+        }
+
+        Recorder replayed = new Recorder();
+        log = open(dir, 1 << 20, replayed);
+        assertEquals(List.of("accept 1 1 kept"), replayed.records);
+        log.accept(2, 2, bytes("rewritten"));
+        log.close();
+
+        replayed = new Recorder();
+        open(dir, 1 << 20, replayed).close();
+        assertEquals(List.of("accept 1 1 kept", "accept 2 2 rewritten"), replayed.records);
+    }
+
+    @Test
+    public void aRecordFailingItsChecksumEndsTheLastSegment() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        DurableLog log = open(dir, 1 << 20, new Recorder());
+        log.accept(1, 1, bytes("good"));
+        log.accept(2, 1, bytes("flipped"));
+        log.accept(3, 1, bytes("after"));
+        log.close();
+        Path segment = segments(dir).get(0);
+        flipByteOf(segment, "flipped");
+
+        Recorder replayed = new Recorder();
+        open(dir, 1 << 20, replayed).close();
+        // Everything from the bad record on is a torn write
+        assertEquals(List.of("accept 1 1 good"), replayed.records);
+    }
+
+    @Test
+    public void aBadRecordInASealedSegmentIsCorruption() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        DurableLog log = open(dir, 256, new Recorder());
+        for (long slot = 1; slot <= 40; slot++) {
+            log.accept(slot, 1, bytes("value-" + slot));
+            log.commit(slot, 1);
+        }
+        log.close();
+        List<Path> segments = segments(dir);
+        assertTrue("segments " + segments, segments.size() > 2);
+        flipByteOf(segments.get(0), "value-1");
+
+        try {
+            open(dir, 256, new Recorder());
+            fail("Recovered a corrupt sealed segment");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("corrupt"));
+        }
+    }
+
+    @Test
+    public void sealedSegmentsRecoverAndALostIndexIsRewritten() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        DurableLog log = open(dir, 256, new Recorder());
+        for (long slot = 1; slot <= 40; slot++) {
+            log.accept(slot, 1, bytes("value-" + slot));
+            log.commit(slot, 1);
+        }
+        log.close();
+        Path index = Path.of(segments(dir).get(0).toString().replace(".log", ".idx"));
+        assertTrue(Files.exists(index));
+        Files.delete(index);
+
+        Recorder replayed = new Recorder();
+        log = open(dir, 256, replayed);
+        assertEquals(80, replayed.records.size());
+        assertEquals("accept 40 1 value-40", replayed.records.get(78));
+        assertTrue(Files.exists(index));
+        log.close();
+    }
+
+    @Test
+    public void committedSlotsReadBackAcrossSegments() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        DurableLog log = open(dir, 256, new Recorder());
+        for (long slot = 1; slot <= 30; slot++) {
+            log.accept(slot, 1, bytes("first-" + slot));
+        }
+        // Slot 5 was chosen at a higher ballot; slot 21 was accepted but never committed
+        log.accept(5, 2, bytes("second-5"));
+        for (long slot = 1; slot <= 30; slot++) {
+            if (slot != 21) log.commit(slot, slot == 5 ? 2 : 1);
+        }
+
+        List<DurableLog.Entry> entries = log.readCommitted(3, 100, Long.MAX_VALUE);
+        assertEquals(18, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            long slot = 3 + i;
+            assertEquals(slot, entries.get(i).getSlot());
+            assertEquals(slot == 5 ? "second-5" : "first-" + slot, string(entries.get(i).getPayload()));
+        }
+        assertEquals(4, log.readCommitted(10, 4, Long.MAX_VALUE).size());
+        log.close();
+    }
+
+    private static DurableLog open(Path dir, long segmentBytes, Recorder recorder) throws IOException {
+        DurableLog log = new DurableLog(dir, segmentBytes);
+        log.recover(recorder);
+        return log;
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void flipByteOf(Path segment, String payload) throws IOException {
+        byte[] content = Files.readAllBytes(segment);
+        int at = new String(content, StandardCharsets.ISO_8859_1).indexOf(payload);
+        assertTrue(payload + " not in " + segment, at >= 0);
+        content[at] ^= 1;
+        Files.write(segment, content);
+    }
+
+    private static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Recorder implements DurableLog.Visitor {
+        final List<String> records = new ArrayList<>();
+
+        @Override
+        public void promise(int ballot) {
+            records.add("promise " + ballot);
+        }
+
+        @Override
+        public void accept(long slot, int ballot, ByteBuffer payload) {
+            records.add("accept " + slot + " " + ballot + " " + string(payload));
+        }
+
+        @Override
+        public void commit(long slot, int ballot) {
+            records.add("commit " + slot + " " + ballot);
+        }
+    }
+}
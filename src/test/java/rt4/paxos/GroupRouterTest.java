@@ -0,0 +1,86 @@
+package rt4.paxos;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GroupRouterTest {
+    private static final int[] COUNTS = {1, 2, 3, 7, 256, 1000, 65_537};
+
+    @Test
+    public void rangesStartWhereTheirGroupBegins() {
+        for (int count : COUNTS) {
+            GroupRouter router = new GroupRouter(count);
+            assertEquals(0, router.rangeStart(0));
+            assertEquals(0, router.groupForHash(0));
+            assertEquals(count - 1, router.groupForHash(0xFFFFFFFF));
+            for (int group = 1; group < Math.min(count, 2000); group++) {
+                long start = router.rangeStart(group);
+                assertEquals(count + ": start of " + group, group, router.groupForHash((int) start));
+                assertEquals(count + ": end of " + (group - 1), group - 1, router.groupForHash((int) (start - 1)));
+            }
+        }
+    }
+
+    @Test
+    public void rangesDifferInSizeByAtMostOne() {
+        for (int count : COUNTS) {
+            GroupRouter router = new GroupRouter(count);
+            long smallest = Long.MAX_VALUE;
+            long largest = 0;
+            for (int group = 0; group < count; group++) {
+                long end = group + 1 < count ? router.rangeStart(group + 1) : 1L << 32;
+                long size = end - router.rangeStart(group);
+                smallest = Math.min(smallest, size);
+                largest = Math.max(largest, size);
+            }
+            assertTrue(count + ": " + smallest + ".." + largest, largest - smallest <= 1);
+        }
+    }
+
+    @Test
+    public void nearbyKeysSpreadOverTheGroups() {
+        GroupRouter router = new GroupRouter(16);
+        int[] perGroup = new int[16];
+        for (int i = 0; i < 16_000; i++) {
+            perGroup[router.groupForKey("key-" + i)]++;
+        }
+        for (int group = 0; group < 16; group++) {
+            assertTrue("group " + group + ": " + Arrays.toString(perGroup),
+                    perGroup[group] > 800 && perGroup[group] < 1200);
+        }
+        assertEquals(router.groupForKey("key-1"), router.groupForKey("key-1".getBytes()));
+    }
+
+    @Test
+    public void preferredLeadersAreRoundRobinWhateverTheListingOrder() {
+        GroupRouter router = new GroupRouter(10);
+        List<String> order = GroupRouter.leaderOrder(List.of("S50063", "S50061", "S50062"));
+        assertEquals(order, GroupRouter.leaderOrder(List.of("S50062", "S50063", "S50061")));
+
+        Map<String, Integer> led = new HashMap<>();
+        for (int group = 0; group < 10; group++) {
+            String leader = router.preferredLeader(group, order);
+            assertEquals(order.get(group % 3), leader);
+            assertTrue(router.isPreferredLeader(group, leader, order));
+            led.merge(leader, 1, Integer::sum);
+        }
+        assertEquals(Map.of("S50061", 4, "S50062", 3, "S50063", 3), led);
+    }
+
+    @Test
+    public void aRouterNeedsAGroup() {
+        try {
+            new GroupRouter(0);
+            fail("Built a router without groups");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package rt4.paxos;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Voters on localhost, wired the way PaxosProposer wires a node (service,
+ * Replicator, shared peer channels), on free ports and with the topology of
+ * this JVM pointed at them.
+ */
+final class LocalCluster implements AutoCloseable {
+    final List<String> ids = new ArrayList<>();
+    final List<String> addresses = new ArrayList<>();
+    final List<PaxosServiceImpl> services = new ArrayList<>();
+    final List<Replicator> replicators = new ArrayList<>();
+    private final List<Server> servers = new ArrayList<>();
+
+    private LocalCluster() {
+    }
+
+    static LocalCluster start(int nodes, int groups) throws IOException {
+        LocalCluster cluster = new LocalCluster();
+        List<ClusterTopology.Node> topology = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            int port = freePort();
+            topology.add(new ClusterTopology.Node("S" + port, "localhost", port, false));
+            cluster.ids.add("S" + port);
+            cluster.addresses.add("localhost:" + port);
+        }
+        ClusterTopology.use(new ClusterTopology(topology));
+
+        for (ClusterTopology.Node node : topology) {
+            PaxosServiceImpl service = new PaxosServiceImpl(node.getId(), groups);
+            Replicator replicator = new Replicator(node.getId(), ClusterTopology.get().otherVoters(node.getId()),
+                    service.getMetrics());
+            service.setReplicator(replicator);
+            cluster.services.add(service);
+            cluster.replicators.add(replicator);
+            cluster.servers.add(ServerBuilder.forPort(node.getPort()).addService(service).build().start());
+        }
+        cluster.awaitConnected();
+        return cluster;
+    }
+
+     // Replicators connect when they are created, before the later nodes listen
+
+    private void awaitConnected() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (String address : addresses) {
+            ManagedChannel channel = PeerChannels.shared().channel(address);
+            while (channel.getState(true) != ConnectivityState.READY && System.nanoTime() < deadline) {
+                channel.resetConnectBackoff();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+    }
+
+     // Index of the node that preferred-leader routing sends the group to
+
+    int preferredLeader(int groupId) {
+        String id = new GroupRouter(services.get(0).getGroupCount())
+                .preferredLeader(groupId, GroupRouter.leaderOrder(ids));
+        return ids.indexOf(id);
+    }
+
+    static SubmitRequest put(int groupId, long clientId, long sequence, String key, String value) {
+        KvCommand put = KvCommand.newBuilder()
+                .setOp(KvCommand.Op.PUT)
+                .setKey(ByteString.copyFromUtf8(key))
+                .setValue(ByteString.copyFromUtf8(value))
+                .build();
+        return SubmitRequest.newBuilder()
+                .setGroupId(groupId)
+                .addCommands(Command.newBuilder()
+                        .setClientId(clientId)
+                        .setSequence(sequence)
+                        .setData(put.toByteString()))
+                .build();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        for (Replicator replicator : replicators) {
+            replicator.shutdown();
+        }
+        for (Server server : servers) {
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+        for (String address : addresses) {
+            PeerChannels.shared().release(address);
+        }
+        for (PaxosServiceImpl service : services) {
+            service.getClusterView().shutdown();
+            service.getEvents().close();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
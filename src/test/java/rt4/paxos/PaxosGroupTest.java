@@ -0,0 +1,75 @@
+package rt4.paxos;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PaxosGroupTest {
+    private static final int SELF = 1;
+    private static final int OTHER = 2;
+
+    private static PaxosGroup leading() {
+        PaxosGroup group = new PaxosGroup(0, "S1");
+        int ballot = group.prepareBallot(SELF);
+        assertTrue(group.becomeLeader(ballot, 1, "S1", new QuorumTracker(3, 2, 16)));
+        assertTrue(group.isLeader());
+        return group;
+    }
+
+    private static int higher(PaxosGroup group) {
+        return (((group.getHighestSeenProposal() >>> 16) + 1) << 16) | OTHER;
+    }
+
+    @Test
+    public void promiseToAnotherNodeEndsLeadership() {
+        PaxosGroup group = leading();
+        int ballot = group.getLeaderBallot();
+        assertTrue(group.promise(higher(group)));
+        assertFalse(group.isLeader());
+        assertNull(group.votesFor(ballot));
+        assertEquals(-1, group.reserveSlot(ballot));
+    }
+
+    @Test
+    public void acceptingAHigherBallotEndsLeadership() {
+        PaxosGroup group = leading();
+        assertTrue(group.acceptSlot(higher(group), 1, ByteString.copyFromUtf8("x"), "S2"));
+        assertFalse(group.isLeader());
+        assertEquals("S2", group.getKnownLeader());
+    }
+
+    @Test
+    public void preparingANewBallotEndsLeadership() {
+        PaxosGroup group = leading();
+        group.prepareBallot(SELF);
+        assertFalse(group.isLeader());
+    }
+
+    @Test
+    public void votesBelongToTheTermTheyWereCastIn() {
+        PaxosGroup group = leading();
+        int first = group.getLeaderBallot();
+        QuorumTracker firstVotes = group.votesFor(first);
+        assertNotNull(firstVotes);
+
+        int second = group.prepareBallot(SELF);
+        QuorumTracker secondVotes = new QuorumTracker(3, 2, 16);
+        assertTrue(group.becomeLeader(second, 1, "S1", secondVotes));
+        assertNull(group.votesFor(first));
+        assertTrue(group.votesFor(second) == secondVotes);
+    }
+
+    @Test
+    public void staleBallotCannotTakeOver() {
+        PaxosGroup group = new PaxosGroup(0, "S1");
+        int stale = group.prepareBallot(SELF);
+        assertTrue(group.promise(higher(group)));
+        assertFalse(group.becomeLeader(stale, 1, "S1", new QuorumTracker(3, 2, 16)));
+        assertFalse(group.isLeader());
+    }
+}
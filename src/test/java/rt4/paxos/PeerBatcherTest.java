@@ -0,0 +1,130 @@
+package rt4.paxos;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PeerBatcherTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger singles = new AtomicInteger();
+    private final AtomicInteger batches = new AtomicInteger();
+    private final AtomicInteger batched = new AtomicInteger();
+    private Server server;
+    private String address;
+
+    @Before
+    public void start() throws Exception {
+        server = ServerBuilder.forPort(0).addService(new PaxosServiceGrpc.PaxosServiceImplBase() {
+            @Override
+            public void proposeValue(ValueProposal request, StreamObserver<ValueResponse> responseObserver) {
+                singles.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                responseObserver.onNext(answer(request));
+                responseObserver.onCompleted();
+            }
+
+            @Override
+            public void proposeValueBatch(ValueProposalBatch request,
+                                          StreamObserver<ValueResponseBatch> responseObserver) {
+                batches.incrementAndGet();
+                batched.addAndGet(request.getProposalsCount());
+                ValueResponseBatch.Builder batch = ValueResponseBatch.newBuilder();
+                for (ValueProposal proposal : request.getProposalsList()) {
+                    batch.addResponses(answer(proposal));
+                }
+                responseObserver.onNext(batch.build());
+                responseObserver.onCompleted();
+            }
+        }).build().start();
+        address = "localhost:" + server.getPort();
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        release.countDown();
+        PeerChannels.shared().release(address);
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void callsBeyondTheInFlightLimitGoOutAsOneBatch() throws Exception {
+        PeerBatcher batcher = new PeerBatcher(address, 2);
+        List<ListenableFuture<ValueResponse>> responses = new ArrayList<>();
+        for (int group = 0; group < 7; group++) {
+            responses.add(batcher.propose(stub(10_000), proposal(group)));
+        }
+        awaitSingles(2);
+        assertEquals(0, batches.get());
+
+        release.countDown();
+        for (int group = 0; group < 7; group++) {
+            // Each caller gets the response to its own proposal
+            assertEquals(group, responses.get(group).get(10, TimeUnit.SECONDS).getGroupId());
+        }
+        assertEquals(2, singles.get());
+        assertEquals(5, batched.get());
+        assertEquals(1, batches.get());
+    }
+
+    @Test
+    public void waitingCallsPastTheirDeadlineAreNotSent() throws Exception {
+        PeerBatcher batcher = new PeerBatcher(address, 1);
+        ListenableFuture<ValueResponse> first = batcher.propose(stub(10_000), proposal(0));
+        ListenableFuture<ValueResponse> late = batcher.propose(stub(1), proposal(1));
+        awaitSingles(1);
+        Thread.sleep(20);
+
+        release.countDown();
+        assertEquals(0, first.get(10, TimeUnit.SECONDS).getGroupId());
+        try {
+            late.get(10, TimeUnit.SECONDS);
+            fail("Expected the late call to fail");
+        } catch (ExecutionException e) {
+            assertEquals(Status.Code.DEADLINE_EXCEEDED, Status.fromThrowable(e.getCause()).getCode());
+        }
+        assertEquals(0, batches.get());
+    }
+
+    private PaxosServiceGrpc.PaxosServiceFutureStub stub(long deadlineMillis) {
+        return PeerChannels.shared().futureStub(address).withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void awaitSingles(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (singles.get() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, singles.get());
+    }
+
+    private static ValueProposal proposal(int groupId) {
+        return ValueProposal.newBuilder().setGroupId(groupId).setSlot(1).setProposalNumber(1 << 16).build();
+    }
+
+    private static ValueResponse answer(ValueProposal proposal) {
+        return ValueResponse.newBuilder()
+                .setAccepted(true)
+                .setProposalNumber(proposal.getProposalNumber())
+                .setGroupId(proposal.getGroupId())
+                .build();
+    }
+}
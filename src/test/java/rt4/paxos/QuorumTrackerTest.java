@@ -0,0 +1,125 @@
+package rt4.paxos;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QuorumTrackerTest {
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(16, new QuorumTracker(3, 2, 16).capacity());
+        assertEquals(32, new QuorumTracker(3, 2, 17).capacity());
+        assertEquals(4, new QuorumTracker(3, 2, 1).capacity());
+    }
+
+    @Test
+    public void onlyTheDecidingVoteSeesTheQuorum() {
+        QuorumTracker votes = new QuorumTracker(3, 2, 16);
+        assertTrue(votes.open(1));
+        assertEquals(QuorumTracker.PENDING, votes.ack(1, 0));
+        assertFalse(votes.decided(1));
+        assertEquals(QuorumTracker.QUORUM, votes.ack(1, 2));
+        assertTrue(votes.decided(1));
+        assertEquals(QuorumTracker.PENDING, votes.ack(1, 1));
+        // Late votes are still recorded, so commits can skip the payload for them
+        assertTrue(votes.acked(1, 1));
+        assertFalse(votes.acked(1, 3));
+    }
+
+    @Test
+    public void aRepeatedVoteCountsOnce() {
+        QuorumTracker votes = new QuorumTracker(3, 2, 16);
+        assertTrue(votes.open(1));
+        assertEquals(QuorumTracker.PENDING, votes.ack(1, 1));
+        assertEquals(QuorumTracker.PENDING, votes.ack(1, 1));
+        assertFalse(votes.decided(1));
+    }
+
+    @Test
+    public void quorumIsLostOnceTooManyVotersFailed() {
+        QuorumTracker votes = new QuorumTracker(5, 3, 16);
+        assertTrue(votes.open(7));
+        assertEquals(QuorumTracker.PENDING, votes.ack(7, 0));
+        assertEquals(QuorumTracker.PENDING, votes.fail(7, 1));
+        assertEquals(QuorumTracker.PENDING, votes.fail(7, 2));
+        assertEquals(QuorumTracker.LOST, votes.fail(7, 3));
+        assertTrue(votes.decided(7));
+        // Decided as lost: a late accept does not turn it into a quorum
+        assertEquals(QuorumTracker.PENDING, votes.ack(7, 4));
+    }
+
+    @Test
+    public void aFullRingRefusesSlotsUntilTheOldestIsRetired() {
+        QuorumTracker votes = new QuorumTracker(3, 2, 4);
+        for (long slot = 1; slot <= 4; slot++) {
+            assertTrue(votes.open(slot));
+        }
+        // Slot 5 maps to the word of slot 1
+        assertFalse(votes.open(5));
+        assertFalse(votes.open(1));
+        votes.retire(1);
+        assertTrue(votes.open(5));
+        assertFalse(votes.open(6));
+    }
+
+    @Test
+    public void lateVotesForARetiredSlotDoNotReachItsSuccessor() {
+        QuorumTracker votes = new QuorumTracker(3, 2, 4);
+        assertTrue(votes.open(1));
+        assertEquals(QuorumTracker.PENDING, votes.ack(1, 0));
+        votes.retire(1);
+        assertTrue(votes.decided(1));
+        assertTrue(votes.open(5));
+
+        // Votes still on their way for slot 1 carry its tag, not slot 5's
+        assertEquals(QuorumTracker.PENDING, votes.ack(1, 1));
+        assertEquals(QuorumTracker.PENDING, votes.ack(1, 2));
+        assertFalse(votes.acked(5, 1));
+        assertFalse(votes.decided(5));
+        // Nor does retiring slot 1 again free the word slot 5 holds
+        votes.retire(1);
+        assertFalse(votes.open(9));
+
+        assertEquals(QuorumTracker.PENDING, votes.ack(5, 0));
+        assertEquals(QuorumTracker.QUORUM, votes.ack(5, 1));
+    }
+
+    @Test
+    public void concurrentVotersDecideEachSlotExactlyOnce() throws InterruptedException {
+        int voters = QuorumTracker.MAX_VOTERS;
+        int slots = 2000;
+        QuorumTracker votes = new QuorumTracker(voters, voters / 2 + 1, slots);
+        for (long slot = 1; slot <= slots; slot++) {
+            assertTrue(votes.open(slot));
+        }
+
+        AtomicInteger quorums = new AtomicInteger();
+        AtomicInteger lost = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int voter = 0; voter < voters; voter++) {
+            int v = voter;
+            Thread thread = new Thread(() -> {
+                for (long slot = 1; slot <= slots; slot++) {
+                    // Every third voter rejects, the others accept
+                    int outcome = v % 3 == 0 ? votes.fail(slot, v) : votes.ack(slot, v);
+                    if (outcome == QuorumTracker.QUORUM) quorums.incrementAndGet();
+                    if (outcome == QuorumTracker.LOST) lost.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(slots, quorums.get());
+        assertEquals(0, lost.get());
+    }
+}
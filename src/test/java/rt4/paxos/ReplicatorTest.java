@@ -0,0 +1,118 @@
+package rt4.paxos;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Context;
+import io.grpc.stub.StreamObserver;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicatorTest {
+    private static final int NODES = 3;
+    // Groups 0 and NODES have the same preferred leader
+    private static final int GROUPS = NODES + 1;
+    private static final int SLOTS = 200;
+
+    private static LocalCluster cluster;
+
+    @BeforeClass
+    public static void startCluster() throws Exception {
+        cluster = LocalCluster.start(NODES, GROUPS);
+    }
+
+    @AfterClass
+    public static void stopCluster() throws Exception {
+        cluster.close();
+    }
+
+    @Test
+    public void groupsLedByOneNodeReplicateTheSameSlotNumbersAtOnce() throws Exception {
+        int leader = cluster.preferredLeader(0);
+        assertEquals(leader, cluster.preferredLeader(NODES));
+        PaxosServiceImpl service = cluster.services.get(leader);
+
+        // All submits of both groups in flight together, so slot n of one group overlaps slot n of the other;
+        // one client per command, as their slots may come in any order
+        List<CompletableFuture<SubmitResponse>> responses = new ArrayList<>();
+        for (int i = 1; i <= SLOTS; i++) {
+            responses.add(submit(service, LocalCluster.put(0, 1000 + i, 1, "k" + i, "a" + i)));
+            responses.add(submit(service, LocalCluster.put(NODES, 2000 + i, 1, "k" + i, "b" + i)));
+        }
+        for (CompletableFuture<SubmitResponse> response : responses) {
+            SubmitResponse result = response.get(30, TimeUnit.SECONDS);
+            assertTrue(result.getError(), result.getAccepted());
+        }
+
+        for (PaxosServiceImpl node : cluster.services) {
+            PaxosGroup first = node.getGroups()[0];
+            PaxosGroup second = node.getGroups()[NODES];
+            awaitApplied(first, SLOTS);
+            awaitApplied(second, SLOTS);
+            for (int i = 1; i <= SLOTS; i++) {
+                ByteString key = ByteString.copyFromUtf8("k" + i);
+                assertEquals("a" + i, first.read(key).toStringUtf8());
+                assertEquals("b" + i, second.read(key).toStringUtf8());
+            }
+        }
+    }
+
+    @Test
+    public void cancellingTheSubmitCallDoesNotWithdrawItsSlot() throws Exception {
+        int groupId = 1;
+        PaxosServiceImpl service = cluster.services.get(cluster.preferredLeader(groupId));
+        // Elected first, so the cancelled call only runs phase 2
+        assertTrue(submit(service, LocalCluster.put(groupId, 3000, 1, "before", "x")).get(30, TimeUnit.SECONDS)
+                .getAccepted());
+
+        Context.CancellableContext call = Context.current().withCancellation();
+        CompletableFuture<SubmitResponse> response = call.call(
+                () -> submit(service, LocalCluster.put(groupId, 3001, 1, "cancelled", "y")));
+        call.cancel(null);
+
+        SubmitResponse result = response.get(30, TimeUnit.SECONDS);
+        assertTrue(result.getError(), result.getAccepted());
+        for (PaxosServiceImpl node : cluster.services) {
+            PaxosGroup group = node.getGroups()[groupId];
+            awaitApplied(group, result.getSlot());
+            assertEquals("y", group.read(ByteString.copyFromUtf8("cancelled")).toStringUtf8());
+        }
+    }
+
+    private static CompletableFuture<SubmitResponse> submit(PaxosServiceImpl service, SubmitRequest request) {
+        CompletableFuture<SubmitResponse> future = new CompletableFuture<>();
+        service.submit(request, new StreamObserver<SubmitResponse>() {
+            @Override
+            public void onNext(SubmitResponse response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                future.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        return future;
+    }
+
+     // Followers apply a slot when its commit arrives, shortly after the leader answered
+
+    private static void awaitApplied(PaxosGroup group, long slot) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (group.getAppliedIndex() < slot && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(group.getAppliedIndex() >= slot);
+    }
+}
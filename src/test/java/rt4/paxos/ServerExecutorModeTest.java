@@ -0,0 +1,118 @@
+package rt4.paxos;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ServerExecutorModeTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private Server server;
+    private ExecutorService executor;
+    private ManagedChannel channel;
+
+    @After
+    public void stop() throws InterruptedException {
+        release.countDown();
+        System.clearProperty(ServerExecutorMode.THREADS_PROPERTY);
+        System.clearProperty(ServerExecutorMode.QUEUE_PROPERTY);
+        if (channel != null) channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        if (server != null) server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        if (executor != null) executor.shutdownNow();
+    }
+
+    @Test
+    public void boundedPoolRefusesCallsOnceItsQueueIsFull() throws Exception {
+        System.setProperty(ServerExecutorMode.THREADS_PROPERTY, "1");
+        System.setProperty(ServerExecutorMode.QUEUE_PROPERTY, "4");
+        PaxosServiceGrpc.PaxosServiceStub stub = start(ServerExecutorMode.BOUNDED);
+
+        // The one handler thread blocks, so every later call queues behind it
+        List<CompletableFuture<ValueResponse>> calls = new ArrayList<>();
+        Status refused = null;
+        for (int i = 1; i <= 50 && refused == null; i++) {
+            CompletableFuture<ValueResponse> call = propose(stub, i);
+            calls.add(call);
+            try {
+                call.get(200, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                refused = Status.fromThrowable(e.getCause());
+            } catch (TimeoutException e) {
+                // Admitted and waiting
+            }
+        }
+        assertNotNull("No call was refused", refused);
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, refused.getCode());
+
+        // Every admitted call still completes, and the pool admits again once it drained
+        release.countDown();
+        for (CompletableFuture<ValueResponse> call : calls.subList(0, calls.size() - 1)) {
+            assertTrue(call.get(10, TimeUnit.SECONDS).getAccepted());
+        }
+        assertTrue(propose(stub, 100).get(10, TimeUnit.SECONDS).getAccepted());
+    }
+
+    @Test
+    public void virtualModeRunsHandlers() throws Exception {
+        release.countDown();
+        PaxosServiceGrpc.PaxosServiceStub stub = start(ServerExecutorMode.VIRTUAL);
+        assertTrue(propose(stub, 1).get(10, TimeUnit.SECONDS).getAccepted());
+    }
+
+    private PaxosServiceGrpc.PaxosServiceStub start(ServerExecutorMode mode) throws Exception {
+        ServerBuilder<?> builder = ServerBuilder.forPort(0);
+        executor = mode.configure(builder);
+        server = builder.addService(new PaxosServiceGrpc.PaxosServiceImplBase() {
+            @Override
+            public void proposeValue(ValueProposal request, StreamObserver<ValueResponse> responseObserver) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                responseObserver.onNext(ValueResponse.newBuilder().setAccepted(true).build());
+                responseObserver.onCompleted();
+            }
+        }).build().start();
+        channel = ManagedChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+        return PaxosServiceGrpc.newStub(channel);
+    }
+
+    private static CompletableFuture<ValueResponse> propose(PaxosServiceGrpc.PaxosServiceStub stub, int number) {
+        CompletableFuture<ValueResponse> future = new CompletableFuture<>();
+        stub.proposeValue(ValueProposal.newBuilder().setProposalNumber(number).build(),
+                new StreamObserver<ValueResponse>() {
+                    @Override
+                    public void onNext(ValueResponse value) {
+                        future.complete(value);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                });
+        return future;
+    }
+}
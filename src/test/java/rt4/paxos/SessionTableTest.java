@@ -0,0 +1,160 @@
+package rt4.paxos;
+
+import com.google.protobuf.ByteString;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTableTest {
+
+    @Test
+    public void commandsAreClassifiedAgainstTheLastAppliedSequence() {
+        SessionTable sessions = new SessionTable(16, 1000);
+        assertEquals(SessionTable.NEW, sessions.check(7, 1, 1));
+        assertEquals(SessionTable.DUPLICATE, sessions.check(7, 1, 2));
+        assertEquals(SessionTable.NEW, sessions.check(7, 3, 3));
+        assertEquals(SessionTable.STALE, sessions.check(7, 2, 4));
+        // Without a session only a first command starts one
+        assertEquals(SessionTable.EXPIRED, sessions.check(8, 2, 5));
+        assertFalse(sessions.contains(8));
+        // No client id: applied every time, never tracked
+        assertEquals(SessionTable.NEW, sessions.check(SessionTable.NO_CLIENT, 1, 6));
+        assertEquals(SessionTable.NEW, sessions.check(SessionTable.NO_CLIENT, 1, 7));
+        assertEquals(1, sessions.size());
+    }
+
+    @Test
+    public void resultsOfTheLatestSlotAreCached() {
+        SessionTable sessions = new SessionTable(16, 1000);
+        ByteString a = ByteString.copyFromUtf8("a");
+        ByteString b = ByteString.copyFromUtf8("b");
+        ByteString c = ByteString.copyFromUtf8("c");
+        sessions.check(7, 1, 1);
+        sessions.recordResult(7, 1, 1, a);
+        // Two commands of one request in slot 2
+        sessions.check(7, 2, 2);
+        sessions.recordResult(7, 2, 2, b);
+        sessions.check(7, 3, 2);
+        sessions.recordResult(7, 3, 2, c);
+
+        assertNull(sessions.cachedResult(7, 1));
+        assertEquals(b, sessions.cachedResult(7, 2));
+        assertEquals(c, sessions.cachedResult(7, 3));
+        assertNull(sessions.cachedResult(7, 4));
+        assertNull(sessions.cachedResult(9, 1));
+    }
+
+    @Test
+    public void idleSessionsExpireByLogIndex() {
+        SessionTable sessions = new SessionTable(16, 10);
+        sessions.check(1, 1, 1);
+        sessions.check(2, 1, 5);
+        // Client 1 was last active at 1: idle for more than 10 entries at 12
+        assertEquals(SessionTable.NEW, sessions.check(3, 1, 12));
+        assertFalse(sessions.contains(1));
+        assertTrue(sessions.contains(2));
+        assertEquals(SessionTable.EXPIRED, sessions.check(1, 2, 13));
+        assertEquals(SessionTable.NEW, sessions.check(1, 1, 14));
+    }
+
+    @Test
+    public void theLeastRecentlyActiveSessionIsEvictedWhenFull() {
+        SessionTable sessions = new SessionTable(3, 1000);
+        sessions.check(1, 1, 1);
+        sessions.check(2, 1, 2);
+        sessions.check(3, 1, 3);
+        // Client 1 is active again, so client 2 is now the oldest
+        assertEquals(SessionTable.NEW, sessions.check(1, 2, 4));
+        assertEquals(SessionTable.NEW, sessions.check(4, 1, 5));
+        assertEquals(3, sessions.size());
+        assertTrue(sessions.contains(1));
+        assertFalse(sessions.contains(2));
+        assertTrue(sessions.contains(3));
+        assertTrue(sessions.contains(4));
+    }
+
+    /**
+     * Random checks over a small id space, so probe chains collide, wrap the
+     * table and get shifted back on every removal, compared with a plain
+     * LinkedHashMap in activity order.
+     */
+    @Test
+    public void matchesAReferenceModelUnderChurn() {
+        int maxSessions = 40;
+        long ttl = 200;
+        SessionTable sessions = new SessionTable(maxSessions, ttl);
+        Model model = new Model(maxSessions, ttl);
+        Random random = new Random(42);
+
+        long logIndex = 0;
+        for (int i = 0; i < 200_000; i++) {
+            logIndex += random.nextInt(3);
+            long clientId = 1 + random.nextInt(120);
+            long last = model.lastSequence(clientId);
+            long sequence = last == 0 ? 1 + random.nextInt(2) : Math.max(1, last - 1 + random.nextInt(3));
+            assertEquals("check " + i, model.check(clientId, sequence, logIndex),
+                    sessions.check(clientId, sequence, logIndex));
+            assertEquals("size " + i, model.size(), sessions.size());
+            if (i % 1000 == 0) {
+                for (long id = 1; id <= 120; id++) {
+                    assertEquals("client " + id + " at " + i, model.contains(id), sessions.contains(id));
+                }
+            }
+        }
+    }
+
+    private static final class Model {
+        // Client id -> {last sequence, last active index}, oldest activity first
+        private final LinkedHashMap<Long, long[]> sessions = new LinkedHashMap<>();
+        private final int maxSessions;
+        private final long ttl;
+
+        Model(int maxSessions, long ttl) {
+            this.maxSessions = maxSessions;
+            this.ttl = ttl;
+        }
+
+        int check(long clientId, long sequence, long logIndex) {
+            Iterator<Map.Entry<Long, long[]>> oldest = sessions.entrySet().iterator();
+            while (oldest.hasNext() && logIndex - oldest.next().getValue()[1] > ttl) {
+                oldest.remove();
+            }
+            long[] session = sessions.remove(clientId);
+            if (session != null) {
+                session[1] = logIndex;
+                sessions.put(clientId, session);
+                if (sequence == session[0]) return SessionTable.DUPLICATE;
+                if (sequence < session[0]) return SessionTable.STALE;
+                session[0] = sequence;
+                return SessionTable.NEW;
+            }
+            if (sequence > SessionTable.FIRST_SEQUENCE) return SessionTable.EXPIRED;
+            if (sessions.size() >= maxSessions) {
+                sessions.remove(sessions.keySet().iterator().next());
+            }
+            sessions.put(clientId, new long[]{sequence, logIndex});
+            return SessionTable.NEW;
+        }
+
+        long lastSequence(long clientId) {
+            long[] session = sessions.get(clientId);
+            return session == null ? 0 : session[0];
+        }
+
+        boolean contains(long clientId) {
+            return sessions.containsKey(clientId);
+        }
+
+        int size() {
+            return sessions.size();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package rt4.paxos;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SlotLogStoreTest {
+
+    @Test
+    public void acceptedPayloadsReadBackWithoutMovingTheSource() {
+        SlotLogStore log = new SlotLogStore(64);
+        ByteBuffer payload = bytes("hello");
+        log.accept(1, 7, payload);
+        assertEquals(0, payload.position());
+
+        assertEquals(SlotLogStore.ACCEPTED, log.getState(1));
+        assertEquals(7, log.getBallot(1));
+        assertTrue(log.getAcceptedNanos(1) > 0);
+        ByteBuffer read = log.readPayload(1);
+        assertTrue(read.isReadOnly());
+        assertEquals("hello", string(read));
+
+        log.commit(1);
+        assertEquals(SlotLogStore.COMMITTED, log.getState(1));
+    }
+
+    @Test
+    public void slotsSkippedOverStayEmpty() {
+        SlotLogStore log = new SlotLogStore(64);
+        log.accept(5, 1, bytes("five"));
+        assertEquals(5, log.lastSlot());
+        assertEquals(5, log.size());
+        for (long slot = 1; slot < 5; slot++) {
+            assertEquals(SlotLogStore.EMPTY, log.getState(slot));
+            assertNull(log.readPayload(slot));
+        }
+        // Committing a slot nothing was accepted for does nothing
+        log.commit(3);
+        assertEquals(SlotLogStore.EMPTY, log.getState(3));
+    }
+
+    @Test
+    public void aHigherBallotReplacesTheAcceptedPayload() {
+        SlotLogStore log = new SlotLogStore(64);
+        log.accept(1, 1, bytes("old"));
+        log.accept(1, 2, bytes("new"));
+        assertEquals(2, log.getBallot(1));
+        assertEquals("new", string(log.readPayload(1)));
+        assertEquals(1, log.size());
+    }
+
+    @Test
+    public void theRingGrowsPastItsInitialSizeKeepingEverySlot() {
+        SlotLogStore log = new SlotLogStore(4096);
+        int slots = 5000;
+        for (long slot = 1; slot <= slots; slot++) {
+            log.accept(slot, (int) slot, bytes("v" + slot));
+        }
+        assertEquals(slots, log.size());
+        for (long slot = 1; slot <= slots; slot++) {
+            assertEquals((int) slot, log.getBallot(slot));
+            assertEquals("v" + slot, string(log.readPayload(slot)));
+        }
+    }
+
+    @Test
+    public void growingAWrappedWindowKeepsSlotsInPlace() {
+        SlotLogStore log = new SlotLogStore(4096);
+        for (long slot = 1; slot <= 1000; slot++) {
+            log.accept(slot, 1, bytes("v" + slot));
+        }
+        log.evictBefore(900);
+        // The window now wraps around the end of the 1024-slot ring, then outgrows it
+        for (long slot = 1001; slot <= 3000; slot++) {
+            log.accept(slot, 1, bytes("v" + slot));
+        }
+        assertEquals(900, log.firstSlot());
+        for (long slot = 900; slot <= 3000; slot++) {
+            assertEquals("v" + slot, string(log.readPayload(slot)));
+        }
+        assertNull(log.readPayload(899));
+    }
+
+    @Test
+    public void evictedSlotsCannotBeAcceptedAgain() {
+        SlotLogStore log = new SlotLogStore(64);
+        log.accept(1, 1, bytes("a"));
+        log.accept(2, 1, bytes("b"));
+        log.evictBefore(2);
+        assertEquals(2, log.firstSlot());
+        assertEquals(SlotLogStore.EMPTY, log.getState(1));
+        try {
+            log.accept(1, 2, bytes("again"));
+            fail("Accepted an evicted slot");
+        } catch (IllegalArgumentException expected) {
+        }
+        // Evicting past the last slot leaves an empty window after it
+        log.evictBefore(10);
+        assertEquals(3, log.firstSlot());
+        assertEquals(0, log.size());
+    }
+
+    @Test
+    public void evictionReturnsSegmentsToThePool() {
+        int segment = 64;
+        SlotLogStore log = new SlotLogStore(segment);
+        long slot = 1;
+        slot = cycle(log, slot, 10);
+        long warm = log.allocatedSegments();
+
+        slot = cycle(log, slot, 1000);
+        // Steady state: segments come from the pool, and only the live window is held
+        assertEquals(warm, log.allocatedSegments());
+        assertTrue("off-heap " + log.offHeapBytes(), log.offHeapBytes() <= 4L * segment);
+        assertEquals(4, log.size());
+    }
+
+     // Four 16-byte payloads per segment, evicted as the window moves on
+
+    private static long cycle(SlotLogStore log, long slot, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < 8; i++, slot++) {
+                log.accept(slot, 1, ByteBuffer.allocate(16));
+            }
+            log.evictBefore(slot - 4);
+        }
+        return slot;
+    }
+
+    @Test
+    public void aPayloadLargerThanASegmentGetsItsOwn() {
+        SlotLogStore log = new SlotLogStore(16);
+        log.accept(1, 1, bytes("small"));
+        String large = "0123456789abcdefghijklmnopqrstuvwxyz";
+        log.accept(2, 1, bytes(large));
+        log.accept(3, 1, bytes("after"));
+        assertEquals("small", string(log.readPayload(1)));
+        assertEquals(large, string(log.readPayload(2)));
+        assertEquals("after", string(log.readPayload(3)));
+    }
+
+    private static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}